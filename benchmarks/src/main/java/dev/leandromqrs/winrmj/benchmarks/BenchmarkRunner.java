@@ -0,0 +1,23 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH entry point that always adds the gc profiler, so every run reports allocation rate
+ * (gc.alloc.rate.norm is bytes per operation) next to throughput. Takes the usual JMH
+ * command line, e.g. a benchmark name regex or -p outputBytes=4096.
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,61 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import dev.leandromqrs.winrmj.protocol.Protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Receive loop of one command against the local server: every invocation starts a
+ * command in an open shell and polls it until it is done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandOutputBenchmark {
+    @Param({ "1024", "1048576" })
+    public int outputBytes;
+
+    @Param({ "1", "8" })
+    public int receivesPerCommand;
+
+    private FakeWinRMServer server;
+    private Protocol protocol;
+    private String shellId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new FakeWinRMServer(0, outputBytes, receivesPerCommand);
+        protocol = new Protocol(server.getEndpoint(), "plaintext", "user", "password", null, null, null);
+        shellId = protocol.openShell("stdin", "stdout stderr", null, null, false, 437, null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        protocol.closeShell(shellId);
+        server.close();
+    }
+
+    @Benchmark
+    public int getCommandOutput(Blackhole blackhole) throws Exception {
+        String commandId = protocol.runCommand(shellId, "ipconfig", new String[] { "/all" }, false, false);
+        return protocol.getCommandOutput(shellId, commandId, (id, stream, buffer, offset, length) -> blackhole.consume(length));
+    }
+}
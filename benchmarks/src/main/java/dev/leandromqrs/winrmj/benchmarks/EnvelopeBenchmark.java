@@ -0,0 +1,70 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import dev.leandromqrs.winrmj.protocol.EnvelopeBuffer;
+import dev.leandromqrs.winrmj.protocol.EnvelopeTemplates;
+import dev.leandromqrs.winrmj.protocol.Protocol;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering of the request envelopes into a reused buffer, the way Protocol does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeBenchmark {
+    private static final String COMMAND_ID = "22222222-2222-2222-2222-222222222222";
+    private static final String[] ARGUMENTS = { "-NoProfile", "-Command", "Get-ChildItem C:\\Windows | Select-Object Name, Length" };
+
+    private EnvelopeTemplates templates;
+    private EnvelopeBuffer buffer;
+    private Map<String, String> envVars;
+
+    @Setup
+    public void setUp() {
+        templates = new EnvelopeTemplates("127.0.0.1:5985/wsman", Protocol.DEFAULT_MAX_ENV_SIZE, Protocol.DEFAULT_LOCALE, Protocol.DEFAULT_TIMEOUT);
+        buffer = new EnvelopeBuffer();
+        envVars = Map.of("PATH", "C:\\Windows\\system32;C:\\Windows", "TEMP", "C:\\Temp");
+    }
+
+    @Benchmark
+    public UUID create() {
+        return templates.create(buffer, "stdin", "stdout stderr", "C:\\Users\\Administrator", envVars, false, 437, 180);
+    }
+
+    @Benchmark
+    public UUID command() {
+        return templates.command(buffer, FakeWinRMServer.SHELL_ID, "powershell", ARGUMENTS, false, false);
+    }
+
+    @Benchmark
+    public UUID receive() {
+        return templates.receive(buffer, FakeWinRMServer.SHELL_ID, COMMAND_ID, "stdout stderr");
+    }
+
+    @Benchmark
+    public UUID signal() {
+        return templates.signal(buffer, FakeWinRMServer.SHELL_ID, COMMAND_ID, EnvelopeTemplates.SIGNAL_TERMINATE);
+    }
+
+    @Benchmark
+    public UUID delete() {
+        return templates.delete(buffer, FakeWinRMServer.SHELL_ID);
+    }
+}
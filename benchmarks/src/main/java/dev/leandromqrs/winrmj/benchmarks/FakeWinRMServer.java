@@ -0,0 +1,188 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for a WinRM endpoint answering Create, Command, Receive, Signal and
+ * Delete with canned responses.
+ * <p>
+ * Every command writes outputBytes to stdout, spread evenly over receivesPerCommand
+ * Receives, the last of which reports the command as done. Each request is answered
+ * after latencyMillis to stand in for the network and the remote host.
+ */
+public final class FakeWinRMServer implements AutoCloseable {
+    static {
+        // without it every response waits on the delayed ACK of the previous one
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // idle keep-alive connections above that are closed under the client's feet
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+    }
+
+    public static final String SHELL_ID = "11111111-1111-1111-1111-111111111111";
+
+    private static final String HEAD = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
+            + " xmlns:a=\"http://schemas.xmlsoap.org/ws/2004/08/addressing\""
+            + " xmlns:x=\"http://schemas.xmlsoap.org/ws/2004/09/transfer\""
+            + " xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+            + " xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\">"
+            + "<s:Header><a:RelatesTo>uuid:";
+    private static final String BODY = "</a:RelatesTo></s:Header><s:Body>";
+    private static final String TAIL = "</s:Body></s:Envelope>";
+    private static final String STATE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/";
+    // raw bytes per rsp:Stream element, in the range Windows itself uses
+    private static final int STREAM_CHUNK = 8192;
+    private static final String COMMAND_ID = "${commandId}";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int latencyMillis;
+    private final int receivesPerCommand;
+    private final String running;
+    private final String done;
+    private final Map<String, AtomicInteger> commands = new ConcurrentHashMap<>();
+    private final AtomicLong commandIds = new AtomicLong();
+
+    public FakeWinRMServer(int latencyMillis, int outputBytes, int receivesPerCommand) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.receivesPerCommand = receivesPerCommand;
+        int perReceive = outputBytes / receivesPerCommand;
+        this.running = receiveBody(COMMAND_ID, perReceive, false);
+        this.done = receiveBody(COMMAND_ID, outputBytes - perReceive * (receivesPerCommand - 1), true);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-winrm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext("/wsman", this::handle);
+        this.server.start();
+    }
+
+    /**
+     * @return the endpoint as Protocol and Session take it, host:port/path
+     */
+    public String getEndpoint() {
+        return String.format("%s:%d/wsman", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A whole Receive response carrying outputBytes of stdout.
+     */
+    public static byte[] receiveResponse(String commandId, int outputBytes, boolean done) {
+        return envelope("00000000-0000-0000-0000-000000000000", receiveBody(commandId, outputBytes, done));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String request;
+        try (InputStream in = exchange.getRequestBody()) {
+            request = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        String messageId = between(request, "MessageID>uuid:", "<");
+        String action = between(request, ":Action", "<");
+        action = action.substring(action.lastIndexOf('/') + 1);
+        String body;
+        switch (action) {
+            case "Create":
+                body = "<rsp:Shell><rsp:ShellId>" + SHELL_ID + "</rsp:ShellId></rsp:Shell>";
+                break;
+            case "Command":
+                String commandId = String.format("22222222-2222-2222-2222-%012d", commandIds.incrementAndGet());
+                commands.put(commandId, new AtomicInteger(receivesPerCommand));
+                body = "<rsp:CommandResponse><rsp:CommandId>" + commandId + "</rsp:CommandId></rsp:CommandResponse>";
+                break;
+            case "Receive":
+                String receiving = between(request, "CommandId=\"", "\"");
+                AtomicInteger left = commands.get(receiving);
+                boolean last = left == null || left.decrementAndGet() <= 0;
+                if (last) {
+                    commands.remove(receiving);
+                }
+                body = (last ? done : running).replace(COMMAND_ID, receiving);
+                break;
+            default:
+                // Signal and Delete only need RelatesTo
+                body = "";
+        }
+        byte[] response = envelope(messageId, body);
+        exchange.getResponseHeaders().add("Content-Type", "application/soap+xml;charset=UTF-8");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static byte[] envelope(String messageId, String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEAD.length() + body.length() + 128);
+        out.writeBytes(HEAD.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(messageId.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(BODY.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(body.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(TAIL.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static String receiveBody(String commandId, int outputBytes, boolean done) {
+        StringBuilder body = new StringBuilder("<rsp:ReceiveResponse>");
+        byte[] chunk = new byte[STREAM_CHUNK];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + i % 26);
+        }
+        for (int written = 0; written < outputBytes; written += STREAM_CHUNK) {
+            int length = Math.min(STREAM_CHUNK, outputBytes - written);
+            body.append("<rsp:Stream Name=\"stdout\" CommandId=\"").append(commandId).append("\">")
+                    .append(Base64.getEncoder().encodeToString(length == STREAM_CHUNK ? chunk : Arrays.copyOf(chunk, length)))
+                    .append("</rsp:Stream>");
+        }
+        if (done) {
+            body.append("<rsp:Stream Name=\"stdout\" CommandId=\"").append(commandId).append("\" End=\"true\"></rsp:Stream>")
+                    .append("<rsp:Stream Name=\"stderr\" CommandId=\"").append(commandId).append("\" End=\"true\"></rsp:Stream>")
+                    .append("<rsp:CommandState CommandId=\"").append(commandId).append("\" State=\"").append(STATE).append("Done\">")
+                    .append("<rsp:ExitCode>0</rsp:ExitCode></rsp:CommandState>");
+        } else {
+            body.append("<rsp:CommandState CommandId=\"").append(commandId).append("\" State=\"").append(STATE).append("Running\"/>");
+        }
+        return body.append("</rsp:ReceiveResponse>").toString();
+    }
+
+    private static String between(String text, String start, String end) {
+        int from = text.indexOf(start);
+        if (from < 0) {
+            return "";
+        }
+        from += start.length();
+        return text.substring(from, text.indexOf(end, from));
+    }
+}
@@ -0,0 +1,51 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import dev.leandromqrs.winrmj.protocol.ReceiveResponseParser;
+import dev.leandromqrs.winrmj.protocol.ReceiveState;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of a Receive response held in memory, output decoded into a sink that only
+ * touches it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceiveParserBenchmark {
+    // the largest is about what fits in the default MaxEnvelopeSize
+    @Param({ "0", "4096", "110000" })
+    public int outputBytes;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        response = FakeWinRMServer.receiveResponse("22222222-2222-2222-2222-222222222222", outputBytes, true);
+    }
+
+    @Benchmark
+    public ReceiveState parse(Blackhole blackhole) throws Exception {
+        return ReceiveResponseParser.parse(new ByteArrayInputStream(response), (commandId, stream, buffer, offset, length) -> {
+            blackhole.consume(buffer);
+            blackhole.consume(length);
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package dev.leandromqrs.winrmj.benchmarks;
+
+import dev.leandromqrs.winrmj.Response;
+import dev.leandromqrs.winrmj.Session;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Session.runCmd end to end against the local server: shell from the pool, Command,
+ * Receives, Signal, and the output collected into a Response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SessionBenchmark {
+    @Param({ "0", "5" })
+    public int latencyMillis;
+
+    @Param({ "1024", "1048576" })
+    public int outputBytes;
+
+    private FakeWinRMServer server;
+    private Session session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new FakeWinRMServer(latencyMillis, outputBytes, 2);
+        session = new Session(server.getEndpoint(), "user", "password");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+        server.close();
+    }
+
+    @Benchmark
+    public Response runCmd() throws Exception {
+        return session.runCmd("ipconfig", List.of("/all"));
+    }
+}
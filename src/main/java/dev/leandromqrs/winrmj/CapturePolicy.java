@@ -0,0 +1,112 @@
+package dev.leandromqrs.winrmj;
+
+import java.nio.file.Path;
+
+/**
+ * How much of a stream's output a Session keeps for the Response, and where; see
+ * {@link Session#setStdOutCapture}. Output that is not kept is still received, so the
+ * command never blocks on it.
+ */
+public final class CapturePolicy {
+    enum Kind {
+        CAPPED, HEAD_TAIL, SPILL
+    }
+
+    private final Kind kind;
+    private final long maxBytes;
+    private final int headBytes;
+    private final int tailBytes;
+    private final int threshold;
+    private final Path directory;
+
+    private CapturePolicy(Kind kind, long maxBytes, int headBytes, int tailBytes, int threshold, Path directory) {
+        this.kind = kind;
+        this.maxBytes = maxBytes;
+        this.headBytes = headBytes;
+        this.tailBytes = tailBytes;
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Keeps the first maxBytes bytes in memory and drops the rest, the response is
+     * flagged truncated if there was more.
+     */
+    public static CapturePolicy capped(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        return new CapturePolicy(Kind.CAPPED, maxBytes, 0, 0, 0, null);
+    }
+
+    /**
+     * Keeps the first headBytes and the last tailBytes bytes, the latter in a ring
+     * buffer, so that memory stays at their sum however much the command writes. The
+     * response is flagged truncated if output in between was dropped; the text of the two
+     * parts is joined as is.
+     */
+    public static CapturePolicy headTail(int headBytes, int tailBytes) {
+        if (headBytes < 0 || tailBytes < 0) {
+            throw new IllegalArgumentException(String.format("headBytes and tailBytes must not be negative: %d, %d", headBytes, tailBytes));
+        }
+        return new CapturePolicy(Kind.HEAD_TAIL, (long) headBytes + tailBytes, headBytes, tailBytes, 0, null);
+    }
+
+    /**
+     * Same as {@link #spill(int, long, Path)} in the default temporary-file directory.
+     */
+    public static CapturePolicy spill(int threshold, long maxBytes) {
+        return spill(threshold, maxBytes, null);
+    }
+
+    /**
+     * Keeps the first threshold bytes in memory and writes the rest to a temporary file,
+     * up to maxBytes in all. The response maps the file rather than read it back, see
+     * {@link Response#getStdOutStream()}, and the file is deleted as soon as the output
+     * is complete; its space is only freed once the response is garbage collected.
+     *
+     * @param directory where the file goes, null for the default temporary-file directory
+     */
+    public static CapturePolicy spill(int threshold, long maxBytes, Path directory) {
+        if (threshold < 0 || maxBytes < threshold) {
+            throw new IllegalArgumentException(String.format("threshold must be between 0 and maxBytes: %d, %d", threshold, maxBytes));
+        }
+        return new CapturePolicy(Kind.SPILL, maxBytes, 0, 0, threshold, directory);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getHeadBytes() {
+        return headBytes;
+    }
+
+    int getTailBytes() {
+        return tailBytes;
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case HEAD_TAIL:
+                return String.format("<CapturePolicy head %d, tail %d>", headBytes, tailBytes);
+            case SPILL:
+                return String.format("<CapturePolicy spill past %d, max %d>", threshold, maxBytes);
+            default:
+                return String.format("<CapturePolicy max %d>", maxBytes);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package dev.leandromqrs.winrmj;
+
+import dev.leandromqrs.winrmj.protocol.OutputDecoder;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The output of one stream as a Response holds it: either text decoded as it was
+ * received, or bytes, on the heap or mapped from a spill file, decoded when asked for.
+ */
+final class CapturedOutput {
+    // bytes enough for the 20 chars of a preview in any codepage
+    private static final int PREVIEW_BYTES = 80;
+
+    private final ByteBuffer[] segments;
+    private final Charset charset;
+    private final boolean truncated;
+    private String text;
+
+    private CapturedOutput(String text, ByteBuffer[] segments, Charset charset, boolean truncated) {
+        this.text = text;
+        this.segments = segments;
+        this.charset = charset;
+        this.truncated = truncated;
+    }
+
+    static CapturedOutput ofText(String text, boolean truncated) {
+        return new CapturedOutput(text, null, null, truncated);
+    }
+
+    /**
+     * @param segments the output in order, read from their position to their limit
+     */
+    static CapturedOutput ofBytes(Charset charset, boolean truncated, ByteBuffer... segments) {
+        return new CapturedOutput(null, segments, charset, truncated);
+    }
+
+    synchronized String text() {
+        if (text == null) {
+            OutputDecoder decoder = new OutputDecoder(charset, Long.MAX_VALUE);
+            for (ByteBuffer segment : segments) {
+                decoder.write(segment.duplicate());
+            }
+            text = decoder.finish();
+        }
+        return text;
+    }
+
+    /**
+     * @return a copy of the bytes unless they are in one array already, null if only the
+     *         text was kept
+     * @throws IllegalStateException if there are more than an array holds
+     */
+    byte[] bytes() {
+        if (segments == null) {
+            return null;
+        }
+        if (segments.length == 1 && segments[0].hasArray() && segments[0].arrayOffset() == 0 && segments[0].position() == 0
+                && segments[0].remaining() == segments[0].array().length) {
+            return segments[0].array();
+        }
+        long size = size();
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException(String.format("%d bytes of output do not fit in an array, read them as a stream", size));
+        }
+        byte[] bytes = new byte[(int) size];
+        int offset = 0;
+        for (ByteBuffer segment : segments) {
+            int length = segment.remaining();
+            segment.duplicate().get(bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the bytes, null if only the text was kept
+     */
+    InputStream stream() {
+        return segments == null ? null : new SegmentInputStream(segments);
+    }
+
+    /**
+     * @return the bytes kept, -1 if only the text was
+     */
+    long size() {
+        if (segments == null) {
+            return -1;
+        }
+        long size = 0;
+        for (ByteBuffer segment : segments) {
+            size += segment.remaining();
+        }
+        return size;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the first chars of the text, without decoding all of the bytes for it,
+     *         followed by "..." if there is more of it or output was dropped
+     */
+    String preview(int chars) {
+        String preview = text;
+        boolean more = truncated;
+        if (preview == null) {
+            long size = size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, PREVIEW_BYTES));
+            for (ByteBuffer segment : segments) {
+                ByteBuffer part = segment.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), head.remaining()));
+                head.put(part);
+            }
+            preview = new String(head.array(), 0, head.position(), charset);
+            more |= head.position() < size;
+        }
+        if (preview.length() > chars) {
+            preview = preview.substring(0, chars);
+            more = true;
+        }
+        return more ? preview + "..." : preview;
+    }
+
+    private static class SegmentInputStream extends InputStream {
+        private final ByteBuffer[] segments;
+        private int index;
+
+        SegmentInputStream(ByteBuffer[] segments) {
+            this.segments = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                this.segments[i] = segments[i].duplicate();
+            }
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer segment = current();
+            return segment == null ? -1 : segment.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer segment = current();
+            if (segment == null) {
+                return -1;
+            }
+            int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            ByteBuffer segment;
+            while (skipped < n && (segment = current()) != null) {
+                int step = (int) Math.min(n - skipped, segment.remaining());
+                segment.position(segment.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer segment = current();
+            return segment == null ? 0 : segment.remaining();
+        }
+
+        private ByteBuffer current() {
+            while (index < segments.length && !segments[index].hasRemaining()) {
+                index++;
+            }
+            return index < segments.length ? segments[index] : null;
+        }
+    }
+}
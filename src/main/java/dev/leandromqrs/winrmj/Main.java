@@ -3,7 +3,7 @@ package dev.leandromqrs.winrmj;
 import java.util.*;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
         Session session = new Session("windows-host.example.com", "username", "password");
         Object result = session.runCmd("ipconfig", List.of("/all"));
 
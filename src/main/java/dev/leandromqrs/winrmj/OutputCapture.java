@@ -0,0 +1,236 @@
+package dev.leandromqrs.winrmj;
+
+import dev.leandromqrs.winrmj.protocol.OutputDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the output of one stream of a command as its {@link CapturePolicy} says, until
+ * the command is done and it becomes the {@link CapturedOutput} of the Response. Writes
+ * come from the threads that complete the Receives, one at a time.
+ */
+abstract class OutputCapture {
+
+    abstract void write(byte[] buffer, int offset, int length) throws IOException;
+
+    abstract CapturedOutput finish() throws IOException;
+
+    /**
+     * Lets go of what was kept, for a command that failed.
+     */
+    void discard() {
+    }
+
+    /**
+     * @param raw keep capped output as bytes rather than decode it as it arrives; the
+     *            other policies always keep bytes
+     */
+    static OutputCapture of(CapturePolicy policy, Charset charset, boolean raw) {
+        switch (policy.getKind()) {
+            case HEAD_TAIL:
+                return new HeadTail(policy.getHeadBytes(), policy.getTailBytes(), charset);
+            case SPILL:
+                return new Spill(policy.getThreshold(), policy.getMaxBytes(), policy.getDirectory(), charset);
+            default:
+                return raw ? new Capped((int) policy.getMaxBytes(), charset) : new Decoded(policy.getMaxBytes(), charset);
+        }
+    }
+
+    private static class Decoded extends OutputCapture {
+        private final OutputDecoder decoder;
+
+        Decoded(long limit, Charset charset) {
+            this.decoder = new OutputDecoder(charset, limit);
+        }
+
+        @Override
+        void write(byte[] buffer, int offset, int length) {
+            decoder.write(buffer, offset, length);
+        }
+
+        @Override
+        CapturedOutput finish() {
+            return CapturedOutput.ofText(decoder.finish(), decoder.isTruncated());
+        }
+    }
+
+    private static class Capped extends OutputCapture {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+        private final Charset charset;
+        private boolean truncated;
+
+        Capped(int limit, Charset charset) {
+            this.limit = limit;
+            this.charset = charset;
+        }
+
+        @Override
+        synchronized void write(byte[] buffer, int offset, int length) {
+            int room = limit - bytes.size();
+            if (length > room) {
+                truncated = true;
+                length = Math.max(room, 0);
+            }
+            bytes.write(buffer, offset, length);
+        }
+
+        @Override
+        synchronized CapturedOutput finish() {
+            return CapturedOutput.ofBytes(charset, truncated, ByteBuffer.wrap(bytes.toByteArray()));
+        }
+    }
+
+    /**
+     * The head fills first, then the tail goes round its ring for as long as the command
+     * writes.
+     */
+    private static class HeadTail extends OutputCapture {
+        private final byte[] head;
+        private final byte[] tail;
+        private final Charset charset;
+        private int headSize;
+        // next position in the ring and bytes it holds
+        private int tailEnd;
+        private int tailSize;
+        private boolean truncated;
+
+        HeadTail(int headBytes, int tailBytes, Charset charset) {
+            this.head = new byte[headBytes];
+            this.tail = new byte[tailBytes];
+            this.charset = charset;
+        }
+
+        @Override
+        synchronized void write(byte[] buffer, int offset, int length) {
+            int toHead = Math.min(length, head.length - headSize);
+            System.arraycopy(buffer, offset, head, headSize, toHead);
+            headSize += toHead;
+            offset += toHead;
+            length -= toHead;
+            if (length == 0) {
+                return;
+            }
+            if (length > tail.length) {
+                // only the end of it stays in the ring anyway
+                truncated = true;
+                offset += length - tail.length;
+                length = tail.length;
+            }
+            if (tailSize + length > tail.length) {
+                truncated = true;
+            }
+            int first = Math.min(length, tail.length - tailEnd);
+            System.arraycopy(buffer, offset, tail, tailEnd, first);
+            System.arraycopy(buffer, offset + first, tail, 0, length - first);
+            tailEnd = (tailEnd + length) % Math.max(tail.length, 1);
+            tailSize = Math.min(tailSize + length, tail.length);
+        }
+
+        @Override
+        synchronized CapturedOutput finish() {
+            ByteBuffer first = ByteBuffer.wrap(head, 0, headSize);
+            if (tailSize < tail.length) {
+                return CapturedOutput.ofBytes(charset, truncated, first, ByteBuffer.wrap(tail, 0, tailSize));
+            }
+            // a full ring starts where the next byte would have gone
+            return CapturedOutput.ofBytes(charset, truncated, first,
+                    ByteBuffer.wrap(tail, tailEnd, tail.length - tailEnd), ByteBuffer.wrap(tail, 0, tailEnd));
+        }
+    }
+
+    /**
+     * Memory up to the threshold, a temporary file past it. The file is opened to be
+     * deleted when its channel closes, which finish does once it is mapped; the mapping
+     * keeps the data readable until it is garbage collected.
+     */
+    private static class Spill extends OutputCapture {
+        // a single mapping cannot be larger than an array
+        private static final long MAX_MAPPING = 1L << 30;
+
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private final int threshold;
+        private final long limit;
+        private final Path directory;
+        private final Charset charset;
+        private FileChannel file;
+        private long size;
+        private boolean truncated;
+
+        Spill(int threshold, long limit, Path directory, Charset charset) {
+            this.threshold = threshold;
+            this.limit = limit;
+            this.directory = directory;
+            this.charset = charset;
+        }
+
+        @Override
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            long room = limit - size;
+            if (length > room) {
+                truncated = true;
+                length = (int) Math.max(room, 0);
+            }
+            size += length;
+            int toMemory = Math.min(length, threshold - memory.size());
+            memory.write(buffer, offset, toMemory);
+            if (length == toMemory) {
+                return;
+            }
+            if (file == null) {
+                Path path = directory != null ? Files.createTempFile(directory, "winrmj-", ".out") : Files.createTempFile("winrmj-", ".out");
+                try {
+                    file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                } catch (IOException e) {
+                    Files.deleteIfExists(path);
+                    throw e;
+                }
+            }
+            ByteBuffer rest = ByteBuffer.wrap(buffer, offset + toMemory, length - toMemory);
+            while (rest.hasRemaining()) {
+                file.write(rest);
+            }
+        }
+
+        @Override
+        synchronized CapturedOutput finish() throws IOException {
+            List<ByteBuffer> segments = new ArrayList<>();
+            segments.add(ByteBuffer.wrap(memory.toByteArray()));
+            if (file != null) {
+                try {
+                    long length = file.size();
+                    for (long position = 0; position < length; position += MAX_MAPPING) {
+                        MappedByteBuffer mapping = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING, length - position));
+                        segments.add(mapping);
+                    }
+                } finally {
+                    discard();
+                }
+            }
+            return CapturedOutput.ofBytes(charset, truncated, segments.toArray(new ByteBuffer[0]));
+        }
+
+        @Override
+        synchronized void discard() {
+            if (file == null) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing left to do about it, the file is gone or will be with the process
+            }
+            file = null;
+        }
+    }
+}
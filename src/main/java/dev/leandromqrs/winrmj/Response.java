@@ -1,21 +1,103 @@
 package dev.leandromqrs.winrmj;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 public class Response {
-    private String stdOut;
-    private String stdErr;
+    private CapturedOutput stdOut;
+    private CapturedOutput stdErr;
     private int statusCode;
 
     public Response(String stdOut, String stdErr, int statusCode) {
+        this(stdOut, stdErr, statusCode, false, false);
+    }
+
+    /**
+     * @param stdOutTruncated whether output beyond the capture limit was dropped
+     */
+    public Response(String stdOut, String stdErr, int statusCode, boolean stdOutTruncated, boolean stdErrTruncated) {
+        this(CapturedOutput.ofText(stdOut, stdOutTruncated), CapturedOutput.ofText(stdErr, stdErrTruncated), statusCode);
+    }
+
+    /**
+     * Output kept as received, see {@link Session#setRawOutput}; it is only decoded if
+     * asked for as text.
+     *
+     * @param charset the one of the shell's codepage
+     */
+    public Response(byte[] stdOut, byte[] stdErr, Charset charset, int statusCode, boolean stdOutTruncated, boolean stdErrTruncated) {
+        this(CapturedOutput.ofBytes(charset, stdOutTruncated, ByteBuffer.wrap(stdOut)),
+                CapturedOutput.ofBytes(charset, stdErrTruncated, ByteBuffer.wrap(stdErr)), statusCode);
+    }
+
+    Response(CapturedOutput stdOut, CapturedOutput stdErr, int statusCode) {
         this.stdOut = stdOut;
         this.stdErr = stdErr;
         this.statusCode = statusCode;
     }
 
+    /**
+     * Decodes output kept as bytes the first time, all of it; read output spilled to
+     * disk through {@link #getStdOutStream()} instead.
+     */
+    public String getStdOut() {
+        return stdOut.text();
+    }
+
+    /**
+     * @see #getStdOut()
+     */
+    public String getStdErr() {
+        return stdErr.text();
+    }
+
+    /**
+     * @return the output as received, null if it was decoded as it arrived, see
+     *         {@link CapturePolicy}
+     * @throws IllegalStateException if it was spilled and is too large for an array
+     */
+    public byte[] getStdOutBytes() {
+        return stdOut.bytes();
+    }
+
+    /**
+     * @see #getStdOutBytes()
+     */
+    public byte[] getStdErrBytes() {
+        return stdErr.bytes();
+    }
+
+    /**
+     * @return the output as received, read from memory or from the mapped spill file
+     *         without copying it to the heap, null if it was decoded as it arrived
+     */
+    public InputStream getStdOutStream() {
+        return stdOut.stream();
+    }
+
+    /**
+     * @see #getStdOutStream()
+     */
+    public InputStream getStdErrStream() {
+        return stdErr.stream();
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean isStdOutTruncated() {
+        return stdOut.isTruncated();
+    }
+
+    public boolean isStdErrTruncated() {
+        return stdErr.isTruncated();
+    }
+
     @Override
     public String toString() {
-        // TODO: put three dots at the end if out/err was truncated
         return String.format("<Response code %d, out \"%s\", err \"%s\">",
-                statusCode, stdOut.substring(0, Math.min(stdOut.length(), 20)),
-                stdErr.substring(0, Math.min(stdErr.length(), 20)));
+                statusCode, stdOut.preview(20), stdErr.preview(20));
     }
 }
@@ -0,0 +1,105 @@
+package dev.leandromqrs.winrmj;
+
+import dev.leandromqrs.winrmj.protocol.CommandOutput;
+import dev.leandromqrs.winrmj.protocol.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A command started by {@link Session#startCmd}. Its output is streamed rather than
+ * collected; closing it terminates the command and gives its shell back to the pool.
+ * One dropped without being closed is caught by the pool's reaper, which deletes its
+ * shell.
+ */
+public class RunningCommand implements Closeable {
+    private final Protocol protocol;
+    private final ShellPool shells;
+    private final ShellPool.PooledShell shell;
+    private final String commandId;
+    private final CommandOutput output;
+    private final Charset charset;
+    private boolean closed;
+
+    RunningCommand(Protocol protocol, ShellPool shells, ShellPool.PooledShell shell, String commandId, CommandOutput output, Charset charset) {
+        this.protocol = protocol;
+        this.shells = shells;
+        this.shell = shell;
+        this.commandId = commandId;
+        this.output = output;
+        this.charset = charset;
+    }
+
+    /**
+     * Streams stdin to the command until the end of the input, which closes stdin of the
+     * command. Read the output on another thread meanwhile if the command writes while it
+     * reads, see {@link Protocol#sendInput(String, String, InputStream)}.
+     *
+     * @return bytes sent
+     */
+    public long sendInput(InputStream in) throws IOException {
+        try {
+            return protocol.sendInput(shell.getShellId(), commandId, in);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(String.format("Failed to send input to command %s in shell %s", commandId, shell.getShellId()), e);
+        }
+    }
+
+    public InputStream getStdout() {
+        return output.getStdout();
+    }
+
+    public InputStream getStderr() {
+        return output.getStderr();
+    }
+
+    /**
+     * @return stdout decoded in the codepage of the shell, see {@link ShellPoolOptions#setCodepage}
+     */
+    public Reader getStdoutReader() {
+        return new InputStreamReader(output.getStdout(), charset);
+    }
+
+    /**
+     * @return stderr decoded in the codepage of the shell, see {@link ShellPoolOptions#setCodepage}
+     */
+    public Reader getStderrReader() {
+        return new InputStreamReader(output.getStderr(), charset);
+    }
+
+    /**
+     * @see CommandOutput#waitFor()
+     */
+    public int waitFor() throws IOException {
+        return output.waitFor();
+    }
+
+    /**
+     * @return the exit code, -1 while the command is running
+     */
+    public int getExitCode() {
+        return output.getExitCode();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        output.close();
+        try {
+            protocol.cleanupCommand(shell.getShellId(), commandId);
+        } catch (Exception e) {
+            shells.invalidate(shell);
+            throw new IOException(String.format("Failed to clean up command %s in shell %s", commandId, shell.getShellId()), e);
+        }
+        shells.release(shell);
+    }
+}
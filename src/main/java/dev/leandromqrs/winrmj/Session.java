@@ -1,22 +1,460 @@
 package dev.leandromqrs.winrmj;
 
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+import dev.leandromqrs.winrmj.metrics.Operation;
+import dev.leandromqrs.winrmj.protocol.AsyncProtocol;
+import dev.leandromqrs.winrmj.protocol.Codepages;
 import dev.leandromqrs.winrmj.protocol.Protocol;
+import dev.leandromqrs.winrmj.protocol.ReceiveSink;
+import dev.leandromqrs.winrmj.protocol.WmiQuery;
+import dev.leandromqrs.winrmj.transport.TransportOptions;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+
+public class Session implements AutoCloseable {
+    // per stream, output past that is drained but not kept
+    public static final int DEFAULT_CAPTURE_LIMIT = 16 * 1024 * 1024;
 
-public class Session {
     private final Protocol protocol;
+    private final ShellPool shells;
+    private CapturePolicy stdOutCapture = CapturePolicy.capped(DEFAULT_CAPTURE_LIMIT);
+    private CapturePolicy stdErrCapture = CapturePolicy.capped(DEFAULT_CAPTURE_LIMIT);
+    private boolean rawOutput;
 
     public Session(String url, String username, String password) {
-        this.protocol = new Protocol(url, username, password);
+        this(url, username, password, new ShellPoolOptions());
+    }
+
+    public Session(String url, String username, String password, ShellPoolOptions shellPoolOptions) {
+        this(url, username, password, shellPoolOptions, new TransportOptions());
+    }
+
+    public Session(String url, String username, String password, ShellPoolOptions shellPoolOptions, TransportOptions transportOptions) {
+        this.protocol = new Protocol(url, "plaintext", username, password, null, null, null, transportOptions);
+        this.shells = new ShellPool(protocol, shellPoolOptions);
+    }
+
+    /**
+     * Runs commands over a Protocol built by the caller, a Kerberos one for instance.
+     */
+    public Session(Protocol protocol, ShellPoolOptions shellPoolOptions) {
+        this.protocol = protocol;
+        this.shells = new ShellPool(protocol, shellPoolOptions);
+    }
+
+    /**
+     * Keeps up to captureLimit bytes of each stream, see {@link CapturePolicy#capped}.
+     */
+    public void setCaptureLimit(int captureLimit) {
+        setStdOutCapture(CapturePolicy.capped(captureLimit));
+        setStdErrCapture(CapturePolicy.capped(captureLimit));
+    }
+
+    /**
+     * How much of stdout responses keep, the first {@link #DEFAULT_CAPTURE_LIMIT} bytes
+     * unless told otherwise.
+     */
+    public void setStdOutCapture(CapturePolicy stdOutCapture) {
+        this.stdOutCapture = Objects.requireNonNull(stdOutCapture, "stdOutCapture");
+    }
+
+    /**
+     * @see #setStdOutCapture(CapturePolicy)
+     */
+    public void setStdErrCapture(CapturePolicy stdErrCapture) {
+        this.stdErrCapture = Objects.requireNonNull(stdErrCapture, "stdErrCapture");
+    }
+
+    /**
+     * Has responses keep capped output as received rather than decode it, see
+     * {@link Response#getStdOutBytes()}; for commands whose output is not text, or is
+     * not in the codepage of the shell. The other capture policies always keep bytes.
+     */
+    public void setRawOutput(boolean rawOutput) {
+        this.rawOutput = rawOutput;
+    }
+
+    public ShellPool getShellPool() {
+        return shells;
+    }
+
+    /**
+     * @return the protocol commands go through, e.g. to set a listener on
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public Response runCmd(String command, List<String> args) throws Exception {
+        Started started = start(command, args);
+        String shellId = started.shell.getShellId();
+        Capture capture = new Capture();
+        int statusCode;
+        try {
+            statusCode = protocol.getCommandOutput(shellId, started.commandId, capture);
+            protocol.cleanupCommand(shellId, started.commandId);
+        } catch (Exception e) {
+            capture.discard();
+            shells.invalidate(started.shell);
+            throw e;
+        }
+        shells.release(started.shell);
+        return capture.toResponse(statusCode);
+    }
+
+    /**
+     * Same as {@link #runCmd(String, List)}, with stdin streamed from the given input
+     * until its end. Output is received on the async path while this thread sends, so a
+     * command that writes while it reads never waits for its input to be uploaded first.
+     * The input is not closed.
+     */
+    public Response runCmd(String command, List<String> args, InputStream stdin) throws Exception {
+        Capture capture = new Capture();
+        int statusCode;
+        try {
+            statusCode = run(command, args, (shellId, commandId) -> protocol.sendInput(shellId, commandId, stdin), capture);
+        } catch (Exception e) {
+            capture.discard();
+            throw e;
+        }
+        return capture.toResponse(statusCode);
+    }
+
+    /**
+     * Runs the command with its output handed to the sink as it arrives rather than
+     * captured, and stdin, unless null, sent from the buffer meanwhile, see
+     * {@link Protocol#sendInput(String, String, ByteBuffer)}. The sink is called from
+     * the threads that complete the Receives, one call at a time.
+     *
+     * @return the exit code
+     */
+    public int runCmd(String command, List<String> args, ByteBuffer stdin, ReceiveSink sink) throws Exception {
+        return runCmd(command, args, stdin, length -> { }, sink);
+    }
+
+    /**
+     * Same as {@link #runCmd(String, List, ByteBuffer, ReceiveSink)}, with the bytes of
+     * stdin told to progress Send by Send, see
+     * {@link Protocol#sendInput(String, String, ByteBuffer, LongConsumer)}.
+     */
+    public int runCmd(String command, List<String> args, ByteBuffer stdin, LongConsumer progress, ReceiveSink sink) throws Exception {
+        return run(command, args, stdin == null ? null : (shellId, commandId) -> protocol.sendInput(shellId, commandId, stdin, progress), sink);
+    }
+
+    /**
+     * Same as {@link #runCmd} without blocking: the shell, the command, the Receive loop
+     * and the signal are chained on the completion of the previous request, so commands
+     * in flight do not hold a thread each. Cancelling the future stops polling and deletes
+     * the shell, which terminates the command.
+     */
+    public CompletableFuture<Response> runCmdAsync(String command, List<String> args) {
+        AsyncProtocol async = protocol.async();
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        startAsync(command, args.toArray(new String[0]), 1).whenComplete((started, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            String shellId = started.shell.getShellId();
+            Capture capture = new Capture();
+            CompletableFuture<Integer> output = async.getCommandOutput(shellId, started.commandId, capture);
+            // a no-op once the output is complete, stops polling if the caller cancelled first
+            result.whenComplete((response, ignored) -> output.cancel(false));
+            output.thenCompose(statusCode -> async.cleanupCommand(shellId, started.commandId).thenApply(ignored -> statusCode)).whenComplete((statusCode, failure) -> {
+                if (failure != null) {
+                    capture.discard();
+                    shells.invalidate(started.shell);
+                    result.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+                    return;
+                }
+                shells.release(started.shell);
+                try {
+                    result.complete(capture.toResponse(statusCode));
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * Runs the command lines at once in one shell, see {@link #runCmdsAsync}.
+     *
+     * @return the responses in the order of the commands
+     */
+    public List<Response> runCmds(List<String> commandLines) throws Exception {
+        try {
+            return runCmdsAsync(commandLines).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
     }
 
-    public Response runCmd(String command, List<String> args) {
-        String shellId = protocol.openShell();
-        String commandId = protocol.runCommand(shellId, command, args);
-        Response response = new Response(protocol.getCommandOutput(shellId, commandId));
-        protocol.cleanupCommand(shellId, commandId);
-        protocol.closeShell(shellId);
-        return response;
+    /**
+     * Runs the command lines, arguments included, in one pooled shell, up to
+     * maxCommandsPerShell of them at once; a command starts as soon as an earlier one is
+     * done. Every command has a Receive loop of its own and the loops interleave on the
+     * transport's connections, so a batch of short commands takes about as long as its
+     * slowest one instead of all of them in a row.
+     * <p>
+     * The first command to fail fails the batch; no more commands are started, those
+     * running are waited for and the shell is deleted. Cancelling the future does the
+     * same.
+     *
+     * @return the responses in the order of the commands
+     */
+    public CompletableFuture<List<Response>> runCmdsAsync(List<String> commandLines) {
+        if (commandLines.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        List<String> commands = List.copyOf(commandLines);
+        CompletableFuture<List<Response>> result = new CompletableFuture<>();
+        startAsync(commands.get(0), new String[0], 1).whenComplete((started, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            new Batch(started.shell, commands, result).start(started.commandId);
+        });
+        return result;
+    }
+
+    /**
+     * Starts a command and returns right away; its output is read from the returned
+     * handle as it is produced. The caller has to close it to give the shell back.
+     */
+    public RunningCommand startCmd(String command, List<String> args) throws Exception {
+        Started started = start(command, args);
+        return new RunningCommand(protocol, shells, started.shell, started.commandId,
+                protocol.openCommandOutput(started.shell.getShellId(), started.commandId), charset());
+    }
+
+    /**
+     * Runs a WQL query without a shell, see {@link Protocol#queryWmi}. Close the query
+     * when done with it.
+     */
+    public WmiQuery queryWmi(String namespace, String wql) throws Exception {
+        return protocol.queryWmi(namespace, wql);
+    }
+
+    /**
+     * Deletes the pooled shells.
+     */
+    @Override
+    public void close() {
+        shells.close();
+    }
+
+    /**
+     * Runs the command in a pooled shell. Shells the server reaped behind the pool's back
+     * are dropped and the command is retried in another one.
+     */
+    private Started start(String command, List<String> args) throws Exception {
+        String[] arguments = args.toArray(new String[0]);
+        ShellPool.PooledShell shell = shells.borrow();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Started(shell, protocol.runCommand(shell.getShellId(), command, arguments, false, false));
+            } catch (WinRMWSManFault e) {
+                if (attempt > shells.getOptions().getMaxShells() || !Protocol.SHELL_NOT_FOUND_CODE.equals(e.getCode())) {
+                    shells.release(shell);
+                    throw e;
+                }
+                shells.discard(shell);
+                protocol.getListener().onRetry(Operation.COMMAND);
+            } catch (Exception e) {
+                shells.invalidate(shell);
+                throw e;
+            }
+            shell = shells.borrow();
+        }
+    }
+
+    private int run(String command, List<String> args, Input stdin, ReceiveSink sink) throws Exception {
+        Started started = start(command, args);
+        String shellId = started.shell.getShellId();
+        CompletableFuture<Integer> output = protocol.async().getCommandOutput(shellId, started.commandId, sink);
+        int statusCode;
+        try {
+            if (stdin != null) {
+                stdin.send(shellId, started.commandId);
+            }
+            statusCode = output.get();
+            protocol.cleanupCommand(shellId, started.commandId);
+        } catch (Exception e) {
+            output.cancel(false);
+            shells.invalidate(started.shell);
+            if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        shells.release(started.shell);
+        return statusCode;
+    }
+
+    private CompletableFuture<Started> startAsync(String command, String[] arguments, int attempt) {
+        return shells.borrowAsync().thenCompose(shell -> protocol.async().runCommand(shell.getShellId(), command, arguments, false, false).handle((commandId, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(new Started(shell, commandId));
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof WinRMWSManFault) {
+                if (attempt <= shells.getOptions().getMaxShells() && Protocol.SHELL_NOT_FOUND_CODE.equals(((WinRMWSManFault) cause).getCode())) {
+                    shells.discard(shell);
+                    protocol.getListener().onRetry(Operation.COMMAND);
+                    return startAsync(command, arguments, attempt + 1);
+                }
+                shells.release(shell);
+            } else {
+                shells.invalidate(shell);
+            }
+            return CompletableFuture.<Started>failedFuture(cause);
+        }).thenCompose(started -> started));
+    }
+
+    /**
+     * One runCmdsAsync call. Lanes run commands one after the other, as many lanes as
+     * commands may run at once in the shell.
+     */
+    private class Batch {
+        private final ShellPool.PooledShell shell;
+        private final List<String> commands;
+        private final CompletableFuture<List<Response>> result;
+        private final Response[] responses;
+        private final AtomicInteger next = new AtomicInteger(1);
+        private final AtomicInteger lanes;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Batch(ShellPool.PooledShell shell, List<String> commands, CompletableFuture<List<Response>> result) {
+            this.shell = shell;
+            this.commands = commands;
+            this.result = result;
+            this.responses = new Response[commands.size()];
+            this.lanes = new AtomicInteger(Math.min(commands.size(), shells.getOptions().getMaxCommandsPerShell()));
+            result.whenComplete((ignored, error) -> {
+                if (error instanceof CancellationException) {
+                    failure.compareAndSet(null, error);
+                }
+            });
+        }
+
+        void start(String firstCommandId) {
+            // counted before the first lane can run out of commands and leave
+            int count = lanes.get();
+            // the first command went through startAsync, which also got rid of stale shells
+            collect(0, CompletableFuture.completedFuture(firstCommandId));
+            for (int lane = 1; lane < count; lane++) {
+                lane();
+            }
+        }
+
+        private void lane() {
+            int index = next.getAndIncrement();
+            if (index >= commands.size() || failure.get() != null) {
+                if (lanes.decrementAndGet() == 0) {
+                    finish();
+                }
+                return;
+            }
+            collect(index, protocol.async().runCommand(shell.getShellId(), commands.get(index), new String[0], false, false));
+        }
+
+        private void collect(int index, CompletableFuture<String> commandId) {
+            AsyncProtocol async = protocol.async();
+            String shellId = shell.getShellId();
+            Capture capture = new Capture();
+            commandId.thenCompose(id -> async.getCommandOutput(shellId, id, capture).thenCompose(statusCode -> async.cleanupCommand(shellId, id).thenApply(ignored -> statusCode))).whenComplete((statusCode, error) -> {
+                if (error != null) {
+                    capture.discard();
+                    failure.compareAndSet(null, error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    try {
+                        responses[index] = capture.toResponse(statusCode);
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                lane();
+            });
+        }
+
+        private void finish() {
+            Throwable error = failure.get();
+            if (error != null) {
+                shells.invalidate(shell);
+                result.completeExceptionally(error);
+                return;
+            }
+            shells.release(shell);
+            result.complete(List.of(responses));
+        }
+    }
+
+    private interface Input {
+        void send(String shellId, String commandId) throws Exception;
+    }
+
+    private static class Started {
+        final ShellPool.PooledShell shell;
+        final String commandId;
+
+        Started(ShellPool.PooledShell shell, String commandId) {
+            this.shell = shell;
+            this.commandId = commandId;
+        }
+    }
+
+    private Charset charset() {
+        return Codepages.charset(shells.getOptions().getCodepage());
+    }
+
+    /**
+     * Output of one command on its way to a Response, kept per stream as the session's
+     * capture policies say.
+     */
+    private class Capture implements ReceiveSink {
+        private final OutputCapture stdout;
+        private final OutputCapture stderr;
+
+        Capture() {
+            Charset charset = charset();
+            stdout = OutputCapture.of(stdOutCapture, charset, rawOutput);
+            stderr = OutputCapture.of(stdErrCapture, charset, rawOutput);
+        }
+
+        @Override
+        public void write(String commandId, String stream, byte[] buffer, int offset, int length) throws IOException {
+            (stream.equals("stdout") ? stdout : stderr).write(buffer, offset, length);
+        }
+
+        Response toResponse(int statusCode) throws IOException {
+            try {
+                return new Response(stdout.finish(), stderr.finish(), statusCode);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        void discard() {
+            stdout.discard();
+            stderr.discard();
+        }
     }
 }
@@ -0,0 +1,645 @@
+package dev.leandromqrs.winrmj;
+
+import dev.leandromqrs.winrmj.protocol.EnvelopeTemplates;
+import dev.leandromqrs.winrmj.protocol.Protocol;
+import dev.leandromqrs.winrmj.protocol.ShellInfo;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remote shells kept open for reuse by the commands of one Session.
+ * <p>
+ * A shell is opened with the configured IdleTimeOut and stops being handed out once it
+ * has been idle for most of it, since the server may reap it any moment after that.
+ * Shells the server reaped anyway are reported back through {@link #discard} by the
+ * caller, who sees a "shell not found" fault when running a command in them.
+ * <p>
+ * {@link #borrowAsync} queues callers instead of parking them; a released shell goes to
+ * the oldest queued caller before it goes back to the idle list. Shells are deleted in
+ * the background, only {@link #close} waits for the deletes to finish.
+ * <p>
+ * Borrowed shells are tracked: one that becomes unreachable before it was released or
+ * invalidated, say a RunningCommand that was never closed or a shell lost to an Error
+ * thrown halfway through a command, counts as leaked. Its slot is freed and the reaper
+ * deletes it on the server instead of leaving it to count against MaxShellsPerUser
+ * until its IdleTimeOut. The reaper also deletes the shells that expired while idle,
+ * every reapInterval, opens new ones to keep minShells open, and can clean up after a
+ * crashed process with {@link #reapRemote}.
+ */
+public class ShellPool {
+    // stop reusing shells at 90% of IdleTimeOut to stay clear of the server reaper
+    private static final double EXPIRY_RATIO = 0.9;
+    // one thread for every pool, it only renders envelopes and chains async deletes
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(daemonThreads("winrmj-reaper-"));
+    // tells when a borrowed shell was dropped without being given back
+    private static final Cleaner CLEANER = Cleaner.create(daemonThreads("winrmj-cleaner-"));
+    // shells of every pool of the JVM, which reapRemote leaves alone
+    private static final Set<String> TRACKED = ConcurrentHashMap.newKeySet();
+
+    private final Protocol protocol;
+    private final ShellPoolOptions options;
+    private final long expiryNanos;
+    // most recently used last, borrowed from the tail to keep warm shells warm
+    private final ArrayDeque<PooledShell> idle = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<PooledShell>> waiters = new ArrayDeque<>();
+    // ids of leaked shells the reaper has yet to delete
+    private final ArrayDeque<String> orphans = new ArrayDeque<>();
+    private final ScheduledFuture<?> ticks;
+    private final CompletableFuture<Integer> remoteReap;
+    private int open;
+    private int live;
+    private long created;
+    private long reused;
+    private long evicted;
+    private long leaked;
+    private long reaped;
+    private long reapFailures;
+    private boolean reaping;
+    private boolean closed;
+
+    public ShellPool(Protocol protocol, ShellPoolOptions options) {
+        this.protocol = protocol;
+        this.options = options;
+        this.expiryNanos = (long) (TimeUnit.SECONDS.toNanos(options.getIdleTimeout()) * EXPIRY_RATIO);
+        long interval = options.getReapInterval().toNanos();
+        Tick tick = new Tick(this);
+        this.ticks = REAPER.scheduleWithFixedDelay(tick, interval, interval, TimeUnit.NANOSECONDS);
+        tick.future = ticks;
+        this.remoteReap = options.getOrphanInactivity() != null ? reapRemote(options.getOrphanInactivity()) : null;
+        if (options.getMinShells() > 0) {
+            // opens the first minShells without waiting for a reapInterval
+            REAPER.execute(tick);
+        }
+    }
+
+    public ShellPoolOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Opens shells until minShells are available.
+     */
+    public void warmUp() throws Exception {
+        while (true) {
+            synchronized (this) {
+                if (closed || open >= options.getMinShells()) {
+                    return;
+                }
+                open++;
+            }
+            release(openShell());
+        }
+    }
+
+    public PooledShell borrow() throws Exception {
+        List<PooledShell> expired = new ArrayList<>();
+        try {
+            long deadline = System.nanoTime() + options.getBorrowTimeout().toNanos();
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("Shell pool is closed");
+                    }
+                    expire(System.nanoTime(), expired);
+                    PooledShell shell = idle.pollLast();
+                    if (shell != null) {
+                        shell.borrowed = true;
+                        reused++;
+                        return shell;
+                    }
+                    if (open < options.getMaxShells()) {
+                        open++;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IllegalStateException(String.format("No shell available within %s", options.getBorrowTimeout()));
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+        } finally {
+            closeQuietly(expired);
+        }
+        return openShell();
+    }
+
+    public CompletableFuture<PooledShell> borrowAsync() {
+        List<PooledShell> expired = new ArrayList<>();
+        CompletableFuture<PooledShell> waiter = null;
+        PooledShell shell = null;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Shell pool is closed"));
+            }
+            expire(System.nanoTime(), expired);
+            shell = idle.pollLast();
+            if (shell != null) {
+                shell.borrowed = true;
+                reused++;
+            } else if (open < options.getMaxShells()) {
+                open++;
+            } else {
+                waiter = new CompletableFuture<>();
+                waiters.addLast(waiter);
+            }
+        }
+        closeQuietly(expired);
+        if (shell != null) {
+            return CompletableFuture.completedFuture(shell);
+        }
+        if (waiter == null) {
+            return openShellAsync();
+        }
+        return waiter.orTimeout(options.getBorrowTimeout().toMillis(), TimeUnit.MILLISECONDS).exceptionally(e -> {
+            if (e instanceof TimeoutException) {
+                throw new IllegalStateException(String.format("No shell available within %s", options.getBorrowTimeout()));
+            }
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
+
+    /**
+     * Gives a borrowed shell back. Releasing it again, or after it was invalidated or
+     * discarded, does nothing.
+     */
+    public void release(PooledShell shell) {
+        shell.lastUsed = System.nanoTime();
+        while (true) {
+            CompletableFuture<PooledShell> waiter;
+            synchronized (this) {
+                if (!shell.borrowed) {
+                    return;
+                }
+                if (closed) {
+                    break;
+                }
+                waiter = nextWaiter();
+                if (waiter == null) {
+                    shell.borrowed = false;
+                    idle.addLast(shell);
+                    notifyAll();
+                    return;
+                }
+            }
+            // completed outside the lock, the caller's continuation runs right here
+            if (waiter.complete(shell)) {
+                synchronized (this) {
+                    reused++;
+                }
+                return;
+            }
+        }
+        invalidate(shell);
+    }
+
+    /**
+     * Drops a shell that may still exist on the server, deleting it there.
+     */
+    public void invalidate(PooledShell shell) {
+        if (retire(shell)) {
+            forget();
+            delete(List.of(shell.getShellId()), 0);
+        }
+    }
+
+    /**
+     * Drops a shell the server no longer knows about.
+     */
+    public void discard(PooledShell shell) {
+        if (retire(shell)) {
+            synchronized (this) {
+                evicted++;
+            }
+            forget();
+        }
+    }
+
+    /**
+     * Deletes shells that have been idle for too long, and opens new ones in the
+     * background in place of those the pool needs to keep minShells open.
+     */
+    public void evictExpired() {
+        List<PooledShell> expired = new ArrayList<>();
+        synchronized (this) {
+            expire(System.nanoTime(), expired);
+        }
+        closeQuietly(expired);
+        refill();
+    }
+
+    /**
+     * Lists the shells of the account on the server and deletes the cmd shells that no
+     * pool of this JVM knows about and that have gone without a request for at least
+     * minInactivity: those a process that died with shells open left behind, which count
+     * against MaxShellsPerUser until their IdleTimeOut runs out.
+     * <p>
+     * The server cannot tell whose they are, so minInactivity has to be longer than live
+     * clients leave their shells unused, 90% of the IdleTimeOut for pools of this library.
+     *
+     * @return the number of shells deleted
+     */
+    public CompletableFuture<Integer> reapRemote(Duration minInactivity) {
+        if (minInactivity.isNegative() || minInactivity.isZero()) {
+            throw new IllegalArgumentException("minInactivity must be positive: " + minInactivity);
+        }
+        return protocol.async().enumerateShells().thenCompose(shells -> {
+            List<String> shellIds = new ArrayList<>();
+            for (ShellInfo shell : shells) {
+                if (EnvelopeTemplates.RESOURCE_URI_CMD.equals(shell.getResourceUri()) && !TRACKED.contains(shell.getShellId())
+                        && shell.getInactivity() != null && shell.getInactivity().compareTo(minInactivity) >= 0) {
+                    shellIds.add(shell.getShellId());
+                }
+            }
+            return delete(shellIds, 0).thenApply(ignored -> {
+                synchronized (this) {
+                    reaped += shellIds.size();
+                }
+                return shellIds.size();
+            });
+        }).whenComplete((count, error) -> {
+            if (error != null) {
+                synchronized (this) {
+                    reapFailures++;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the {@link #reapRemote} started when the pool was created, see
+     *         {@link ShellPoolOptions#setOrphanInactivity}; null if none was
+     */
+    public CompletableFuture<Integer> getRemoteReap() {
+        return remoteReap;
+    }
+
+    /**
+     * Deletes the idle shells and the leaked ones not reaped yet, and waits for the
+     * deletes to finish. Shells still borrowed are deleted when they are released.
+     */
+    public void close() {
+        List<PooledShell> shells;
+        List<String> leftovers;
+        List<CompletableFuture<PooledShell>> pending;
+        ticks.cancel(false);
+        synchronized (this) {
+            closed = true;
+            shells = new ArrayList<>(idle);
+            open -= idle.size();
+            idle.clear();
+            pending = new ArrayList<>(waiters);
+            waiters.clear();
+            leftovers = new ArrayList<>(orphans);
+            orphans.clear();
+            reaped += leftovers.size();
+            notifyAll();
+        }
+        for (CompletableFuture<PooledShell> waiter : pending) {
+            waiter.completeExceptionally(new IllegalStateException("Shell pool is closed"));
+        }
+        CompletableFuture.allOf(closeQuietly(shells), delete(leftovers, 0)).join();
+    }
+
+    public synchronized int getOpen() {
+        return open;
+    }
+
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return shells the pool has open on the server, idle and borrowed ones
+     */
+    public synchronized int getLive() {
+        return live;
+    }
+
+    /**
+     * @return borrowed shells that were dropped without being released or invalidated
+     */
+    public synchronized long getLeaked() {
+        return leaked;
+    }
+
+    /**
+     * @return shells the reaper deleted, leaked ones and those found by reapRemote
+     */
+    public synchronized long getReaped() {
+        return reaped;
+    }
+
+    /**
+     * @return reapRemote calls that failed to list the shells on the server
+     */
+    public synchronized long getReapFailures() {
+        return reapFailures;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<ShellPool open %d, idle %d, live %d, created %d, reused %d, evicted %d, leaked %d, reaped %d, reapFailures %d>",
+                open, idle.size(), live, created, reused, evicted, leaked, reaped, reapFailures);
+    }
+
+    private PooledShell openShell() throws Exception {
+        try {
+            return track(protocol.openShell("stdin", "stdout stderr", null, null, false, options.getCodepage(), null, options.getIdleTimeout()));
+        } catch (Exception e) {
+            forget();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<PooledShell> openShellAsync() {
+        return protocol.async().openShell("stdin", "stdout stderr", null, null, false, options.getCodepage(), null, options.getIdleTimeout())
+                .handle((shellId, error) -> {
+                    if (error != null) {
+                        forget();
+                        throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                    }
+                    return track(shellId);
+                });
+    }
+
+    private void forget() {
+        CompletableFuture<PooledShell> waiter;
+        synchronized (this) {
+            open--;
+            notifyAll();
+            waiter = closed ? null : nextWaiter();
+            if (waiter == null) {
+                return;
+            }
+            // the freed slot goes to a queued caller
+            open++;
+        }
+        openShellAsync().whenComplete((shell, error) -> {
+            if (error != null) {
+                waiter.completeExceptionally(error);
+            } else if (!waiter.complete(shell)) {
+                release(shell);
+            }
+        });
+    }
+
+    private CompletableFuture<PooledShell> nextWaiter() {
+        CompletableFuture<PooledShell> waiter;
+        do {
+            waiter = waiters.pollFirst();
+            // timed out waiters are skipped
+        } while (waiter != null && waiter.isDone());
+        return waiter;
+    }
+
+    private void expire(long now, List<PooledShell> expired) {
+        while (!idle.isEmpty() && now - idle.peekFirst().lastUsed >= expiryNanos) {
+            expired.add(idle.pollFirst());
+            open--;
+            evicted++;
+        }
+    }
+
+    /**
+     * Opens shells without waiting for them until minShells are open, borrowed ones
+     * included. A shell that fails to open is tried again on the next tick.
+     */
+    private void refill() {
+        int missing;
+        synchronized (this) {
+            missing = closed ? 0 : options.getMinShells() - open;
+            if (missing <= 0) {
+                return;
+            }
+            open += missing;
+        }
+        for (int i = 0; i < missing; i++) {
+            openShellAsync().whenComplete((shell, error) -> {
+                if (shell != null) {
+                    release(shell);
+                }
+            });
+        }
+    }
+
+    private PooledShell track(String shellId) {
+        synchronized (this) {
+            created++;
+            live++;
+        }
+        TRACKED.add(shellId);
+        return new PooledShell(this, shellId);
+    }
+
+    /**
+     * Stops tracking a shell that is being deleted or is known to be gone.
+     *
+     * @return false if it was already
+     */
+    private boolean retire(PooledShell shell) {
+        synchronized (this) {
+            if (shell.tracker.retired) {
+                return false;
+            }
+            shell.tracker.retired = true;
+            shell.borrowed = false;
+            live--;
+        }
+        TRACKED.remove(shell.getShellId());
+        // unregisters it, the tracker sees it retired and does nothing
+        shell.cleanable.clean();
+        return true;
+    }
+
+    /**
+     * Called on the cleaner thread once a shell became unreachable. Only borrowed shells
+     * can, the pool holds on to the others.
+     */
+    private void orphaned(Tracker tracker) {
+        synchronized (this) {
+            if (tracker.retired) {
+                return;
+            }
+            tracker.retired = true;
+            live--;
+            leaked++;
+            orphans.addLast(tracker.shellId);
+        }
+        TRACKED.remove(tracker.shellId);
+        // the cleaner thread is not one to send requests from
+        REAPER.execute(() -> {
+            forget();
+            reapOrphans();
+        });
+    }
+
+    private void tick() {
+        evictExpired();
+        reapOrphans();
+    }
+
+    private void reapOrphans() {
+        List<String> shellIds;
+        synchronized (this) {
+            if (reaping || orphans.isEmpty()) {
+                return;
+            }
+            reaping = true;
+            shellIds = new ArrayList<>(orphans);
+            orphans.clear();
+        }
+        delete(shellIds, 0).whenComplete((ignored, error) -> {
+            synchronized (this) {
+                reaping = false;
+                reaped += shellIds.size();
+                if (orphans.isEmpty()) {
+                    return;
+                }
+            }
+            REAPER.execute(this::reapOrphans);
+        });
+    }
+
+    private CompletableFuture<Void> closeQuietly(List<PooledShell> shells) {
+        List<String> shellIds = new ArrayList<>(shells.size());
+        for (PooledShell shell : shells) {
+            if (retire(shell)) {
+                shellIds.add(shell.getShellId());
+            }
+        }
+        return delete(shellIds, 0);
+    }
+
+    /**
+     * Deletes the shells from the given index on, reapBatchSize of them at once and the
+     * next batch once those are done.
+     */
+    private CompletableFuture<Void> delete(List<String> shellIds, int from) {
+        if (from >= shellIds.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int to = Math.min(from + options.getReapBatchSize(), shellIds.size());
+        CompletableFuture<?>[] deletes = new CompletableFuture<?>[to - from];
+        for (int i = from; i < to; i++) {
+            // already gone or unreachable, the server reaps it in any case
+            deletes[i - from] = protocol.async().closeShell(shellIds.get(i)).exceptionally(e -> null);
+        }
+        return CompletableFuture.allOf(deletes).thenCompose(ignored -> delete(shellIds, to));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A shell handed out by the pool. Closing it releases it, so it can be borrowed in a
+     * try-with-resources block; one that is dropped instead is found by the reaper.
+     */
+    public static class PooledShell implements AutoCloseable {
+        private final ShellPool pool;
+        private final String shellId;
+        private final Tracker tracker;
+        private final Cleaner.Cleanable cleanable;
+        private long lastUsed;
+        // guarded by the pool, new shells go to a borrower first
+        private boolean borrowed = true;
+
+        PooledShell(ShellPool pool, String shellId) {
+            this.pool = pool;
+            this.shellId = shellId;
+            this.tracker = new Tracker(pool, shellId);
+            this.cleanable = CLEANER.register(this, tracker);
+            this.lastUsed = System.nanoTime();
+        }
+
+        public String getShellId() {
+            return shellId;
+        }
+
+        /**
+         * @see ShellPool#release
+         */
+        @Override
+        public void close() {
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Cleaning action of a PooledShell. It must not refer to the shell, which would then
+     * never become unreachable.
+     */
+    private static class Tracker implements Runnable {
+        final ShellPool pool;
+        final String shellId;
+        // guarded by the pool
+        boolean retired;
+
+        Tracker(ShellPool pool, String shellId) {
+            this.pool = pool;
+            this.shellId = shellId;
+        }
+
+        @Override
+        public void run() {
+            pool.orphaned(this);
+        }
+    }
+
+    /**
+     * Periodic work of a pool. The reaper only holds on to the pool weakly, so that one
+     * nobody closed still goes away once its shells are gone.
+     */
+    private static class Tick implements Runnable {
+        private final WeakReference<ShellPool> pool;
+        volatile ScheduledFuture<?> future;
+
+        Tick(ShellPool pool) {
+            this.pool = new WeakReference<>(pool);
+        }
+
+        @Override
+        public void run() {
+            ShellPool pool = this.pool.get();
+            if (pool == null) {
+                future.cancel(false);
+                return;
+            }
+            pool.tick();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package dev.leandromqrs.winrmj;
+
+import dev.leandromqrs.winrmj.protocol.Codepages;
+
+import java.time.Duration;
+
+/**
+ * Sizing and lifetime of the shells a Session keeps open between commands.
+ */
+public class ShellPoolOptions {
+    public static final int DEFAULT_MIN_SHELLS = 0;
+    public static final int DEFAULT_MAX_SHELLS = 4;
+    // seconds, sent as the shell IdleTimeOut
+    public static final int DEFAULT_IDLE_TIMEOUT = 180;
+    public static final Duration DEFAULT_BORROW_TIMEOUT = Duration.ofSeconds(60);
+    // what WinRM allows unless MaxConcurrentCommandsPerShell was lowered
+    public static final int DEFAULT_MAX_COMMANDS_PER_SHELL = 1000;
+    public static final Duration DEFAULT_REAP_INTERVAL = Duration.ofSeconds(30);
+    public static final int DEFAULT_REAP_BATCH_SIZE = 16;
+    // what cmd.exe uses on an en-US system unless told otherwise
+    public static final int DEFAULT_CODEPAGE = Codepages.OEM_US;
+
+    private int minShells = DEFAULT_MIN_SHELLS;
+    private int maxShells = DEFAULT_MAX_SHELLS;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private Duration borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    private int maxCommandsPerShell = DEFAULT_MAX_COMMANDS_PER_SHELL;
+    private Duration reapInterval = DEFAULT_REAP_INTERVAL;
+    private int reapBatchSize = DEFAULT_REAP_BATCH_SIZE;
+    private Duration orphanInactivity;
+    private int codepage = DEFAULT_CODEPAGE;
+
+    public int getMinShells() {
+        return minShells;
+    }
+
+    /**
+     * Shells the pool keeps open, idle or not, replacing those that expire. Set maxShells
+     * first when raising both.
+     */
+    public ShellPoolOptions setMinShells(int minShells) {
+        if (minShells < 0 || minShells > maxShells) {
+            throw new IllegalArgumentException(String.format("minShells must be between 0 and maxShells: %d, %d", minShells, maxShells));
+        }
+        this.minShells = minShells;
+        return this;
+    }
+
+    public int getMaxShells() {
+        return maxShells;
+    }
+
+    public ShellPoolOptions setMaxShells(int maxShells) {
+        if (maxShells < 1) {
+            throw new IllegalArgumentException("maxShells must be positive: " + maxShells);
+        }
+        if (maxShells < minShells) {
+            throw new IllegalArgumentException(String.format("maxShells must not be below minShells: %d, %d", maxShells, minShells));
+        }
+        this.maxShells = maxShells;
+        return this;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Seconds a shell may sit unused. The server is told to reap it after that long and
+     * the pool stops handing it out a little before.
+     */
+    public ShellPoolOptions setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public Duration getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    public ShellPoolOptions setBorrowTimeout(Duration borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+        return this;
+    }
+
+    public int getMaxCommandsPerShell() {
+        return maxCommandsPerShell;
+    }
+
+    /**
+     * Commands a batch runs at once in its shell, at most what the server's
+     * MaxConcurrentCommandsPerShell allows.
+     */
+    public ShellPoolOptions setMaxCommandsPerShell(int maxCommandsPerShell) {
+        if (maxCommandsPerShell < 1) {
+            throw new IllegalArgumentException("maxCommandsPerShell must be positive: " + maxCommandsPerShell);
+        }
+        this.maxCommandsPerShell = maxCommandsPerShell;
+        return this;
+    }
+
+    public Duration getReapInterval() {
+        return reapInterval;
+    }
+
+    /**
+     * How often the reaper deletes the shells that expired while idle, on top of the
+     * leaked ones it deletes as soon as they are found.
+     */
+    public ShellPoolOptions setReapInterval(Duration reapInterval) {
+        if (reapInterval.isNegative() || reapInterval.isZero()) {
+            throw new IllegalArgumentException("reapInterval must be positive: " + reapInterval);
+        }
+        this.reapInterval = reapInterval;
+        return this;
+    }
+
+    public int getReapBatchSize() {
+        return reapBatchSize;
+    }
+
+    /**
+     * Shells deleted at once; the next ones are deleted when those are done, so that
+     * cleaning up does not take all of the transport's connections.
+     */
+    public ShellPoolOptions setReapBatchSize(int reapBatchSize) {
+        if (reapBatchSize < 1) {
+            throw new IllegalArgumentException("reapBatchSize must be positive: " + reapBatchSize);
+        }
+        this.reapBatchSize = reapBatchSize;
+        return this;
+    }
+
+    public Duration getOrphanInactivity() {
+        return orphanInactivity;
+    }
+
+    /**
+     * Makes the pool look for the shells a crashed process left behind when it is
+     * created, see {@link ShellPool#reapRemote}. Null, the default, leaves the shells on
+     * the server alone.
+     */
+    public ShellPoolOptions setOrphanInactivity(Duration orphanInactivity) {
+        if (orphanInactivity != null && (orphanInactivity.isNegative() || orphanInactivity.isZero())) {
+            throw new IllegalArgumentException("orphanInactivity must be positive: " + orphanInactivity);
+        }
+        this.orphanInactivity = orphanInactivity;
+        return this;
+    }
+
+    public int getCodepage() {
+        return codepage;
+    }
+
+    /**
+     * Codepage the shells are opened with, sent as WINRS_CODEPAGE, and output decoded
+     * with; 65001 has commands write UTF-8.
+     *
+     * @throws IllegalArgumentException if Java has no charset for it
+     */
+    public ShellPoolOptions setCodepage(int codepage) {
+        Codepages.charset(codepage);
+        this.codepage = codepage;
+        return this;
+    }
+}
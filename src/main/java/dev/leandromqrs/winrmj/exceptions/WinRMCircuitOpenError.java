@@ -0,0 +1,18 @@
+package dev.leandromqrs.winrmj.exceptions;
+
+public class WinRMCircuitOpenError extends WinRMTransportError {
+    /**
+     * A request refused without being sent, the host failed too often lately
+     */
+    public WinRMCircuitOpenError() {
+        super();
+    }
+
+    public WinRMCircuitOpenError(String message) {
+        super(message);
+    }
+
+    public WinRMCircuitOpenError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,19 @@
+package dev.leandromqrs.winrmj.exceptions;
+
+public class WinRMEnumerationError extends RuntimeException {
+    /**
+     * A page of a WMI query could not be fetched while iterating over it; the cause is
+     * what the blocking call would have thrown
+     */
+    public WinRMEnumerationError() {
+        super();
+    }
+
+    public WinRMEnumerationError(String message) {
+        super(message);
+    }
+
+    public WinRMEnumerationError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,19 @@
+package dev.leandromqrs.winrmj.exceptions;
+
+public class WinRMInterruptedError extends Exception {
+    /**
+     * The calling thread was interrupted before the request was answered; nothing is
+     * known about the host
+     */
+    public WinRMInterruptedError() {
+        super();
+    }
+
+    public WinRMInterruptedError(String message) {
+        super(message);
+    }
+
+    public WinRMInterruptedError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
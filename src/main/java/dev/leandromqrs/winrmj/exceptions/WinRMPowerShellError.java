@@ -0,0 +1,19 @@
+package dev.leandromqrs.winrmj.exceptions;
+
+public class WinRMPowerShellError extends Exception {
+    /**
+     * A runspace pool or pipeline failed at the PowerShell Remoting level: the pool did
+     * not open, or messages from the server could not be reassembled or deserialized
+     */
+    public WinRMPowerShellError() {
+        super();
+    }
+
+    public WinRMPowerShellError(String message) {
+        super(message);
+    }
+
+    public WinRMPowerShellError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,18 @@
+package dev.leandromqrs.winrmj.exceptions;
+
+public class WinRMTransferError extends Exception {
+    /**
+     * File transfer failed on the remote end or did not arrive intact
+     */
+    public WinRMTransferError() {
+        super();
+    }
+
+    public WinRMTransferError(String message) {
+        super(message);
+    }
+
+    public WinRMTransferError(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
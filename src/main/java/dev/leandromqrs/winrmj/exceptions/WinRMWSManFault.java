@@ -1,18 +1,36 @@
 package dev.leandromqrs.winrmj.exceptions;
 
 public class WinRMWSManFault extends Exception {
+    private final String code;
+
     /**
      * A Fault returned in the SOAP response. The XML node is a WSManFault
      */
     public WinRMWSManFault() {
         super();
+        this.code = null;
     }
 
     public WinRMWSManFault(String message) {
         super(message);
+        this.code = null;
     }
 
     public WinRMWSManFault(String message, Throwable cause) {
         super(message, cause);
+        this.code = null;
+    }
+
+    /**
+     * @param code the Code attribute of the WSManFault element, e.g. 2150858793 for an
+     *             operation timeout
+     */
+    public WinRMWSManFault(String message, String code) {
+        super(message);
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
     }
 }
@@ -0,0 +1,199 @@
+package dev.leandromqrs.winrmj.fleet;
+
+import dev.leandromqrs.winrmj.Response;
+import dev.leandromqrs.winrmj.Session;
+import dev.leandromqrs.winrmj.ShellPoolOptions;
+import dev.leandromqrs.winrmj.transport.TransportOptions;
+
+import java.net.http.HttpClient;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one command on many hosts at once.
+ * <p>
+ * Every host gets a task of its own, which waits for its host's permit, then for a
+ * global one, and then for the command run through {@link Session#runCmdAsync}. On
+ * Java 21+ tasks run on virtual threads, so thousands of waiting hosts cost no platform
+ * threads; on older runtimes they run on a pool of maxConcurrency platform threads.
+ * Either way no more than maxConcurrency commands run at once, and no more than
+ * maxPerHost on one host.
+ * <p>
+ * A host that times out or is cancelled has its command future cancelled rather than
+ * its thread interrupted: polling stops and the shell is deleted, taking the command
+ * with it.
+ * <p>
+ * A host's Session lives as long as it has commands running or queued and is closed,
+ * deleting its shells, once the last one is done. All Sessions share one HttpClient.
+ */
+public class FleetExecutor implements AutoCloseable {
+    private final String username;
+    private final String password;
+    private final FleetOptions options;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final Map<String, HostSlot> slots = new HashMap<>();
+    private final Set<FleetRun> runs = ConcurrentHashMap.newKeySet();
+
+    public FleetExecutor(String username, String password) {
+        this(username, password, new FleetOptions());
+    }
+
+    public FleetExecutor(String username, String password, FleetOptions options) {
+        this.username = username;
+        this.password = password;
+        this.options = options;
+        this.permits = new Semaphore(options.getMaxConcurrency(), true);
+        this.executor = newExecutor(options);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(TransportOptions.DEFAULT_CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    public FleetOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Starts the command on every host and returns right away, see {@link FleetRun}.
+     * A host listed twice runs the command twice.
+     */
+    public FleetRun run(List<String> hosts, String command, List<String> args) {
+        FleetRun run = new FleetRun(List.copyOf(hosts));
+        runs.removeIf(FleetRun::isDone);
+        runs.add(run);
+        for (int i = 0; i < hosts.size(); i++) {
+            int index = i;
+            executor.execute(() -> runHost(run, index, command, args));
+        }
+        return run;
+    }
+
+    /**
+     * Cancels the runs still going and releases the threads.
+     */
+    @Override
+    public void close() {
+        for (FleetRun run : runs) {
+            run.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    private void runHost(FleetRun run, int index, String command, List<String> args) {
+        String host = run.getHosts().get(index);
+        HostSlot slot = null;
+        boolean hostPermitted = false;
+        boolean permitted = false;
+        try {
+            // the host's permit first, a task queued behind its host holds no global one
+            slot = lease(host);
+            slot.permits.acquire();
+            hostPermitted = true;
+            permits.acquire();
+            permitted = true;
+            if (!run.begin(index)) {
+                return;
+            }
+            CompletableFuture<Response> response = slot.session.runCmdAsync(command, args);
+            run.attach(index, response);
+            try {
+                run.report(index, FleetResult.Status.SUCCEEDED, response.get(options.getHostTimeout().toNanos(), TimeUnit.NANOSECONDS), null);
+            } catch (TimeoutException e) {
+                run.report(index, FleetResult.Status.TIMED_OUT, null,
+                        new TimeoutException(String.format("No result from %s within %s", host, options.getHostTimeout())));
+            } catch (ExecutionException e) {
+                run.report(index, FleetResult.Status.FAILED, null, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (CancellationException e) {
+                // cancelled with the run, already reported
+            }
+        } catch (InterruptedException e) {
+            run.report(index, FleetResult.Status.CANCELLED, null, null);
+        } catch (RuntimeException e) {
+            run.report(index, FleetResult.Status.FAILED, null, e);
+        } finally {
+            if (permitted) {
+                permits.release();
+            }
+            if (hostPermitted) {
+                slot.permits.release();
+            }
+            if (slot != null) {
+                unlease(host, slot);
+            }
+        }
+    }
+
+    private synchronized HostSlot lease(String host) {
+        HostSlot slot = slots.get(host);
+        if (slot == null) {
+            ShellPoolOptions shellPoolOptions = new ShellPoolOptions().setMaxShells(options.getMaxPerHost());
+            TransportOptions transportOptions = new TransportOptions()
+                    .setMaxConnectionsPerHost(options.getMaxPerHost())
+                    .setHttpClient(httpClient);
+            slot = new HostSlot(new Session(host, username, password, shellPoolOptions, transportOptions), options.getMaxPerHost());
+            slot.session.getProtocol().setResilience(options.getResilience());
+            slots.put(host, slot);
+        }
+        slot.users++;
+        return slot;
+    }
+
+    private void unlease(String host, HostSlot slot) {
+        synchronized (this) {
+            if (--slot.users > 0) {
+                return;
+            }
+            slots.remove(host);
+        }
+        slot.session.close();
+    }
+
+    private static ExecutorService newExecutor(FleetOptions options) {
+        if (options.isVirtualThreads()) {
+            try {
+                // looked up reflectively, the library still targets Java 11
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // no virtual threads on this runtime, or only as a preview
+            }
+        }
+        return Executors.newFixedThreadPool(options.getMaxConcurrency(), daemonThreads());
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "winrmj-fleet-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class HostSlot {
+        final Session session;
+        final Semaphore permits;
+        int users;
+
+        HostSlot(Session session, int maxPerHost) {
+            this.session = session;
+            this.permits = new Semaphore(maxPerHost, true);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package dev.leandromqrs.winrmj.fleet;
+
+import dev.leandromqrs.winrmj.resilience.Resilience;
+
+import java.time.Duration;
+
+/**
+ * Concurrency limits and timeouts of a FleetExecutor.
+ */
+public class FleetOptions {
+    public static final int DEFAULT_MAX_CONCURRENCY = 256;
+    public static final int DEFAULT_MAX_PER_HOST = 1;
+    public static final Duration DEFAULT_HOST_TIMEOUT = Duration.ofMinutes(5);
+
+    private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private Duration hostTimeout = DEFAULT_HOST_TIMEOUT;
+    private boolean virtualThreads = true;
+    private Resilience resilience;
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Commands running at once across all hosts.
+     */
+    public FleetOptions setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    /**
+     * Commands running at once on one host, which is also the size of its shell pool.
+     */
+    public FleetOptions setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost must be positive: " + maxPerHost);
+        }
+        this.maxPerHost = maxPerHost;
+        return this;
+    }
+
+    public Duration getHostTimeout() {
+        return hostTimeout;
+    }
+
+    /**
+     * Time a host gets from the moment its command starts until it is reported as timed out.
+     */
+    public FleetOptions setHostTimeout(Duration hostTimeout) {
+        this.hostTimeout = hostTimeout;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs hosts on virtual threads when the runtime has them (Java 21+), otherwise on a
+     * pool of maxConcurrency platform threads.
+     */
+    public FleetOptions setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public Resilience getResilience() {
+        return resilience;
+    }
+
+    /**
+     * Retries and circuit breakers for every host's Protocol. The breakers live in the
+     * Resilience, so a host found dead fails fast in later runs too, until its circuit
+     * lets a probe through. Null, the default, sends every request once.
+     */
+    public FleetOptions setResilience(Resilience resilience) {
+        this.resilience = resilience;
+        return this;
+    }
+}
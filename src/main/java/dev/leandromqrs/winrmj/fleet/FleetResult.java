@@ -0,0 +1,69 @@
+package dev.leandromqrs.winrmj.fleet;
+
+import dev.leandromqrs.winrmj.Response;
+
+import java.time.Duration;
+
+/**
+ * Outcome of a command on one host of a fleet run.
+ */
+public class FleetResult {
+    public enum Status {
+        SUCCEEDED,
+        FAILED,
+        TIMED_OUT,
+        CANCELLED
+    }
+
+    private final String host;
+    private final Status status;
+    private final Response response;
+    private final Exception error;
+    private final long latencyNanos;
+
+    FleetResult(String host, Status status, Response response, Exception error, long latencyNanos) {
+        this.host = host;
+        this.status = status;
+        this.response = response;
+        this.error = error;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCEEDED;
+    }
+
+    /**
+     * @return the output of the command, null unless it succeeded
+     */
+    public Response getResponse() {
+        return response;
+    }
+
+    /**
+     * @return why the command failed, null if it succeeded or was cancelled
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return time from the start of the command until the result, zero if it never started
+     */
+    public Duration getLatency() {
+        return Duration.ofNanos(latencyNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<FleetResult host %s, status %s, latency %s>", host, status, getLatency());
+    }
+}
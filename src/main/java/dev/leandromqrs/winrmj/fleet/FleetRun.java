@@ -0,0 +1,171 @@
+package dev.leandromqrs.winrmj.fleet;
+
+import dev.leandromqrs.winrmj.Response;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One command fanned out over a list of hosts by {@link FleetExecutor#run}.
+ * <p>
+ * Results are queued in the order hosts finish and handed out by {@link #next}, so
+ * callers can act on the first hosts while the rest are still running. Every host is
+ * reported exactly once: whichever of completion, its timeout or {@link #cancel} comes
+ * first decides its status, the others are ignored.
+ */
+public class FleetRun {
+    private final List<String> hosts;
+    private final boolean[] reported;
+    private final long[] started;
+    private final Future<?>[] pending;
+    private final long[] latencies;
+    private final BlockingQueue<FleetResult> results = new LinkedBlockingQueue<>();
+    private final AtomicInteger taken = new AtomicInteger();
+    private final long startNanos = System.nanoTime();
+    private long endNanos = -1;
+    private int ran;
+    private int succeeded;
+    private int failed;
+    private int timedOut;
+    private int cancelled;
+
+    FleetRun(List<String> hosts) {
+        this.hosts = hosts;
+        this.reported = new boolean[hosts.size()];
+        this.started = new long[hosts.size()];
+        this.pending = new Future<?>[hosts.size()];
+        this.latencies = new long[hosts.size()];
+        if (hosts.isEmpty()) {
+            endNanos = startNanos;
+        }
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * Waits for the next host to finish.
+     *
+     * @return its result, null once every host has been handed out
+     */
+    public FleetResult next() throws InterruptedException {
+        if (taken.getAndIncrement() >= hosts.size()) {
+            return null;
+        }
+        return results.take();
+    }
+
+    /**
+     * Waits for the remaining hosts.
+     *
+     * @return the results not handed out by {@link #next} yet, in the order hosts finished
+     */
+    public List<FleetResult> awaitAll() throws InterruptedException {
+        List<FleetResult> remaining = new ArrayList<>();
+        for (FleetResult result = next(); result != null; result = next()) {
+            remaining.add(result);
+        }
+        return remaining;
+    }
+
+    public synchronized boolean isDone() {
+        return endNanos >= 0;
+    }
+
+    /**
+     * Reports every host without a result yet as cancelled and stops the commands still
+     * running. Their shells are deleted rather than reused.
+     */
+    public void cancel() {
+        for (int i = 0; i < hosts.size(); i++) {
+            report(i, FleetResult.Status.CANCELLED, null, null);
+        }
+    }
+
+    public synchronized FleetStats getStats() {
+        long[] sorted = Arrays.copyOf(latencies, ran);
+        Arrays.sort(sorted);
+        long now = endNanos >= 0 ? endNanos : System.nanoTime();
+        return new FleetStats(hosts.size(), succeeded, failed, timedOut, cancelled, Duration.ofNanos(now - startNanos),
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    /**
+     * Marks the host as started.
+     *
+     * @return false if the host was already reported, cancelled before it got to run
+     */
+    synchronized boolean begin(int index) {
+        if (reported[index]) {
+            return false;
+        }
+        started[index] = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Registers the command running on the host, cancelling it right away if the host
+     * was reported in the meantime.
+     */
+    synchronized void attach(int index, Future<?> command) {
+        if (reported[index]) {
+            command.cancel(false);
+        } else {
+            pending[index] = command;
+        }
+    }
+
+    void report(int index, FleetResult.Status status, Response response, Exception error) {
+        FleetResult result;
+        synchronized (this) {
+            if (reported[index]) {
+                return;
+            }
+            reported[index] = true;
+            long latency = 0;
+            if (started[index] != 0) {
+                latency = System.nanoTime() - started[index];
+                latencies[ran++] = latency;
+            }
+            switch (status) {
+                case SUCCEEDED:
+                    succeeded++;
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
+                case TIMED_OUT:
+                    timedOut++;
+                    break;
+                default:
+                    cancelled++;
+            }
+            if (pending[index] != null) {
+                // a no-op once the command is done, stops it if it timed out or was cancelled
+                pending[index].cancel(false);
+                pending[index] = null;
+            }
+            if (succeeded + failed + timedOut + cancelled == hosts.size()) {
+                endNanos = System.nanoTime();
+            }
+            result = new FleetResult(hosts.get(index), status, response, error, latency);
+        }
+        results.add(result);
+    }
+
+    private static Duration percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Duration.ZERO;
+        }
+        // nearest rank
+        int rank = (int) Math.ceil(p * sorted.length);
+        return Duration.ofNanos(sorted[Math.max(rank, 1) - 1]);
+    }
+}
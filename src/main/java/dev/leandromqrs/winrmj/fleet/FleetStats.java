@@ -0,0 +1,88 @@
+package dev.leandromqrs.winrmj.fleet;
+
+import java.time.Duration;
+
+/**
+ * Point-in-time view of a fleet run: how far it got, how fast, and how long hosts took.
+ */
+public class FleetStats {
+    private final int hosts;
+    private final int succeeded;
+    private final int failed;
+    private final int timedOut;
+    private final int cancelled;
+    private final Duration elapsed;
+    private final Duration p50;
+    private final Duration p99;
+    private final Duration max;
+
+    FleetStats(int hosts, int succeeded, int failed, int timedOut, int cancelled, Duration elapsed, Duration p50, Duration p99, Duration max) {
+        this.hosts = hosts;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.timedOut = timedOut;
+        this.cancelled = cancelled;
+        this.elapsed = elapsed;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public int getHosts() {
+        return hosts;
+    }
+
+    public int getFinished() {
+        return succeeded + failed + timedOut + cancelled;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getTimedOut() {
+        return timedOut;
+    }
+
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return hosts finished per second since the run started
+     */
+    public double getThroughput() {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : getFinished() * 1e9 / nanos;
+    }
+
+    /**
+     * Latency percentiles are taken over the hosts whose command ran, cancelled hosts
+     * are left out.
+     */
+    public Duration getP50() {
+        return p50;
+    }
+
+    public Duration getP99() {
+        return p99;
+    }
+
+    public Duration getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<FleetStats hosts %d, succeeded %d, failed %d, timedOut %d, cancelled %d, throughput %.1f/s, p50 %s, p99 %s, max %s>",
+                hosts, succeeded, failed, timedOut, cancelled, getThroughput(), p50, p99, max);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.leandromqrs.winrmj.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative longs in the manner of HdrHistogram.
+ * <p>
+ * Values below 32 are counted exactly. Larger ones fall into one of 32 linear buckets
+ * per power of two, so a percentile is off by at most 1/32 (about 3%) of its value. It
+ * covers the whole long range in a fixed 15 KB, and recording is a few atomic adds.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket the percentile falls in, 0 if nothing was
+     *         recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void appendJson(StringBuilder out) {
+        out.append("{\"count\":").append(getCount())
+                .append(",\"mean\":").append(Math.round(getMean()))
+                .append(",\"p50\":").append(getValueAtPercentile(50))
+                .append(",\"p90\":").append(getValueAtPercentile(90))
+                .append(",\"p99\":").append(getValueAtPercentile(99))
+                .append(",\"p999\":").append(getValueAtPercentile(99.9))
+                .append(",\"max\":").append(getMax())
+                .append('}');
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        long sub = (index - SUB_COUNT) % SUB_COUNT;
+        long lowest = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
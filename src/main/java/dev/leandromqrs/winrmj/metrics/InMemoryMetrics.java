@@ -0,0 +1,159 @@
+package dev.leandromqrs.winrmj.metrics;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ProtocolListener that keeps everything in memory: per-operation histograms of the
+ * build, wait and parse times, byte counts, retries, hedges, faults by type and the
+ * number of Receives commands took. One instance can be shared by several Protocols.
+ * <p>
+ * {@link #toJson} dumps it all, times in nanoseconds.
+ */
+public class InMemoryMetrics implements ProtocolListener {
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+    private final Histogram receivePolls = new Histogram();
+    private final Map<String, LongAdder> faults = new ConcurrentHashMap<>();
+
+    public InMemoryMetrics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new OperationMetrics();
+        }
+    }
+
+    @Override
+    public void onExchange(Operation operation, long buildNanos, long waitNanos, long parseNanos, long bytesSent, long bytesReceived) {
+        OperationMetrics metrics = operations[operation.ordinal()];
+        metrics.build.record(buildNanos);
+        metrics.wait.record(waitNanos);
+        metrics.parse.record(parseNanos);
+        metrics.bytesSent.add(bytesSent);
+        metrics.bytesReceived.add(bytesReceived);
+    }
+
+    @Override
+    public void onFault(Operation operation, Exception fault) {
+        operations[operation.ordinal()].faults.increment();
+        faults.computeIfAbsent(faultType(fault), type -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void onRetry(Operation operation) {
+        operations[operation.ordinal()].retries.increment();
+    }
+
+    @Override
+    public void onHedge(Operation operation) {
+        operations[operation.ordinal()].hedges.increment();
+    }
+
+    @Override
+    public void onCommandDone(int polls) {
+        receivePolls.record(polls);
+    }
+
+    public Histogram getBuildTimes(Operation operation) {
+        return operations[operation.ordinal()].build;
+    }
+
+    public Histogram getWaitTimes(Operation operation) {
+        return operations[operation.ordinal()].wait;
+    }
+
+    public Histogram getParseTimes(Operation operation) {
+        return operations[operation.ordinal()].parse;
+    }
+
+    public long getBytesSent(Operation operation) {
+        return operations[operation.ordinal()].bytesSent.sum();
+    }
+
+    public long getBytesReceived(Operation operation) {
+        return operations[operation.ordinal()].bytesReceived.sum();
+    }
+
+    public long getRetries(Operation operation) {
+        return operations[operation.ordinal()].retries.sum();
+    }
+
+    public long getHedges(Operation operation) {
+        return operations[operation.ordinal()].hedges.sum();
+    }
+
+    public Histogram getReceivePolls() {
+        return receivePolls;
+    }
+
+    /**
+     * @return fault counts keyed by exception class, followed by the WSManFault code
+     *         for WinRMWSManFault, e.g. "WinRMWSManFault 2150858793"
+     */
+    public Map<String, Long> getFaults() {
+        Map<String, Long> result = new TreeMap<>();
+        faults.forEach((type, count) -> result.put(type, count.sum()));
+        return result;
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"operations\":{");
+        for (Operation operation : Operation.values()) {
+            OperationMetrics metrics = operations[operation.ordinal()];
+            if (operation.ordinal() > 0) {
+                out.append(',');
+            }
+            out.append('"').append(operation).append("\":{\"build\":");
+            metrics.build.appendJson(out);
+            out.append(",\"wait\":");
+            metrics.wait.appendJson(out);
+            out.append(",\"parse\":");
+            metrics.parse.appendJson(out);
+            out.append(",\"bytesSent\":").append(metrics.bytesSent.sum())
+                    .append(",\"bytesReceived\":").append(metrics.bytesReceived.sum())
+                    .append(",\"retries\":").append(metrics.retries.sum())
+                    .append(",\"hedges\":").append(metrics.hedges.sum())
+                    .append(",\"faults\":").append(metrics.faults.sum())
+                    .append('}');
+        }
+        out.append("},\"receivePolls\":");
+        receivePolls.appendJson(out);
+        out.append(",\"faults\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> fault : getFaults().entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            // class names and numeric codes, nothing to escape
+            out.append('"').append(fault.getKey()).append("\":").append(fault.getValue());
+        }
+        return out.append("}}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static String faultType(Exception fault) {
+        String type = fault.getClass().getSimpleName();
+        if (fault instanceof WinRMWSManFault && ((WinRMWSManFault) fault).getCode() != null) {
+            return type + " " + ((WinRMWSManFault) fault).getCode();
+        }
+        return type;
+    }
+
+    private static class OperationMetrics {
+        final Histogram build = new Histogram();
+        final Histogram wait = new Histogram();
+        final Histogram parse = new Histogram();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder hedges = new LongAdder();
+        final LongAdder faults = new LongAdder();
+    }
+}
@@ -0,0 +1,25 @@
+package dev.leandromqrs.winrmj.metrics;
+
+/**
+ * WS-Man requests a Protocol sends, named after their action.
+ */
+public enum Operation {
+    /** openShell */
+    CREATE,
+    /** runCommand */
+    COMMAND,
+    /** one poll of getCommandOutput */
+    RECEIVE,
+    /** one chunk of sendInput */
+    SEND,
+    /** cleanupCommand */
+    SIGNAL,
+    /** closeShell */
+    DELETE,
+    /** first request of enumerateShells and queryWmi */
+    ENUMERATE,
+    /** every further request of enumerateShells and queryWmi */
+    PULL,
+    /** a WMI query closed before its last page */
+    RELEASE
+}
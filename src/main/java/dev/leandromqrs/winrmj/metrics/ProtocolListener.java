@@ -0,0 +1,57 @@
+package dev.leandromqrs.winrmj.metrics;
+
+/**
+ * Receives timings and counts from a Protocol, see {@code Protocol.setListener}.
+ * <p>
+ * Methods are called on the thread that made or completed the request, concurrently
+ * for concurrent requests, so implementations have to be thread-safe and cheap. Every
+ * method has an empty default; {@link #NONE} is the listener a Protocol starts with and
+ * costs nothing beyond the calls themselves: no allocation, and responses are not
+ * wrapped to count their bytes.
+ */
+public interface ProtocolListener {
+    ProtocolListener NONE = new ProtocolListener() {
+    };
+
+    /**
+     * One request and its response.
+     *
+     * @param buildNanos    rendering the envelope
+     * @param waitNanos     from sending the request until the response arrived, that is
+     *                      the round trip plus the time the server took; for Receive this
+     *                      includes waiting for output up to OperationTimeout
+     * @param parseNanos    reading and parsing the response body
+     * @param bytesSent     size of the request envelope
+     * @param bytesReceived size of the response body
+     */
+    default void onExchange(Operation operation, long buildNanos, long waitNanos, long parseNanos, long bytesSent, long bytesReceived) {
+    }
+
+    /**
+     * A request failed, be it on the transport or with a SOAP Fault. Receives that time
+     * out without output are reported too, as the WinRMWSManFault they are.
+     */
+    default void onFault(Operation operation, Exception fault) {
+    }
+
+    /**
+     * A request is sent again after a failure.
+     */
+    default void onRetry(Operation operation) {
+    }
+
+    /**
+     * A request still waiting for its response is sent a second time, see
+     * {@code ResilienceOptions.setHedgeDelay}.
+     */
+    default void onHedge(Operation operation) {
+    }
+
+    /**
+     * The output of a command has been read to the end.
+     *
+     * @param polls Receives it took
+     */
+    default void onCommandDone(int polls) {
+    }
+}
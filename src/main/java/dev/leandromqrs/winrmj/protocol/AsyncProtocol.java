@@ -0,0 +1,510 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMCircuitOpenError;
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+import dev.leandromqrs.winrmj.metrics.Operation;
+import dev.leandromqrs.winrmj.metrics.ProtocolListener;
+import dev.leandromqrs.winrmj.resilience.CircuitBreaker;
+import dev.leandromqrs.winrmj.resilience.Resilience;
+import dev.leandromqrs.winrmj.transport.HttpTransport;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import jakarta.xml.soap.SOAPBody;
+import jakarta.xml.soap.SOAPMessage;
+
+/**
+ * Non-blocking counterpart of {@link Protocol}, obtained from {@link Protocol#async()}.
+ * <p>
+ * Every call renders its envelope into a buffer of its own and posts it through
+ * HttpTransport.sendAsync, so no thread is held while a request, a long-polling Receive
+ * in particular, is on the wire. Responses are parsed on the thread that completes the
+ * exchange. Futures fail with the exceptions the blocking methods throw, wrapped in a
+ * CompletionException.
+ * <p>
+ * The protocol's listener sees the same events as for blocking calls, except that the
+ * wait lasts until the whole response body arrived and parsing starts from memory.
+ * <p>
+ * Retries and circuit breakers follow the protocol's {@link Resilience}, with backoffs
+ * waited out on a timer rather than on a thread. Only here can Receives be hedged.
+ */
+public class AsyncProtocol {
+    private final Protocol protocol;
+
+    AsyncProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @see Protocol#openShell
+     */
+    public CompletableFuture<String> openShell(String iStream, String oStream, String workingDirectory, Map<String, String> envVars, boolean noProfile, int codepage, Integer lifetime, Integer idleTimeout) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().create(message, iStream, oStream, workingDirectory, envVars, noProfile, codepage, idleTimeout);
+
+        return _call(Operation.CREATE, message, started, response -> Protocol._text(response.getSOAPBody(), "ShellId"));
+    }
+
+    /**
+     * Creates a PowerShell runspace pool. The protocol must be set to
+     * {@link EnvelopeTemplates#RESOURCE_URI_POWERSHELL}.
+     *
+     * @param shellId     id of the runspace pool, which the client picks
+     * @param creationXml PSRP fragments that open the pool
+     * @return the ShellId the server confirmed
+     */
+    public CompletableFuture<String> openShell(String shellId, byte[] creationXml, Integer idleTimeout) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer(creationXml.length / 3 * 4 + 4096);
+        protocol.getTemplates().createPowerShell(message, shellId, ByteBuffer.wrap(creationXml), idleTimeout);
+        protocol.checkEnvelopeSize(message);
+
+        return _call(Operation.CREATE, message, started, response -> Protocol._text(response.getSOAPBody(), "ShellId"));
+    }
+
+    public CompletableFuture<Void> closeShell(String shellId) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        UUID messageId = protocol.getTemplates().delete(message, shellId);
+
+        return _call(Operation.DELETE, message, started, response -> {
+            Protocol._checkRelatesTo(response, messageId);
+            return null;
+        });
+    }
+
+    /**
+     * @see Protocol#enumerateShells
+     */
+    public CompletableFuture<List<ShellInfo>> enumerateShells() {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().enumerate(message, EnvelopeTemplates.RESOURCE_URI_SHELL, Protocol.ENUMERATION_MAX_ELEMENTS);
+
+        List<ShellInfo> shells = new ArrayList<>();
+        return _call(Operation.ENUMERATE, message, started, response -> _nextContext(response, shells))
+                .thenCompose(context -> _pullShells(context, shells));
+    }
+
+    public CompletableFuture<String> runCommand(String shellId, String command, String[] arguments, boolean consoleModeStdin, boolean skipCmdShell) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().command(message, shellId, command, arguments, consoleModeStdin, skipCmdShell);
+
+        return _call(Operation.COMMAND, message, started, response -> Protocol._text(response.getSOAPBody(), "CommandId"));
+    }
+
+    /**
+     * Starts a PowerShell pipeline in a runspace pool.
+     *
+     * @param commandId id of the pipeline, which the client picks
+     * @param arguments first PSRP fragments of the pipeline, the rest goes to stdin
+     * @return the CommandId the server confirmed
+     */
+    public CompletableFuture<String> runCommand(String shellId, String commandId, byte[] arguments) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer(arguments.length / 3 * 4 + 4096);
+        protocol.getTemplates().commandPowerShell(message, shellId, commandId, ByteBuffer.wrap(arguments));
+        protocol.checkEnvelopeSize(message);
+
+        return _call(Operation.COMMAND, message, started, response -> Protocol._text(response.getSOAPBody(), "CommandId"));
+    }
+
+    public CompletableFuture<Void> cleanupCommand(String shellId, String commandId) {
+        return signal(shellId, commandId, EnvelopeTemplates.SIGNAL_TERMINATE);
+    }
+
+    /**
+     * @param code signal URI, {@link EnvelopeTemplates#SIGNAL_TERMINATE} or
+     *             {@link EnvelopeTemplates#SIGNAL_PS_CTRL_C} for instance
+     */
+    public CompletableFuture<Void> signal(String shellId, String commandId, String code) {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        UUID messageId = protocol.getTemplates().signal(message, shellId, commandId, code);
+
+        return _call(Operation.SIGNAL, message, started, response -> {
+            Protocol._checkRelatesTo(response, messageId);
+            return null;
+        });
+    }
+
+    /**
+     * @see Protocol#sendInput(String, String, byte[], int, int, boolean)
+     */
+    public CompletableFuture<Void> sendInput(String shellId, String commandId, byte[] data, int offset, int length, boolean end) {
+        long started = System.nanoTime();
+        // sized for the Base64 up front rather than grown by doubling
+        EnvelopeBuffer message = new EnvelopeBuffer(length / 3 * 4 + 4096);
+        protocol.getTemplates().send(message, shellId, commandId, "stdin", data, offset, length, end);
+        protocol.checkEnvelopeSize(message);
+
+        return post(Operation.SEND, message, started);
+    }
+
+    /**
+     * @see Protocol#getCommandOutput(String, String)
+     */
+    public CompletableFuture<String[]> getCommandOutput(String shellId, String commandId) {
+        return getCommandOutput(shellId, commandId, Codepages.OEM_US);
+    }
+
+    /**
+     * @see Protocol#getCommandOutput(String, String, int)
+     */
+    public CompletableFuture<String[]> getCommandOutput(String shellId, String commandId, int codepage) {
+        Charset charset;
+        try {
+            charset = Codepages.charset(codepage);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        OutputDecoder stdout = new OutputDecoder(charset, Long.MAX_VALUE);
+        OutputDecoder stderr = new OutputDecoder(charset, Long.MAX_VALUE);
+        return getCommandOutput(shellId, commandId, (id, stream, buffer, offset, length) -> {
+            if (stream.equals("stdout")) {
+                stdout.write(buffer, offset, length);
+            } else if (stream.equals("stderr")) {
+                stderr.write(buffer, offset, length);
+            }
+        }).thenApply(returnCode -> new String[] { stdout.finish(), stderr.finish(), String.valueOf(returnCode) });
+    }
+
+    /**
+     * Polls until the command is done, handing output to the sink as it arrives. The next
+     * Receive is only sent once the previous one completed, so the sink is never called
+     * concurrently for one command. Cancelling the returned future stops the polling.
+     *
+     * @return the exit code of the command
+     */
+    public CompletableFuture<Integer> getCommandOutput(String shellId, String commandId, ReceiveSink sink) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        _receiveLoop(shellId, commandId, new ReceivePacer(sink), result, 1);
+        return result;
+    }
+
+    /**
+     * A single Receive, for output that has no command to poll until it is done, such as
+     * that of a runspace pool. It waits for its turn in the ReceiveScheduler budget like
+     * the polls of a command do, and cancelling the future before then gives up its place.
+     *
+     * @param commandId null for output of the shell itself
+     * @return the command state, null if nothing came out within OperationTimeout
+     */
+    public CompletableFuture<ReceiveState> receive(String shellId, String commandId, ReceiveSink sink) {
+        ReceiveScheduler scheduler = protocol.getReceiveScheduler();
+        CompletableFuture<ReceiveState> result = new CompletableFuture<>();
+        CompletableFuture<Void> permit = scheduler.acquireAsync();
+        result.whenComplete((state, error) -> permit.cancel(false));
+        permit.thenAccept(ignored -> {
+            if (result.isDone()) {
+                scheduler.release();
+                return;
+            }
+            // nothing to pace by, a long-poll unless other Receives are waiting
+            int maxTimeout = protocol.getTimeoutSeconds();
+            CompletableFuture<ReceiveState> poll;
+            try {
+                poll = _pollCommandOutput(shellId, commandId, sink, scheduler.timeoutFor(TimeUnit.SECONDS.toNanos(maxTimeout), maxTimeout));
+            } catch (RuntimeException e) {
+                scheduler.release();
+                result.completeExceptionally(e);
+                return;
+            }
+            poll.whenComplete((state, error) -> {
+                scheduler.release();
+                if (error != null) {
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    result.complete(state);
+                }
+            });
+        });
+        return result;
+    }
+
+    private void _receiveLoop(String shellId, String commandId, ReceivePacer pacer, CompletableFuture<Integer> result, int polls) {
+        ReceiveScheduler scheduler = protocol.getReceiveScheduler();
+        scheduler.acquireAsync().thenAccept(ignored -> _receive(shellId, commandId, pacer, result, polls, scheduler));
+    }
+
+    private void _receive(String shellId, String commandId, ReceivePacer pacer, CompletableFuture<Integer> result, int polls, ReceiveScheduler scheduler) {
+        if (result.isDone()) {
+            // cancelled while waiting for its turn
+            scheduler.release();
+            return;
+        }
+        CompletableFuture<ReceiveState> poll;
+        try {
+            poll = _pollCommandOutput(shellId, commandId, pacer, scheduler.timeoutFor(pacer.quietNanos(), protocol.getTimeoutSeconds()));
+        } catch (RuntimeException e) {
+            scheduler.release();
+            result.completeExceptionally(e);
+            return;
+        }
+        // callbacks instead of a thenCompose chain, which would grow with every poll
+        poll.whenComplete((state, error) -> {
+            scheduler.release();
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            } else if (state != null && state.isDone()) {
+                protocol.getListener().onCommandDone(polls);
+                result.complete(state.getExitCode());
+            } else if (!result.isDone()) {
+                // polling stops once the caller cancelled the result
+                _receiveLoop(shellId, commandId, pacer, result, polls + 1);
+            }
+        });
+    }
+
+    /**
+     * @return the command state, null if nothing came out within OperationTimeout
+     */
+    private CompletableFuture<ReceiveState> _pollCommandOutput(String shellId, String commandId, ReceiveSink sink, int timeoutSeconds) {
+        long started = System.nanoTime();
+        Consumer<EnvelopeBuffer> render = out -> protocol.getTemplates().receive(out, shellId, commandId, protocol.getOutputStreams(), timeoutSeconds);
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        render.accept(message);
+
+        return _resilient(Operation.RECEIVE, () -> _receiveExchange(message, render, started, sink, timeoutSeconds));
+    }
+
+    private CompletableFuture<ReceiveState> _receiveExchange(EnvelopeBuffer message, Consumer<EnvelopeBuffer> render, long started, ReceiveSink sink, int timeoutSeconds) {
+        ProtocolListener listener = protocol.getListener();
+        long sent = System.nanoTime();
+        return _sendReceive(message, render, timeoutSeconds).handle((body, error) -> {
+            if (error != null) {
+                throw _fault(listener, Operation.RECEIVE, error);
+            }
+            long received = System.nanoTime();
+            try {
+                ReceiveState state = ReceiveResponseParser.parse(new ByteArrayInputStream(body), sink);
+                listener.onExchange(Operation.RECEIVE, sent - started, received - sent, System.nanoTime() - received, message.length(), body.length);
+                return state;
+            } catch (WinRMWSManFault e) {
+                listener.onFault(Operation.RECEIVE, e);
+                if (Protocol.OPERATION_TIMEOUT_CODE.equals(e.getCode())) {
+                    return null;
+                }
+                throw new CompletionException(e);
+            } catch (Exception e) {
+                throw _fault(listener, Operation.RECEIVE, e);
+            }
+        });
+    }
+
+    /**
+     * Sends the Enumerate or a Pull of a WMI query, whose page is parsed without SAAJ.
+     * The message must be left alone until the future completes.
+     */
+    CompletableFuture<WmiResponseParser.Page> enumerateWmi(Operation operation, EnvelopeBuffer message, long started) {
+        return _resilient(operation, () -> _wmiExchange(operation, message, started));
+    }
+
+    private CompletableFuture<WmiResponseParser.Page> _wmiExchange(Operation operation, EnvelopeBuffer message, long started) {
+        ProtocolListener listener = protocol.getListener();
+        long sent = System.nanoTime();
+        return protocol.getTransport().sendAsync(message.array(), 0, message.length()).handle((body, error) -> {
+            if (error != null) {
+                throw _fault(listener, operation, error);
+            }
+            long received = System.nanoTime();
+            try {
+                WmiResponseParser.Page page = WmiResponseParser.parse(new ByteArrayInputStream(body));
+                listener.onExchange(operation, sent - started, received - sent, System.nanoTime() - received, message.length(), body.length);
+                return page;
+            } catch (Exception e) {
+                throw _fault(listener, operation, e);
+            }
+        });
+    }
+
+    /**
+     * Sends a rendered envelope whose response carries nothing of interest. The message
+     * must be left alone until the future completes.
+     */
+    CompletableFuture<Void> post(Operation operation, EnvelopeBuffer message, long started) {
+        return _call(operation, message, started, response -> null);
+    }
+
+    /**
+     * Posts a Receive, and once more if hedging is on and no response came within
+     * OperationTimeout plus the hedge delay. Completes with whichever response arrives
+     * first and fails only if both fail.
+     *
+     * @param render renders the same Receive again, for the second leg
+     */
+    private CompletableFuture<byte[]> _sendReceive(EnvelopeBuffer message, Consumer<EnvelopeBuffer> render, int timeoutSeconds) {
+        HttpTransport transport = protocol.getTransport();
+        Resilience resilience = protocol.getResilience();
+        Duration hedgeDelay = resilience != null ? resilience.getOptions().getHedgeDelay() : null;
+        if (hedgeDelay == null) {
+            return transport.sendAsync(message.array(), 0, message.length());
+        }
+        Hedge hedge = new Hedge();
+        transport.sendAsync(message.array(), 0, message.length()).whenComplete(hedge::complete);
+        long delay = TimeUnit.SECONDS.toNanos(timeoutSeconds) + hedgeDelay.toNanos();
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            if (hedge.start()) {
+                protocol.getListener().onHedge(Operation.RECEIVE);
+                // with a MessageID of its own, two requests must not share one
+                EnvelopeBuffer second = new EnvelopeBuffer();
+                render.accept(second);
+                transport.sendAsync(second.array(), 0, second.length()).whenComplete(hedge::complete);
+            }
+        });
+        return hedge.result;
+    }
+
+    /**
+     * @param started when rendering the envelope began
+     */
+    private <T> CompletableFuture<T> _call(Operation operation, EnvelopeBuffer message, long started, ResponseHandler<T> handler) {
+        return _resilient(operation, () -> _exchange(operation, message, started, handler));
+    }
+
+    private <T> CompletableFuture<T> _exchange(Operation operation, EnvelopeBuffer message, long started, ResponseHandler<T> handler) {
+        ProtocolListener listener = protocol.getListener();
+        long sent = System.nanoTime();
+        return protocol.getTransport().sendAsync(message.array(), 0, message.length()).handle((body, error) -> {
+            if (error != null) {
+                throw _fault(listener, operation, error);
+            }
+            long received = System.nanoTime();
+            try {
+                SOAPMessage response = protocol._read(new ByteArrayInputStream(body));
+                listener.onExchange(operation, sent - started, received - sent, System.nanoTime() - received, message.length(), body.length);
+                return handler.handle(response);
+            } catch (Exception e) {
+                throw _fault(listener, operation, e);
+            }
+        });
+    }
+
+    /**
+     * Non-blocking counterpart of Protocol._resilient: goes through the circuit breaker of
+     * the host and retries the exchange after a jittered backoff as the resilience allows.
+     */
+    private <T> CompletableFuture<T> _resilient(Operation operation, Supplier<CompletableFuture<T>> exchange) {
+        Resilience resilience = protocol.getResilience();
+        if (resilience == null) {
+            return exchange.get();
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        _attempt(resilience, resilience.breaker(protocol.getTransport().getUri()), operation, exchange, result, 0);
+        return result;
+    }
+
+    private <T> void _attempt(Resilience resilience, CircuitBreaker breaker, Operation operation, Supplier<CompletableFuture<T>> exchange, CompletableFuture<T> result, int attempt) {
+        try {
+            breaker.acquire();
+        } catch (WinRMCircuitOpenError e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        CompletableFuture<T> future;
+        try {
+            future = exchange.get();
+        } catch (Throwable e) {
+            // through whenComplete as well, so the breaker hears of it
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            breaker.onResult(cause);
+            if (cause == null) {
+                result.complete(value);
+            } else if (cause instanceof Exception && resilience.isRetryable(operation, (Exception) cause, attempt) && !result.isDone()) {
+                protocol.getListener().onRetry(operation);
+                CompletableFuture.delayedExecutor(resilience.backoffNanos(attempt), TimeUnit.NANOSECONDS)
+                        .execute(() -> _attempt(resilience, breaker, operation, exchange, result, attempt + 1));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Reports a failed exchange, classified as for blocking calls, and wraps it for the
+     * future.
+     */
+    private CompletionException _fault(ProtocolListener listener, Operation operation, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof Exception) {
+            Exception fault = Protocol._classify((Exception) cause, protocol.getTransport().getUri());
+            listener.onFault(operation, fault);
+            return new CompletionException(fault);
+        }
+        return error instanceof CompletionException ? (CompletionException) error : new CompletionException(cause);
+    }
+
+    private CompletableFuture<List<ShellInfo>> _pullShells(String context, List<ShellInfo> shells) {
+        if (context == null) {
+            return CompletableFuture.completedFuture(shells);
+        }
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().pull(message, EnvelopeTemplates.RESOURCE_URI_SHELL, context, Protocol.ENUMERATION_MAX_ELEMENTS);
+
+        return _call(Operation.PULL, message, started, response -> _nextContext(response, shells))
+                .thenCompose(next -> _pullShells(next, shells));
+    }
+
+    /**
+     * @return the EnumerationContext to pull the next shells with, null once they are all in
+     */
+    private static String _nextContext(SOAPMessage response, List<ShellInfo> shells) throws Exception {
+        SOAPBody body = response.getSOAPBody();
+        return Protocol._collectShells(body, shells) ? Protocol._text(body, "EnumerationContext") : null;
+    }
+
+    /**
+     * The two legs of a hedged Receive, of which the first response wins.
+     */
+    private static final class Hedge {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private int pending = 1;
+        private Throwable error;
+
+        /**
+         * @return false if there is no point anymore, a leg already won or all failed
+         */
+        synchronized boolean start() {
+            if (result.isDone()) {
+                return false;
+            }
+            pending++;
+            return true;
+        }
+
+        synchronized void complete(byte[] body, Throwable failure) {
+            if (failure == null) {
+                result.complete(body);
+                return;
+            }
+            if (error == null) {
+                error = failure;
+            }
+            if (--pending == 0) {
+                result.completeExceptionally(error);
+            }
+        }
+    }
+
+    private interface ResponseHandler<T> {
+        T handle(SOAPMessage response) throws Exception;
+    }
+}
@@ -0,0 +1,49 @@
+package dev.leandromqrs.winrmj.protocol;
+
+/**
+ * Circular byte buffer. Not thread-safe, CommandOutput guards it with its own lock.
+ */
+final class ByteRing {
+    private byte[] buf;
+    private int head;
+    private int size;
+
+    ByteRing(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    void write(byte[] b, int off, int len) {
+        if (len > buf.length - size) {
+            // only happens if a response carries more output than MaxEnvelopeSize allows
+            grow(size + len);
+        }
+        int tail = (head + size) % buf.length;
+        int first = Math.min(len, buf.length - tail);
+        System.arraycopy(b, off, buf, tail, first);
+        System.arraycopy(b, off + first, buf, 0, len - first);
+        size += len;
+    }
+
+    int read(byte[] b, int off, int len) {
+        int n = Math.min(len, size);
+        int first = Math.min(n, buf.length - head);
+        System.arraycopy(buf, head, b, off, first);
+        System.arraycopy(buf, 0, b, off + first, n - first);
+        head = (head + n) % buf.length;
+        size -= n;
+        return n;
+    }
+
+    private void grow(int capacity) {
+        byte[] bigger = new byte[capacity];
+        int n = size;
+        read(bigger, 0, n);
+        buf = bigger;
+        head = 0;
+        size = n;
+    }
+}
@@ -0,0 +1,67 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decoded text kept as a list of fixed-size char buffers, so that it grows without the
+ * copying of a StringBuilder; it is only copied when it is turned into a String. The
+ * buffers come from a pool shared by all commands and go back to it on release. Not
+ * thread-safe, OutputDecoder guards it.
+ */
+final class CharChunks {
+    static final int CHUNK_SIZE = 8192;
+    // 4 MB of chars kept around at most
+    private static final BlockingQueue<CharBuffer> POOL = new ArrayBlockingQueue<>(256);
+
+    private final List<CharBuffer> chunks = new ArrayList<>();
+
+    /**
+     * @return the buffer to decode into, one with room left
+     */
+    CharBuffer tail() {
+        CharBuffer tail = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (tail == null || !tail.hasRemaining()) {
+            tail = POOL.poll();
+            if (tail == null) {
+                tail = CharBuffer.allocate(CHUNK_SIZE);
+            }
+            chunks.add(tail);
+        }
+        return tail;
+    }
+
+    int length() {
+        int length = 0;
+        for (CharBuffer chunk : chunks) {
+            length += chunk.position();
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        if (chunks.size() == 1) {
+            CharBuffer chunk = chunks.get(0);
+            return new String(chunk.array(), 0, chunk.position());
+        }
+        char[] chars = new char[length()];
+        int length = 0;
+        for (CharBuffer chunk : chunks) {
+            System.arraycopy(chunk.array(), 0, chars, length, chunk.position());
+            length += chunk.position();
+        }
+        return new String(chars);
+    }
+
+    void release() {
+        for (CharBuffer chunk : chunks) {
+            chunk.clear();
+            POOL.offer(chunk);
+        }
+        chunks.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps Windows codepages, as sent in WINRS_CODEPAGE, to the Java charsets their output
+ * is decoded with.
+ * <p>
+ * OEM codepages such as 437 and 850 and the ANSI ones from 1250 to 1258 follow from
+ * their number; the others, whose Java names have nothing to do with it or would pick
+ * an IBM variant rather than the Windows one, are listed.
+ */
+public final class Codepages {
+    public static final int OEM_US = 437;
+    public static final int UTF_8 = 65001;
+
+    private static final Map<Integer, String> NAMES = Map.ofEntries(
+            Map.entry(874, "x-windows-874"),
+            Map.entry(932, "windows-31j"),
+            Map.entry(936, "GBK"),
+            Map.entry(949, "x-windows-949"),
+            Map.entry(950, "x-windows-950"),
+            Map.entry(1200, "UTF-16LE"),
+            Map.entry(1201, "UTF-16BE"),
+            Map.entry(10000, "x-MacRoman"),
+            Map.entry(20127, "US-ASCII"),
+            Map.entry(20866, "KOI8-R"),
+            Map.entry(20932, "EUC-JP"),
+            Map.entry(21866, "KOI8-U"),
+            Map.entry(50220, "ISO-2022-JP"),
+            Map.entry(51932, "EUC-JP"),
+            Map.entry(51949, "EUC-KR"),
+            Map.entry(54936, "GB18030"),
+            Map.entry(UTF_8, "UTF-8"));
+    private static final Map<Integer, Charset> CHARSETS = new ConcurrentHashMap<>();
+
+    private Codepages() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if Java has no charset for the codepage
+     */
+    public static Charset charset(int codepage) {
+        Charset charset = CHARSETS.get(codepage);
+        if (charset == null) {
+            charset = lookup(codepage);
+            CHARSETS.put(codepage, charset);
+        }
+        return charset;
+    }
+
+    private static Charset lookup(int codepage) {
+        String name = NAMES.get(codepage);
+        if (name == null) {
+            if (codepage >= 28591 && codepage <= 28605) {
+                name = "ISO-8859-" + (codepage - 28590);
+            } else if (codepage >= 1250 && codepage <= 1258) {
+                name = "windows-" + codepage;
+            } else {
+                // cp437 is IBM437 and so on for the OEM codepages
+                name = "cp" + codepage;
+            }
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new IllegalArgumentException(String.format("No charset for codepage %d (%s)", codepage, name), e);
+        }
+    }
+}
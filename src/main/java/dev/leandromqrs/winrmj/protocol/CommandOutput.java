@@ -0,0 +1,203 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Output of a running command exposed as one InputStream per stream.
+ * <p>
+ * Nothing polls in the background: a Receive is only sent when a reader needs data
+ * that is not buffered yet, and only while both streams have room left. A slow consumer
+ * therefore pauses polling instead of letting output pile up on the heap. Like with
+ * {@link Process}, both streams have to be consumed, by different threads if need be,
+ * or polling stops once the unread one is full.
+ */
+public class CommandOutput implements Closeable {
+    private final Protocol protocol;
+    private final String shellId;
+    private final String commandId;
+    private final int capacity;
+    private final ByteRing stdout;
+    private final ByteRing stderr;
+    private final InputStream stdoutStream;
+    private final InputStream stderrStream;
+    private final Object lock = new Object();
+    private final ReceivePacer sink = new ReceivePacer(this::buffer);
+    private boolean polling;
+    private boolean done;
+    private boolean closed;
+    private int exitCode = -1;
+    private int polls;
+    private Exception failure;
+
+    /**
+     * @param capacity bytes buffered per stream before polling pauses
+     * @param slack    room above capacity for the output of the Receive in flight
+     */
+    CommandOutput(Protocol protocol, String shellId, String commandId, int capacity, int slack) {
+        this.protocol = protocol;
+        this.shellId = shellId;
+        this.commandId = commandId;
+        this.capacity = capacity;
+        this.stdout = new ByteRing(capacity + slack);
+        this.stderr = new ByteRing(capacity + slack);
+        this.stdoutStream = new StreamView(stdout);
+        this.stderrStream = new StreamView(stderr);
+    }
+
+    public String getShellId() {
+        return shellId;
+    }
+
+    public String getCommandId() {
+        return commandId;
+    }
+
+    public InputStream getStdout() {
+        return stdoutStream;
+    }
+
+    public InputStream getStderr() {
+        return stderrStream;
+    }
+
+    public boolean isDone() {
+        synchronized (lock) {
+            return done;
+        }
+    }
+
+    /**
+     * @return the exit code, -1 until the command is done
+     */
+    public int getExitCode() {
+        synchronized (lock) {
+            return exitCode;
+        }
+    }
+
+    /**
+     * Polls until the command is done. Output keeps being buffered meanwhile, so this
+     * blocks for good if nobody reads it and it outgrows the buffers.
+     */
+    public int waitFor() throws IOException {
+        fill(null);
+        return getExitCode();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until ring has data, or until the command is done when ring is null.
+     */
+    private void fill(ByteRing ring) throws IOException {
+        while (true) {
+            synchronized (lock) {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Command output is closed");
+                    }
+                    if (failure != null) {
+                        throw new IOException(String.format("Failed to receive output of command %s", commandId), failure);
+                    }
+                    if (done || (ring != null && ring.size() > 0)) {
+                        return;
+                    }
+                    if (!polling && stdout.size() <= capacity && stderr.size() <= capacity) {
+                        polling = true;
+                        break;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for command output");
+                    }
+                }
+            }
+            poll();
+        }
+    }
+
+    private void poll() {
+        ReceiveState state = null;
+        Exception error = null;
+        try {
+            state = protocol._pollCommandOutput(shellId, commandId, sink);
+        } catch (Exception e) {
+            error = e;
+        }
+        synchronized (lock) {
+            polling = false;
+            polls++;
+            if (error != null) {
+                failure = error;
+            } else if (state != null && state.isDone()) {
+                done = true;
+                exitCode = state.getExitCode();
+                protocol.getListener().onCommandDone(polls);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void buffer(String id, String stream, byte[] buffer, int offset, int length) {
+        synchronized (lock) {
+            if (stream.equals("stdout")) {
+                stdout.write(buffer, offset, length);
+            } else if (stream.equals("stderr")) {
+                stderr.write(buffer, offset, length);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private class StreamView extends InputStream {
+        private final ByteRing ring;
+
+        StreamView(ByteRing ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                fill(ring);
+                synchronized (lock) {
+                    if (ring.size() > 0) {
+                        int n = ring.read(b, off, len);
+                        lock.notifyAll();
+                        return n;
+                    }
+                    if (done) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return ring.size();
+            }
+        }
+    }
+}
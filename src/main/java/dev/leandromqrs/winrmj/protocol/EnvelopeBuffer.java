@@ -0,0 +1,237 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Growable byte buffer envelopes are rendered into. Meant to be reset and reused,
+ * text is encoded to UTF-8 and XML-escaped in place without intermediate Strings.
+ */
+public class EnvelopeBuffer {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private byte[] buf;
+    private int length;
+
+    public EnvelopeBuffer() {
+        this(4096);
+    }
+
+    public EnvelopeBuffer(int capacity) {
+        this.buf = new byte[capacity];
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public EnvelopeBuffer reset() {
+        length = 0;
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, length);
+    }
+
+    EnvelopeBuffer append(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    EnvelopeBuffer appendInt(int value) {
+        if (value < 0) {
+            // never the case for codepages and timeouts, not worth a digit loop of its own
+            return appendText(Integer.toString(value));
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    EnvelopeBuffer appendUuid(UUID uuid) {
+        ensure(36);
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        hex(msb >>> 32, 8);
+        buf[length++] = '-';
+        hex(msb >>> 16, 4);
+        buf[length++] = '-';
+        hex(msb, 4);
+        buf[length++] = '-';
+        hex(lsb >>> 48, 4);
+        buf[length++] = '-';
+        hex(lsb, 12);
+        return this;
+    }
+
+    /**
+     * Appends data Base64 encoded, padded and without line breaks.
+     */
+    EnvelopeBuffer appendBase64(byte[] data, int offset, int count) {
+        ensure((count + 2) / 3 * 4);
+        int end = offset + count;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            buf[length++] = BASE64[bits >>> 18];
+            buf[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buf[length++] = BASE64[(bits >>> 6) & 0x3f];
+            buf[length++] = BASE64[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data[i] & 0xff) << 16 | (i + 1 < end ? (data[i + 1] & 0xff) << 8 : 0);
+            buf[length++] = BASE64[bits >>> 18];
+            buf[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buf[length++] = i + 1 < end ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+            buf[length++] = '=';
+        }
+        return this;
+    }
+
+    /**
+     * Appends the remaining bytes of data Base64 encoded, leaving its position alone. A
+     * direct or mapped buffer is encoded in place, without copying it to the heap first.
+     */
+    EnvelopeBuffer appendBase64(ByteBuffer data) {
+        if (data.hasArray()) {
+            return appendBase64(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        int count = data.remaining();
+        ensure((count + 2) / 3 * 4);
+        int end = data.limit();
+        int i = data.position();
+        for (; i + 2 < end; i += 3) {
+            int bits = (data.get(i) & 0xff) << 16 | (data.get(i + 1) & 0xff) << 8 | (data.get(i + 2) & 0xff);
+            buf[length++] = BASE64[bits >>> 18];
+            buf[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buf[length++] = BASE64[(bits >>> 6) & 0x3f];
+            buf[length++] = BASE64[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data.get(i) & 0xff) << 16 | (i + 1 < end ? (data.get(i + 1) & 0xff) << 8 : 0);
+            buf[length++] = BASE64[bits >>> 18];
+            buf[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buf[length++] = i + 1 < end ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+            buf[length++] = '=';
+        }
+        return this;
+    }
+
+    /**
+     * Appends character data escaped the way the SAAJ serializer escapes text nodes.
+     */
+    EnvelopeBuffer appendText(String text) {
+        return appendEscaped(text, false);
+    }
+
+    /**
+     * Appends an attribute value escaped the way the SAAJ serializer escapes attributes.
+     */
+    EnvelopeBuffer appendAttribute(String value) {
+        return appendEscaped(value, true);
+    }
+
+    private EnvelopeBuffer appendEscaped(String s, boolean attribute) {
+        int n = s.length();
+        // worst case per char is a &#NNNNNNN; reference, but common text is plain ASCII
+        ensure(n * 3);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x7f) {
+                switch (c) {
+                    case '&':
+                        ascii("&amp;");
+                        break;
+                    case '<':
+                        ascii("&lt;");
+                        break;
+                    case '>':
+                        ascii("&gt;");
+                        break;
+                    case '"':
+                        if (attribute) {
+                            ascii("&quot;");
+                        } else {
+                            put((byte) c);
+                        }
+                        break;
+                    default:
+                        put((byte) c);
+                }
+            } else if (c < 0x20) {
+                if ((c == '\n' || c == '\t') && !attribute) {
+                    put((byte) c);
+                } else {
+                    reference(c);
+                }
+            } else if (c <= 0x9f && !attribute) {
+                // DEL and the C1 controls are referenced in text, not in attributes
+                reference(c);
+            } else if (c == 0x7f) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xc0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // the serializer writes supplementary characters as references, not as UTF-8
+                reference(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                put((byte) (0xe0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return this;
+    }
+
+    private void reference(int c) {
+        ascii("&#");
+        ascii(Integer.toString(c));
+        put((byte) ';');
+    }
+
+    private void ascii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(byte b) {
+        if (length == buf.length) {
+            ensure(1);
+        }
+        buf[length++] = b;
+    }
+
+    private void hex(long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            buf[length + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+        length += digits;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Pre-rendered WS-Man envelopes for the shell actions, for cmd shells or PowerShell
+ * runspace pools depending on the ResourceURI they are built for.
+ * <p>
+ * Everything that only depends on the Protocol settings (namespaces, endpoint,
+ * MaxEnvelopeSize, locale, OperationTimeout, ResourceURI and Action) is rendered to
+ * bytes once; building a message is then a matter of copying those fragments and
+ * splicing the MessageID, selectors and body values in between. The output is byte
+ * for byte what the SAAJ implementation serializes for the same message.
+ */
+public class EnvelopeTemplates {
+    public static final String RESOURCE_URI_CMD = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/cmd";
+    public static final String RESOURCE_URI_POWERSHELL = "http://schemas.microsoft.com/powershell/Microsoft.PowerShell";
+    // every shell of the user, whatever its kind
+    public static final String RESOURCE_URI_SHELL = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell";
+    public static final String RESOURCE_URI_WMI = "http://schemas.microsoft.com/wbem/wsman/1/wmi/%s";
+    public static final String ACTION_CREATE = "http://schemas.xmlsoap.org/ws/2004/09/transfer/Create";
+    public static final String ACTION_DELETE = "http://schemas.xmlsoap.org/ws/2004/09/transfer/Delete";
+    public static final String ACTION_COMMAND = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Command";
+    public static final String ACTION_RECEIVE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Receive";
+    public static final String ACTION_SEND = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Send";
+    public static final String ACTION_SIGNAL = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Signal";
+    public static final String ACTION_ENUMERATE = "http://schemas.xmlsoap.org/ws/2004/09/enumeration/Enumerate";
+    public static final String ACTION_PULL = "http://schemas.xmlsoap.org/ws/2004/09/enumeration/Pull";
+    public static final String ACTION_RELEASE = "http://schemas.xmlsoap.org/ws/2004/09/enumeration/Release";
+    public static final String DIALECT_WQL = "http://schemas.microsoft.com/wbem/wsman/1/WQL";
+    public static final String SIGNAL_TERMINATE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/signal/terminate";
+    // stops a PowerShell pipeline, spelled that way on the server too
+    public static final String SIGNAL_PS_CTRL_C = "powershell/signal/crtl_c";
+    public static final String PSRP_PROTOCOL_VERSION = "2.2";
+
+    private static final byte[] ENVELOPE_START = bytes("<env:Envelope"
+            + " xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\""
+            + " xmlns:a=\"http://schemas.xmlsoap.org/ws/2004/08/addressing\""
+            + " xmlns:b=\"http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd\""
+            + " xmlns:cfg=\"http://schemas.microsoft.com/wbem/wsman/1/config\""
+            + " xmlns:n=\"http://schemas.xmlsoap.org/ws/2004/09/enumeration\""
+            + " xmlns:p=\"http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd\""
+            + " xmlns:rsp=\"http://schemas.microsoft.com/wbem/wsman/1/windows/shell\""
+            + " xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+            + " xmlns:x=\"http://schemas.xmlsoap.org/ws/2004/09/transfer\""
+            + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<env:Header>");
+    private static final byte[] HEADER_END_BODY_START = bytes("</env:Header><env:Body>");
+    private static final byte[] BODY_END = bytes("</env:Body></env:Envelope>");
+    private static final byte[] HEADER_END_EMPTY_BODY = bytes("</env:Header><env:Body/></env:Envelope>");
+    private static final byte[] SELECTOR_SHELL_ID = bytes("<w:SelectorSet><w:Selector Name=\"ShellId\"");
+    private static final byte[] SELECTOR_END = bytes("</w:Selector></w:SelectorSet>");
+    private static final byte[] SELECTOR_EMPTY_END = bytes("/></w:SelectorSet>");
+    private static final byte[] OPTION_START = bytes("<w:OptionSet><w:Option Name=\"");
+    private static final byte[] OPTION_END = bytes("</w:Option></w:OptionSet>");
+    private static final byte[] OPTION_TRUE = bytes("\">TRUE");
+    private static final byte[] OPTION_FALSE = bytes("\">FALSE");
+    private static final byte[] SHELL_START = bytes("<rsp:Shell>");
+    private static final byte[] SHELL_END = bytes("</rsp:Shell>");
+    private static final byte[] ENVIRONMENT_START = bytes("<rsp:Environment>");
+    private static final byte[] ENVIRONMENT_END = bytes("</rsp:Environment>");
+    private static final byte[] ENVIRONMENT_EMPTY = bytes("<rsp:Environment/>");
+    private static final byte[] VARIABLE_START = bytes("<rsp:Variable Name=\"");
+    private static final byte[] VARIABLE_END = bytes("</rsp:Variable>");
+    private static final byte[] COMMAND_LINE_START = bytes("<rsp:CommandLine>");
+    private static final byte[] COMMAND_LINE_END = bytes("</rsp:CommandLine>");
+    private static final byte[] RECEIVE_START = bytes("<rsp:Receive><rsp:DesiredStream CommandId=\"");
+    private static final byte[] RECEIVE_SHELL_START = bytes("<rsp:Receive><rsp:DesiredStream>");
+    private static final byte[] DESIRED_STREAM_END = bytes("</rsp:DesiredStream>");
+    private static final byte[] RECEIVE_END = bytes("</rsp:Receive>");
+    // attributes in name order, as SAAJ writes them
+    private static final byte[] SEND_START = bytes("<rsp:Send><rsp:Stream CommandId=\"");
+    private static final byte[] STREAM_END_ATTRIBUTE = bytes("\" End=\"true");
+    private static final byte[] STREAM_NAME = bytes("\" Name=\"");
+    private static final byte[] SEND_END = bytes("</rsp:Stream></rsp:Send>");
+    private static final byte[] SEND_EMPTY_END = bytes("\"/></rsp:Send>");
+    private static final byte[] SIGNAL_START = bytes("<rsp:Signal CommandId=\"");
+    private static final byte[] SIGNAL_END = bytes("</rsp:Signal>");
+    private static final byte[] OPERATION_TIMEOUT_START = bytes("<w:OperationTimeout>PT");
+    private static final byte[] OPERATION_TIMEOUT_END = bytes("S</w:OperationTimeout>");
+    private static final byte[] TAG_END = bytes(">");
+    private static final byte[] ATTRIBUTE_END = bytes("\">");
+    private static final byte[] ATTRIBUTE_END_EMPTY = bytes("\"/>");
+    private static final byte[] ENUMERATE_START = bytes("<n:Enumerate><w:OptimizeEnumeration/><w:MaxElements>");
+    private static final byte[] MAX_ELEMENTS_END = bytes("</w:MaxElements>");
+    private static final byte[] FILTER_START = bytes("<w:Filter Dialect=\"");
+    private static final byte[] FILTER_END = bytes("</w:Filter>");
+    private static final byte[] ENUMERATE_END = bytes("</n:Enumerate>");
+    private static final byte[] PULL_START = bytes("<n:Pull>");
+    private static final byte[] PULL_MAX_ELEMENTS = bytes("<n:MaxElements>");
+    private static final byte[] PULL_END = bytes("</n:MaxElements></n:Pull>");
+    private static final byte[] RELEASE_START = bytes("<n:Release>");
+    private static final byte[] RELEASE_END = bytes("</n:Release>");
+    private static final byte[] PROTOCOL_VERSION_OPTION = bytes("<w:OptionSet env:mustUnderstand=\"true\">"
+            + "<w:Option Name=\"protocolversion\" MustComply=\"true\">" + PSRP_PROTOCOL_VERSION + "</w:Option></w:OptionSet>");
+    private static final byte[] SHELL_ID_START = bytes("<rsp:Shell ShellId=\"");
+    private static final byte[] CREATION_XML_START = bytes("<creationXml xmlns=\"http://schemas.microsoft.com/powershell\">");
+    private static final byte[] CREATION_XML_END = bytes("</creationXml>");
+    private static final byte[] COMMAND_LINE_ID_START = bytes("<rsp:CommandLine CommandId=\"");
+    private static final byte[] EMPTY_COMMAND_ARGUMENTS = bytes("\"><rsp:Command/><rsp:Arguments>");
+    private static final byte[] ARGUMENTS_END = bytes("</rsp:Arguments>");
+
+    private static final Element INPUT_STREAMS = new Element("InputStreams");
+    private static final Element OUTPUT_STREAMS = new Element("OutputStreams");
+    private static final Element WORKING_DIRECTORY = new Element("WorkingDirectory");
+    private static final Element IDLE_TIMEOUT = new Element("IdleTimeOut");
+    private static final Element COMMAND = new Element("rsp:Command");
+    private static final Element ARGUMENTS = new Element("rsp:Arguments");
+    private static final Element RESOURCE_URI = new Element("w:ResourceURI");
+    private static final Element ACTION = new Element("a:Action");
+    private static final Element CODE = new Element("rsp:Code");
+    private static final Element ENUMERATION_CONTEXT = new Element("n:EnumerationContext");
+
+    // <env:Envelope ...><env:Header>...<a:MessageID>uuid:
+    private final byte[] messageIdStart;
+    // </a:MessageID>... up to the OperationTimeout, for actions on any ResourceURI
+    private final byte[] commonHeader;
+    // </a:MessageID>...<a:Action>...</a:Action>, one per action
+    private final byte[] createHeader;
+    private final byte[] deleteHeader;
+    private final byte[] commandHeader;
+    private final byte[] receiveHeader;
+    // receiveHeader up to and after the OperationTimeout, for Receives with one of their own
+    private final byte[] localeHeader;
+    private final byte[] receiveAction;
+    private final byte[] sendHeader;
+    private final byte[] signalHeader;
+
+    public EnvelopeTemplates(String endpoint, int maxEnvSize, String locale, String timeout) {
+        this(endpoint, maxEnvSize, locale, timeout, RESOURCE_URI_CMD);
+    }
+
+    /**
+     * @param resourceUri kind of shell the shell actions are for
+     */
+    public EnvelopeTemplates(String endpoint, int maxEnvSize, String locale, String timeout, String resourceUri) {
+        EnvelopeBuffer buffer = new EnvelopeBuffer(1024);
+        buffer.append(ENVELOPE_START);
+        new Element("a:To").render(buffer, endpoint);
+        buffer.append(bytes("<a:ReplyTo><a:Address xml:lang=\"en-US\">"
+                + "http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous"
+                + "</a:Address></a:ReplyTo>"));
+        new Element("w:MaxEnvelopeSize").render(buffer, String.valueOf(maxEnvSize));
+        buffer.append(bytes("<a:MessageID>uuid:"));
+        this.messageIdStart = buffer.toByteArray();
+
+        buffer.reset();
+        buffer.append(bytes("</a:MessageID><w:Locale xml:lang=\"")).appendAttribute(locale);
+        buffer.append(bytes("\"/><p:DataLocale xml:lang=\"")).appendAttribute(locale);
+        buffer.append(bytes("\"/>"));
+        this.localeHeader = buffer.toByteArray();
+        new Element("w:OperationTimeout").render(buffer, timeout);
+        byte[] common = buffer.toByteArray();
+        this.commonHeader = common;
+        this.receiveAction = actionHeader(new byte[0], resourceUri, ACTION_RECEIVE);
+
+        this.createHeader = actionHeader(common, resourceUri, ACTION_CREATE);
+        this.deleteHeader = actionHeader(common, resourceUri, ACTION_DELETE);
+        this.commandHeader = actionHeader(common, resourceUri, ACTION_COMMAND);
+        this.receiveHeader = actionHeader(common, resourceUri, ACTION_RECEIVE);
+        this.sendHeader = actionHeader(common, resourceUri, ACTION_SEND);
+        this.signalHeader = actionHeader(common, resourceUri, ACTION_SIGNAL);
+    }
+
+    public UUID create(EnvelopeBuffer out, String iStream, String oStream, String workingDirectory, Map<String, String> envVars, boolean noProfile, int codepage, Integer idleTimeout) {
+        UUID messageId = start(out, createHeader);
+        if (noProfile) {
+            option(out, "WINRS_NOPROFILE", true);
+        }
+        if (codepage != 437) {
+            option(out, "WINRS_CODEPAGE", codepage);
+        }
+        out.append(HEADER_END_BODY_START).append(SHELL_START);
+        INPUT_STREAMS.render(out, iStream);
+        OUTPUT_STREAMS.render(out, oStream);
+        if (workingDirectory != null) {
+            WORKING_DIRECTORY.render(out, workingDirectory);
+        }
+        if (idleTimeout != null) {
+            // seconds, as an xs:duration
+            IDLE_TIMEOUT.render(out, "PT" + idleTimeout + "S");
+        }
+        if (envVars != null) {
+            if (envVars.isEmpty()) {
+                out.append(ENVIRONMENT_EMPTY);
+            } else {
+                out.append(ENVIRONMENT_START);
+                for (Map.Entry<String, String> entry : envVars.entrySet()) {
+                    out.append(VARIABLE_START).appendAttribute(entry.getKey());
+                    if (entry.getValue().isEmpty()) {
+                        out.append(ATTRIBUTE_END_EMPTY);
+                    } else {
+                        out.append(ATTRIBUTE_END).appendText(entry.getValue()).append(VARIABLE_END);
+                    }
+                }
+                out.append(ENVIRONMENT_END);
+            }
+        }
+        out.append(SHELL_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * Creates a PowerShell runspace pool, whose id is the ShellId and which the server
+     * opens from the PSRP messages in creationXml.
+     *
+     * @param creationXml fragments of the SESSION_CAPABILITY and INIT_RUNSPACEPOOL messages
+     */
+    public UUID createPowerShell(EnvelopeBuffer out, String shellId, ByteBuffer creationXml, Integer idleTimeout) {
+        UUID messageId = start(out, createHeader);
+        out.append(PROTOCOL_VERSION_OPTION);
+        out.append(HEADER_END_BODY_START).append(SHELL_ID_START).appendAttribute(shellId).append(ATTRIBUTE_END);
+        INPUT_STREAMS.render(out, "stdin pr");
+        OUTPUT_STREAMS.render(out, "stdout");
+        if (idleTimeout != null) {
+            IDLE_TIMEOUT.render(out, "PT" + idleTimeout + "S");
+        }
+        out.append(CREATION_XML_START).appendBase64(creationXml).append(CREATION_XML_END);
+        out.append(SHELL_END).append(BODY_END);
+        return messageId;
+    }
+
+    public UUID delete(EnvelopeBuffer out, String shellId) {
+        UUID messageId = start(out, deleteHeader);
+        selectorShellId(out, shellId);
+        out.append(HEADER_END_EMPTY_BODY);
+        return messageId;
+    }
+
+    public UUID command(EnvelopeBuffer out, String shellId, String command, String[] arguments, boolean consoleModeStdin, boolean skipCmdShell) {
+        UUID messageId = start(out, commandHeader);
+        selectorShellId(out, shellId);
+        option(out, "WINRS_CONSOLEMODE_STDIN", consoleModeStdin);
+        option(out, "WINRS_SKIP_CMD_SHELL", skipCmdShell);
+        out.append(HEADER_END_BODY_START).append(COMMAND_LINE_START);
+        COMMAND.render(out, command);
+        if (arguments != null && arguments.length > 0) {
+            ARGUMENTS.render(out, String.join(" ", arguments));
+        }
+        out.append(COMMAND_LINE_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * Starts a PowerShell pipeline, whose id is the CommandId.
+     *
+     * @param arguments first fragments of the CREATE_PIPELINE message
+     */
+    public UUID commandPowerShell(EnvelopeBuffer out, String shellId, String commandId, ByteBuffer arguments) {
+        UUID messageId = start(out, commandHeader);
+        selectorShellId(out, shellId);
+        out.append(HEADER_END_BODY_START).append(COMMAND_LINE_ID_START).appendAttribute(commandId)
+                .append(EMPTY_COMMAND_ARGUMENTS).appendBase64(arguments).append(ARGUMENTS_END)
+                .append(COMMAND_LINE_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * @param commandId null for output of the shell itself, that of a runspace pool
+     */
+    public UUID receive(EnvelopeBuffer out, String shellId, String commandId, String streamName) {
+        UUID messageId = start(out, receiveHeader);
+        return receiveBody(out, messageId, shellId, commandId, streamName);
+    }
+
+    /**
+     * @param timeoutSeconds OperationTimeout of this Receive instead of the default one
+     */
+    public UUID receive(EnvelopeBuffer out, String shellId, String commandId, String streamName, int timeoutSeconds) {
+        UUID messageId = start(out, localeHeader);
+        out.append(OPERATION_TIMEOUT_START).appendInt(timeoutSeconds).append(OPERATION_TIMEOUT_END).append(receiveAction);
+        return receiveBody(out, messageId, shellId, commandId, streamName);
+    }
+
+    private static UUID receiveBody(EnvelopeBuffer out, UUID messageId, String shellId, String commandId, String streamName) {
+        selectorShellId(out, shellId);
+        if (commandId == null) {
+            out.append(HEADER_END_BODY_START).append(RECEIVE_SHELL_START).appendText(streamName).append(DESIRED_STREAM_END);
+            out.append(RECEIVE_END).append(BODY_END);
+            return messageId;
+        }
+        out.append(HEADER_END_BODY_START).append(RECEIVE_START).appendAttribute(commandId);
+        if (streamName.isEmpty()) {
+            out.append(ATTRIBUTE_END_EMPTY);
+        } else {
+            out.append(ATTRIBUTE_END).appendText(streamName).append(DESIRED_STREAM_END);
+        }
+        out.append(RECEIVE_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * @param end whether this is the last input, which closes the stream for the command
+     */
+    public UUID send(EnvelopeBuffer out, String shellId, String commandId, String streamName, byte[] data, int offset, int length, boolean end) {
+        return send(out, shellId, commandId, streamName, ByteBuffer.wrap(data, offset, length), end);
+    }
+
+    /**
+     * @param data input from its position to its limit, the position is left alone
+     */
+    public UUID send(EnvelopeBuffer out, String shellId, String commandId, String streamName, ByteBuffer data, boolean end) {
+        UUID messageId = start(out, sendHeader);
+        selectorShellId(out, shellId);
+        out.append(HEADER_END_BODY_START).append(SEND_START).appendAttribute(commandId);
+        if (end) {
+            out.append(STREAM_END_ATTRIBUTE);
+        }
+        out.append(STREAM_NAME).appendAttribute(streamName);
+        if (!data.hasRemaining()) {
+            out.append(SEND_EMPTY_END);
+        } else {
+            out.append(ATTRIBUTE_END).appendBase64(data).append(SEND_END);
+        }
+        out.append(BODY_END);
+        return messageId;
+    }
+
+    public UUID signal(EnvelopeBuffer out, String shellId, String commandId, String code) {
+        UUID messageId = start(out, signalHeader);
+        selectorShellId(out, shellId);
+        out.append(HEADER_END_BODY_START).append(SIGNAL_START).appendAttribute(commandId).append(ATTRIBUTE_END);
+        CODE.render(out, code);
+        out.append(SIGNAL_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * Starts an enumeration with the items in the response itself
+     * (OptimizeEnumeration), as many as maxElements.
+     */
+    public UUID enumerate(EnvelopeBuffer out, String resourceUri, int maxElements) {
+        return enumerate(out, resourceUri, maxElements, null, null);
+    }
+
+    /**
+     * @param dialect filter dialect, {@link #DIALECT_WQL} for instance, null for no filter
+     */
+    public UUID enumerate(EnvelopeBuffer out, String resourceUri, int maxElements, String dialect, String filter) {
+        UUID messageId = start(out, commonHeader);
+        RESOURCE_URI.render(out, resourceUri);
+        ACTION.render(out, ACTION_ENUMERATE);
+        out.append(HEADER_END_BODY_START).append(ENUMERATE_START).appendInt(maxElements).append(MAX_ELEMENTS_END);
+        if (dialect != null) {
+            out.append(FILTER_START).appendAttribute(dialect);
+            if (filter.isEmpty()) {
+                out.append(ATTRIBUTE_END_EMPTY);
+            } else {
+                out.append(ATTRIBUTE_END).appendText(filter).append(FILTER_END);
+            }
+        }
+        out.append(ENUMERATE_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * @param context EnumerationContext of the previous Enumerate or Pull response
+     */
+    public UUID pull(EnvelopeBuffer out, String resourceUri, String context, int maxElements) {
+        UUID messageId = start(out, commonHeader);
+        RESOURCE_URI.render(out, resourceUri);
+        ACTION.render(out, ACTION_PULL);
+        out.append(HEADER_END_BODY_START).append(PULL_START);
+        ENUMERATION_CONTEXT.render(out, context);
+        out.append(PULL_MAX_ELEMENTS).appendInt(maxElements).append(PULL_END).append(BODY_END);
+        return messageId;
+    }
+
+    /**
+     * Ends an enumeration before its EndOfSequence, freeing it on the server.
+     */
+    public UUID release(EnvelopeBuffer out, String resourceUri, String context) {
+        UUID messageId = start(out, commonHeader);
+        RESOURCE_URI.render(out, resourceUri);
+        ACTION.render(out, ACTION_RELEASE);
+        out.append(HEADER_END_BODY_START).append(RELEASE_START);
+        ENUMERATION_CONTEXT.render(out, context);
+        out.append(RELEASE_END).append(BODY_END);
+        return messageId;
+    }
+
+    private UUID start(EnvelopeBuffer out, byte[] actionHeader) {
+        UUID messageId = UUID.randomUUID();
+        out.reset().append(messageIdStart).appendUuid(messageId).append(actionHeader);
+        return messageId;
+    }
+
+    private static void selectorShellId(EnvelopeBuffer out, String shellId) {
+        out.append(SELECTOR_SHELL_ID);
+        if (shellId.isEmpty()) {
+            out.append(SELECTOR_EMPTY_END);
+        } else {
+            out.append(TAG_END).appendText(shellId).append(SELECTOR_END);
+        }
+    }
+
+    private static void option(EnvelopeBuffer out, String name, boolean value) {
+        out.append(OPTION_START).appendAttribute(name).append(value ? OPTION_TRUE : OPTION_FALSE).append(OPTION_END);
+    }
+
+    private static void option(EnvelopeBuffer out, String name, int value) {
+        out.append(OPTION_START).appendAttribute(name).append(ATTRIBUTE_END).appendInt(value).append(OPTION_END);
+    }
+
+    private static byte[] actionHeader(byte[] common, String resourceUri, String action) {
+        EnvelopeBuffer buffer = new EnvelopeBuffer(common.length + 256);
+        buffer.append(common);
+        RESOURCE_URI.render(buffer, resourceUri);
+        ACTION.render(buffer, action);
+        return buffer.toByteArray();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A text-only element. Empty text collapses to a self-closing tag like SAAJ does.
+     */
+    private static class Element {
+        private final byte[] open;
+        private final byte[] close;
+        private final byte[] empty;
+
+        Element(String name) {
+            this.open = bytes("<" + name + ">");
+            this.close = bytes("</" + name + ">");
+            this.empty = bytes("<" + name + "/>");
+        }
+
+        void render(EnvelopeBuffer out, String text) {
+            if (text.isEmpty()) {
+                out.append(empty);
+            } else {
+                out.append(open).appendText(text).append(close);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the output of one stream as it is received, in the charset of the shell's
+ * codepage, see {@link Codepages}.
+ * <p>
+ * A character whose bytes are split between two Receives is held back until the rest
+ * of it arrives instead of being decoded in halves. What cannot be decoded becomes
+ * U+FFFD, the way .NET does it. The text is kept in pooled char buffers until
+ * {@link #finish()} turns it into a String.
+ */
+public final class OutputDecoder {
+    // longer than any character of the codepages Windows has
+    private static final int CARRY_SIZE = 16;
+
+    private final CharsetDecoder decoder;
+    private final long limit;
+    private final ByteBuffer carry = ByteBuffer.allocate(CARRY_SIZE);
+    private final CharChunks chars = new CharChunks();
+    private long bytes;
+    private boolean truncated;
+    private boolean finished;
+
+    /**
+     * @param limit bytes decoded, the output past that is dropped
+     */
+    public OutputDecoder(Charset charset, long limit) {
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.limit = limit;
+    }
+
+    public void write(byte[] buffer, int offset, int length) {
+        write(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer, which is left with none remaining.
+     */
+    public synchronized void write(ByteBuffer buffer) {
+        if (finished) {
+            throw new IllegalStateException("Decoder already finished");
+        }
+        ByteBuffer in = buffer.slice();
+        buffer.position(buffer.limit());
+        long room = limit - bytes;
+        if (in.remaining() > room) {
+            truncated = true;
+            in.limit((int) Math.max(room, 0));
+        }
+        bytes += in.remaining();
+        // the rest of a held back character, a byte at a time so as not to take more
+        while (carry.position() > 0 && in.hasRemaining()) {
+            carry.put(in.get());
+            carry.flip();
+            decode(carry, false);
+            carry.compact();
+            if (!carry.hasRemaining()) {
+                // cannot be, short of a broken decoder; better garbled than stuck
+                carry.flip();
+                decode(carry, true);
+                carry.clear();
+            }
+        }
+        if (in.hasRemaining()) {
+            decode(in, false);
+            carry.put(in);
+        }
+    }
+
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Decodes what was held back and returns the text. The decoder cannot be written to
+     * afterwards.
+     */
+    public synchronized String finish() {
+        if (finished) {
+            throw new IllegalStateException("Decoder already finished");
+        }
+        finished = true;
+        if (truncated) {
+            // the limit may have cut a character, better left out than replaced
+            carry.clear();
+        }
+        carry.flip();
+        decode(carry, true);
+        CharBuffer out = chars.tail();
+        while (decoder.flush(out).isOverflow()) {
+            out = chars.tail();
+        }
+        String text = chars.toString();
+        chars.release();
+        return text;
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars.tail(), endOfInput);
+        } while (result.isOverflow());
+    }
+}
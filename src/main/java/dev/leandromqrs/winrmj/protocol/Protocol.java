@@ -1,60 +1,107 @@
 package dev.leandromqrs.winrmj.protocol;
 
+import dev.leandromqrs.winrmj.exceptions.WinRMAuthorizationError;
+import dev.leandromqrs.winrmj.exceptions.WinRMInterruptedError;
+import dev.leandromqrs.winrmj.exceptions.WinRMTransportError;
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+import dev.leandromqrs.winrmj.exceptions.WinRMWebServiceError;
+import dev.leandromqrs.winrmj.metrics.Operation;
+import dev.leandromqrs.winrmj.metrics.ProtocolListener;
+import dev.leandromqrs.winrmj.resilience.CircuitBreaker;
+import dev.leandromqrs.winrmj.resilience.Resilience;
+import dev.leandromqrs.winrmj.transport.HttpTransport;
+import dev.leandromqrs.winrmj.transport.KerberosAuthenticator;
+import dev.leandromqrs.winrmj.transport.TlsContexts;
+import dev.leandromqrs.winrmj.transport.TransportOptions;
+import dev.leandromqrs.winrmj.transport.TransportStats;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.time.Duration;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import javax.xml.soap.MessageFactory;
-import javax.xml.soap.SOAPBody;
-import javax.xml.soap.SOAPConnection;
-import javax.xml.soap.SOAPConnectionFactory;
-import javax.xml.soap.SOAPElement;
-import javax.xml.soap.SOAPEnvelope;
-import javax.xml.soap.SOAPHeader;
-import javax.xml.soap.SOAPMessage;
-import javax.xml.soap.SOAPPart;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import jakarta.xml.soap.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import javax.net.ssl.SSLContext;
+
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.MimeHeaders;
+import jakarta.xml.soap.SOAPBody;
+import jakarta.xml.soap.SOAPConstants;
+import jakarta.xml.soap.SOAPException;
+import jakarta.xml.soap.SOAPFault;
+import jakarta.xml.soap.SOAPHeader;
+import jakarta.xml.soap.SOAPMessage;
+import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 public class Protocol {
     public static final String DEFAULT_TIMEOUT = "PT60S";
+    static final int DEFAULT_TIMEOUT_SECONDS = 60;
     public static final int DEFAULT_MAX_ENV_SIZE = 153600;
     public static final String DEFAULT_LOCALE = "en-US";
+    // WSManFault code of a Receive that saw no output within OperationTimeout
+    public static final String OPERATION_TIMEOUT_CODE = "2150858793";
+    // WSManFault code of a request against a shell the server does not know (anymore)
+    public static final String SHELL_NOT_FOUND_CODE = "2150858843";
+    public static final int DEFAULT_OUTPUT_BUFFER_SIZE = 1024 * 1024;
+    // shells asked for per Enumerate or Pull, the server sends fewer if they do not fit MaxEnvelopeSize
+    static final int ENUMERATION_MAX_ELEMENTS = 100;
+
+    // envelopes are rendered into a per-thread buffer, the transport is done with it once send returns
+    private static final ThreadLocal<EnvelopeBuffer> BUFFERS = ThreadLocal.withInitial(EnvelopeBuffer::new);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
 
     private String endpoint;
     private String timeout;
     private int maxEnvSize;
     private String locale;
-    private HttpClient transport;
+    private HttpTransport transport;
     private String username;
     private String password;
     private String service;
     private String keytab;
     private String caTrustPath;
+    private volatile String resourceUri = EnvelopeTemplates.RESOURCE_URI_CMD;
+    private volatile String outputStreams = "stdout stderr";
+    private volatile EnvelopeTemplates templates;
+    private MessageFactory messageFactory;
+    private volatile ProtocolListener listener = ProtocolListener.NONE;
+    private volatile ReceiveScheduler receiveScheduler;
+    private volatile Resilience resilience;
+    private volatile int timeoutSeconds;
+    private final AsyncProtocol async = new AsyncProtocol(this);
 
     public Protocol(String endpoint, String transport, String username, String password, String service, String keytab, String caTrustPath) {
+        this(endpoint, transport, username, password, service, keytab, caTrustPath, new TransportOptions());
+    }
+
+    public Protocol(String endpoint, String transport, String username, String password, String service, String keytab, String caTrustPath, TransportOptions transportOptions) {
         this.endpoint = endpoint;
         this.timeout = DEFAULT_TIMEOUT;
+        this.timeoutSeconds = DEFAULT_TIMEOUT_SECONDS;
         this.maxEnvSize = DEFAULT_MAX_ENV_SIZE;
         this.locale = DEFAULT_LOCALE;
-        if (transport.equalsIgnoreCase("plaintext")) {
-            this.transport = HttpClient.newBuilder().build();
+        // "ssl" is Basic over HTTPS, the other transports go over HTTPS once a CA or a pin is given
+        boolean tls = transport.equalsIgnoreCase("ssl") || caTrustPath != null || transportOptions.getCertificateThumbprint() != null;
+        URI uri = URI.create(String.format("%s://%s", tls ? "https" : "http", endpoint));
+        SSLContext sslContext = tls ? _sslContext(caTrustPath, transportOptions.getCertificateThumbprint()) : null;
+        if (transport.equalsIgnoreCase("plaintext") || transport.equalsIgnoreCase("ssl")) {
+            this.transport = new HttpTransport(uri, username, password, sslContext, transportOptions);
         } else if (transport.equalsIgnoreCase("kerberos")) {
-            // TODO: Implement kerberos transport
-            throw new UnsupportedOperationException("Kerberos transport is not supported yet.");
+            KerberosAuthenticator kerberos = new KerberosAuthenticator(username, password, keytab, service);
+            this.transport = new HttpTransport(uri, kerberos, sslContext, transportOptions);
         } else {
             throw new IllegalArgumentException("Invalid transport type: " + transport);
         }
@@ -63,374 +110,632 @@ public class Protocol {
         this.service = service;
         this.keytab = keytab;
         this.caTrustPath = caTrustPath;
+        // one connection stays free for Commands, Sends and Signals while Receives long-poll
+        this.receiveScheduler = new ReceiveScheduler(Math.max(1, transportOptions.getMaxConnectionsPerHost() - 1));
+        this.templates = new EnvelopeTemplates(endpoint, maxEnvSize, locale, timeout, resourceUri);
+        try {
+            this.messageFactory = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL);
+        } catch (SOAPException e) {
+            throw new IllegalStateException("No SOAP 1.2 MessageFactory available", e);
+        }
+    }
+
+    public TransportStats getTransportStats() {
+        return transport.getStats();
+    }
+
+    /**
+     * @return the non-blocking view of this protocol, sharing its transport and settings
+     */
+    public AsyncProtocol async() {
+        return async;
+    }
+
+    public ProtocolListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @param listener gets timings and counts of every request from now on, null for none
+     */
+    public void setListener(ProtocolListener listener) {
+        this.listener = listener != null ? listener : ProtocolListener.NONE;
+    }
+
+    public ReceiveScheduler getReceiveScheduler() {
+        return receiveScheduler;
+    }
+
+    /**
+     * Replaces the scheduler of this protocol's Receives, for instance with one shared by
+     * all Protocols talking to the same endpoint.
+     */
+    public void setReceiveScheduler(ReceiveScheduler receiveScheduler) {
+        this.receiveScheduler = receiveScheduler;
     }
 
+    public Resilience getResilience() {
+        return resilience;
+    }
+
+    /**
+     * Retries failed requests and fails fast on hosts whose circuit is open, see
+     * {@link Resilience}. Null, the default, sends every request once. With a resilience
+     * set, Receive responses are read in full before their output goes to the sink, so a
+     * retried Receive never hands on part of a response twice.
+     */
+    public void setResilience(Resilience resilience) {
+        this.resilience = resilience;
+    }
+
+    int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    EnvelopeTemplates getTemplates() {
+        return templates;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the WS-Man OperationTimeout. A Receive waits up to that long on the server for
+     * output before it returns, which is what keeps the output loop from busy polling;
+     * the ReceiveScheduler picks shorter ones for commands that just had output.
+     */
     public String setTimeout(int seconds) {
         // in original library there is an alias - op_timeout method
-        return String.format("%dS", seconds);
+        if (seconds < 1 || seconds >= transport.getOptions().getReadTimeout().getSeconds()) {
+            throw new IllegalArgumentException(String.format("Operation timeout must be positive and below the transport read timeout (%s): %d",
+                    transport.getOptions().getReadTimeout(), seconds));
+        }
+        this.timeout = String.format("PT%dS", seconds);
+        this.timeoutSeconds = seconds;
+        this.templates = new EnvelopeTemplates(endpoint, maxEnvSize, locale, timeout, resourceUri);
+        return timeout;
     }
 
-    public String openShell(String iStream, String oStream, String workingDirectory, Map<String, String> envVars, boolean noProfile, int codepage, Integer lifetime, Integer idleTimeout) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage message = messageFactory.createMessage();
-        SOAPPart soapPart = message.getSOAPPart();
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
-        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
-        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
-        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
-        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
-        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
-        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
-        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
-
-        SOAPHeader header = envelope.getHeader();
-        if (header == null) {
-            header = envelope.addHeader();
-        }
-        _buildSoapHeader(header, message.getMessageID());
-        _setResourceUriCmd(header);
-        _setActionCreate(header);
-        if (noProfile) {
-            _setOption(header, "WINRS_NOPROFILE", true);
-        }
-        if (codepage != 437) {
-            _setOption(header, "WINRS_CODEPAGE", codepage);
-        }
+    public String getResourceUri() {
+        return resourceUri;
+    }
 
-        SOAPBody body = envelope.getBody();
-        if (body == null) {
-            body = envelope.addBody();
-        }
-        SOAPElement shell = body.addChildElement("Shell", "rsp");
-        shell.addChildElement("InputStreams").addTextNode(iStream);
-        shell.addChildElement("OutputStreams").addTextNode(oStream);
-        if (workingDirectory != null) {
-            shell.addChildElement("WorkingDirectory").addTextNode(workingDirectory);
+    /**
+     * Sets the kind of shell the shell actions are for, {@link EnvelopeTemplates#RESOURCE_URI_CMD}
+     * by default. A protocol set to {@link EnvelopeTemplates#RESOURCE_URI_POWERSHELL} talks
+     * to runspace pools, see {@link dev.leandromqrs.winrmj.psrp.RunspacePool}, whose only
+     * output stream is stdout.
+     */
+    public void setResourceUri(String resourceUri) {
+        if (resourceUri == null || resourceUri.isEmpty()) {
+            throw new IllegalArgumentException("Resource URI must not be empty");
         }
+        this.resourceUri = resourceUri;
+        this.outputStreams = resourceUri.equals(EnvelopeTemplates.RESOURCE_URI_CMD) ? "stdout stderr" : "stdout";
+        this.templates = new EnvelopeTemplates(endpoint, maxEnvSize, locale, timeout, resourceUri);
+    }
+
+    /**
+     * @return the streams a Receive asks for, space separated
+     */
+    String getOutputStreams() {
+        return outputStreams;
+    }
+
+    /**
+     * @param idleTimeout seconds the shell may stay unused before the server deletes it
+     */
+    public String openShell(String iStream, String oStream, String workingDirectory, Map<String, String> envVars, boolean noProfile, int codepage, Integer lifetime, Integer idleTimeout) throws Exception {
         if (lifetime != null) {
             // TODO: research Lifetime a bit more: http://msdn.microsoft.com/en-us/library/cc251546(v=PROT.13).aspx
         }
-        if (idleTimeout != null) {
-            shell.addChildElement("IdleTimeOut").addTextNode(String.valueOf(idleTimeout));
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        templates.create(message, iStream, oStream, workingDirectory, envVars, noProfile, codepage, idleTimeout);
+
+        SOAPMessage response = _call(Operation.CREATE, message, started);
+        return _text(response.getSOAPBody(), "ShellId");
+    }
+
+    public void closeShell(String shellId) throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        UUID messageId = templates.delete(message, shellId);
+
+        SOAPMessage response = _call(Operation.DELETE, message, started);
+        _checkRelatesTo(response, messageId);
+    }
+
+    /**
+     * Lists the shells the account has open on the server, whichever client opened them
+     * and of whatever kind they are.
+     */
+    public List<ShellInfo> enumerateShells() throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        templates.enumerate(message, EnvelopeTemplates.RESOURCE_URI_SHELL, ENUMERATION_MAX_ELEMENTS);
+
+        List<ShellInfo> shells = new ArrayList<>();
+        SOAPBody body = _call(Operation.ENUMERATE, message, started).getSOAPBody();
+        while (_collectShells(body, shells)) {
+            started = System.nanoTime();
+            templates.pull(message, EnvelopeTemplates.RESOURCE_URI_SHELL, _text(body, "EnumerationContext"), ENUMERATION_MAX_ELEMENTS);
+            body = _call(Operation.PULL, message, started).getSOAPBody();
         }
-        if (envVars != null) {
-            SOAPElement environment = shell.addChildElement("Environment", "rsp");
-            for (Map.Entry<String, String> entry : envVars.entrySet()) {
-                SOAPElement variable = environment.addChildElement("Variable", "rsp");
-                variable.addAttribute("Name", entry.getKey());
-                variable.addTextNode(entry.getValue());
+        return shells;
+    }
+
+    public WmiQuery queryWmi(String namespace, String wql) throws Exception {
+        return queryWmi(namespace, wql, new WmiQueryOptions());
+    }
+
+    /**
+     * Runs a WQL query, "SELECT Name, State FROM Win32_Service" for instance, in a WMI
+     * namespace such as root/cimv2. The first page is fetched before this returns, so a
+     * bad query or namespace fails here; the others are pulled as the rows are iterated
+     * over.
+     */
+    public WmiQuery queryWmi(String namespace, String wql, WmiQueryOptions options) throws Exception {
+        return WmiQuery.open(this, namespace, wql, options);
+    }
+
+    public String runCommand(String shellId, String command, String[] arguments, boolean consoleModeStdin, boolean skipCmdShell) throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        templates.command(message, shellId, command, arguments, consoleModeStdin, skipCmdShell);
+
+        SOAPMessage response = _call(Operation.COMMAND, message, started);
+        return _text(response.getSOAPBody(), "CommandId");
+    }
+
+    public void cleanupCommand(String shellId, String commandId) throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        UUID messageId = templates.signal(message, shellId, commandId, EnvelopeTemplates.SIGNAL_TERMINATE);
+
+        SOAPMessage response = _call(Operation.SIGNAL, message, started);
+        _checkRelatesTo(response, messageId);
+    }
+
+    /**
+     * Sends one chunk of stdin to a command.
+     *
+     * @param end whether this is the last chunk, which closes stdin of the command
+     * @throws IllegalArgumentException if the chunk does not fit in MaxEnvelopeSize, see
+     *                                  {@link #getMaxSendChunk}
+     */
+    public void sendInput(String shellId, String commandId, byte[] data, int offset, int length, boolean end) throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        templates.send(message, shellId, commandId, "stdin", data, offset, length, end);
+        checkEnvelopeSize(message);
+
+        _call(Operation.SEND, message, started);
+    }
+
+    /**
+     * Streams stdin to a command until the end of the input, which closes stdin of the
+     * command; the stream itself is left open. Input is cut into the largest chunks that
+     * fit in MaxEnvelopeSize, and the next chunk is read and rendered while the previous
+     * Send is on the wire. Sends go one after the other to keep the input in order, but
+     * Receives for the same command, from another thread or the async API, go on in the
+     * meantime.
+     *
+     * @return bytes sent
+     */
+    public long sendInput(String shellId, String commandId, InputStream in) throws Exception {
+        // a chunk has to outlive reading the next one, which tells whether it is the last
+        byte[][] buffers = new byte[2][];
+        int[] turn = new int[1];
+        return _sendChunks(shellId, commandId, chunkSize -> {
+            int i = turn[0]++ & 1;
+            if (buffers[i] == null) {
+                buffers[i] = new byte[chunkSize];
             }
-        }
+            return ByteBuffer.wrap(buffers[i], 0, _readChunk(in, buffers[i]));
+        }, length -> { });
+    }
 
-        SOAPConnectionFactory connectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection connection = connectionFactory.createConnection();
-        String url = String.format("http://%s", endpoint);
-        SOAPMessage response = connection.call(message, new URI(url));
-        NodeList nodes = response.getSOAPBody().getElementsByTagNameNS("*", "ShellId");
-        return nodes.item(0).getTextContent();
+    /**
+     * Same as {@link #sendInput(String, String, InputStream)} for input already in memory
+     * or mapped from a file, which is Base64-encoded into the envelopes straight from the
+     * buffer. The input runs from the position to the limit of data; neither is changed.
+     *
+     * @return bytes sent
+     */
+    public long sendInput(String shellId, String commandId, ByteBuffer data) throws Exception {
+        return sendInput(shellId, commandId, data, length -> { });
     }
 
-    // Helper methods for building SOAP Headers
+    /**
+     * Same as {@link #sendInput(String, String, ByteBuffer)}, telling progress the bytes
+     * of each Send as it goes through, so a caller can count what was sent before a
+     * failure.
+     *
+     * @return bytes sent
+     */
+    public long sendInput(String shellId, String commandId, ByteBuffer data, LongConsumer progress) throws Exception {
+        ByteBuffer input = data.duplicate();
+        return _sendChunks(shellId, commandId, chunkSize -> {
+            ByteBuffer chunk = input.slice();
+            chunk.limit(Math.min(chunkSize, chunk.remaining()));
+            input.position(input.position() + chunk.remaining());
+            return chunk;
+        }, progress);
+    }
+
+    /**
+     * @see #sendInput(String, String, InputStream)
+     */
+    public long sendInput(String shellId, String commandId, ReadableByteChannel in) throws Exception {
+        return sendInput(shellId, commandId, Channels.newInputStream(in));
+    }
 
-    private void _buildSoapHeader(SOAPHeader header, String messageId) throws Exception {
-        if (messageId == null) {
-            messageId = UUID.randomUUID().toString();
+    /**
+     * @return the most bytes of input one Send to the command can carry within
+     *         MaxEnvelopeSize, that is what is left of it after the envelope, times 3/4
+     *         for the Base64
+     */
+    public int getMaxSendChunk(String shellId, String commandId) {
+        EnvelopeBuffer message = BUFFERS.get();
+        // one byte of input takes up 4 characters, the rest is the envelope
+        templates.send(message, shellId, commandId, "stdin", new byte[1], 0, 1, true);
+        int chunk = (maxEnvSize - message.length() + 4) / 4 * 3;
+        if (chunk < 1) {
+            throw new IllegalStateException(String.format("MaxEnvelopeSize %d leaves no room for input", maxEnvSize));
         }
-        SOAPElement to = header.addChildElement("To", "a");
-        to.addTextNode(endpoint);
-        SOAPElement replyTo = header.addChildElement("ReplyTo", "a");
-        SOAPElement address = replyTo.addChildElement("Address", "a");
-        address.addAttribute("xml:lang", "en-US");
-        address.addTextNode("http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous");
-        SOAPElement maxEnvelopeSize = header.addChildElement("MaxEnvelopeSize", "w");
-        maxEnvelopeSize.addTextNode(String.valueOf(maxEnvSize));
-        SOAPElement messageID = header.addChildElement("MessageID", "a");
-        messageID.addTextNode(String.format("uuid:%s", messageId));
-        SOAPElement locale = header.addChildElement("Locale", "w");
-        locale.addAttribute("xml:lang", locale);
-        SOAPElement dataLocale = header.addChildElement("DataLocale", "p");
-        dataLocale.addAttribute("xml:lang", locale);
-        // TODO: research this a bit http://msdn.microsoft.com/en-us/library/cc251561(v=PROT.13).aspx
-        // SOAPElement maxTimeoutms = header.addChildElement("MaxTimeoutms", "cfg");
-        // maxTimeoutms.addTextNode("600");
-        SOAPElement operationTimeout = header.addChildElement("OperationTimeout", "w");
-        operationTimeout.addTextNode(timeout);
+        return chunk;
     }
 
-    private void _setResourceUriCmd(SOAPHeader header) {
-        SOAPElement resourceURI = header.addChildElement("ResourceURI", "w");
-        resourceURI.addTextNode("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/cmd");
+    void checkEnvelopeSize(EnvelopeBuffer message) {
+        if (message.length() > maxEnvSize) {
+            throw new IllegalArgumentException(String.format("Envelope of %d bytes exceeds MaxEnvelopeSize %d", message.length(), maxEnvSize));
+        }
+    }
+
+    /**
+     * Output of a shell opened with the default codepage, {@link Codepages#OEM_US}.
+     *
+     * @see #getCommandOutput(String, String, int)
+     */
+    public String[] getCommandOutput(String shellId, String commandId) throws Exception {
+        return getCommandOutput(shellId, commandId, Codepages.OEM_US);
     }
 
-    private void _setResourceUriWmi(SOAPHeader header, String namespace) {
-        SOAPElement resourceURI = header.addChildElement("ResourceURI", "w");
-        resourceURI.addTextNode(String.format("http://schemas.microsoft.com/wbem/wsman/1/wmi/%s", namespace));
+    /**
+     * @param codepage codepage the shell was opened with, which its output is decoded in
+     * @return stdout, stderr and the exit code
+     */
+    public String[] getCommandOutput(String shellId, String commandId, int codepage) throws Exception {
+        Charset charset = Codepages.charset(codepage);
+        OutputDecoder stdout = new OutputDecoder(charset, Long.MAX_VALUE);
+        OutputDecoder stderr = new OutputDecoder(charset, Long.MAX_VALUE);
+        int returnCode = getCommandOutput(shellId, commandId, (id, stream, buffer, offset, length) -> {
+            if (stream.equals("stdout")) {
+                stdout.write(buffer, offset, length);
+            } else if (stream.equals("stderr")) {
+                stderr.write(buffer, offset, length);
+            }
+        });
+
+        return new String[] { stdout.finish(), stderr.finish(), String.valueOf(returnCode) };
     }
 
-    private void _setActionCreate(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.xmlsoap.org/ws/2004/09/transfer/Create");
+    /**
+     * Polls until the command is done, handing output to the sink as it arrives.
+     *
+     * @return the exit code of the command
+     */
+    public int getCommandOutput(String shellId, String commandId, ReceiveSink sink) throws Exception {
+        ReceivePacer pacer = new ReceivePacer(sink);
+        for (int polls = 1; ; polls++) {
+            ReceiveState state = _pollCommandOutput(shellId, commandId, pacer);
+            if (state != null && state.isDone()) {
+                listener.onCommandDone(polls);
+                return state.getExitCode();
+            }
+        }
     }
 
-    private void _setActionDelete(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.xmlsoap.org/ws/2004/09/transfer/Delete");
+    /**
+     * Streams the output of a command, see {@link CommandOutput}.
+     */
+    public CommandOutput openCommandOutput(String shellId, String commandId) {
+        return openCommandOutput(shellId, commandId, DEFAULT_OUTPUT_BUFFER_SIZE);
     }
 
-    private void _setActionCommand(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Command");
+    public CommandOutput openCommandOutput(String shellId, String commandId, int bufferSize) {
+        // a single Receive never decodes to more than MaxEnvelopeSize bytes
+        return new CommandOutput(this, shellId, commandId, bufferSize, maxEnvSize);
     }
 
-    private void _setActionReceive(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Receive");
+    /**
+     * One Receive for both streams, once the ReceiveScheduler lets it go out.
+     *
+     * @return the command state, null if nothing came out within OperationTimeout
+     */
+    ReceiveState _pollCommandOutput(String shellId, String commandId, ReceivePacer pacer) throws Exception {
+        ReceiveScheduler scheduler = receiveScheduler;
+        scheduler.acquire();
+        try {
+            int timeout = scheduler.timeoutFor(pacer.quietNanos(), timeoutSeconds);
+            return _resilient(Operation.RECEIVE, () -> _rawGetCommandOutput(shellId, commandId, outputStreams, pacer, timeout));
+        } catch (WinRMWSManFault e) {
+            if (OPERATION_TIMEOUT_CODE.equals(e.getCode())) {
+                return null;
+            }
+            throw e;
+        } finally {
+            scheduler.release();
+        }
     }
 
-    private void _setActionSignal(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/Signal");
+    private ReceiveState _rawGetCommandOutput(String shellId, String commandId, String streamName, ReceiveSink sink, int timeoutSeconds) throws Exception {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = BUFFERS.get();
+        templates.receive(message, shellId, commandId, streamName, timeoutSeconds);
+
+        ProtocolListener listener = this.listener;
+        long sent = System.nanoTime();
+        try (InputStream response = transport.send(message.array(), 0, message.length())) {
+            long received = System.nanoTime();
+            InputStream in = resilience != null ? new ByteArrayInputStream(response.readAllBytes()) : response;
+            if (listener == ProtocolListener.NONE) {
+                return ReceiveResponseParser.parse(in, sink);
+            }
+            CountingInputStream counted = new CountingInputStream(in);
+            ReceiveState state = ReceiveResponseParser.parse(counted, sink);
+            listener.onExchange(Operation.RECEIVE, sent - started, received - sent, System.nanoTime() - received, message.length(), counted.getCount());
+            return state;
+        } catch (Exception e) {
+            Exception fault = _classify(e, transport.getUri());
+            listener.onFault(Operation.RECEIVE, fault);
+            throw fault;
+        }
     }
 
-    private void _setActionEnumerate(SOAPHeader header) {
-        SOAPElement action = header.addChildElement("Action", "a");
-        action.addTextNode("http://schemas.xmlsoap.org/ws/2004/09/enumeration/Enumerate");
+    /**
+     * @param started when rendering the envelope began
+     */
+    private SOAPMessage _call(Operation operation, EnvelopeBuffer message, long started) throws Exception {
+        return _resilient(operation, () -> _exchange(operation, message, started));
     }
 
-    private void _setSelectorShellId(SOAPHeader header, String shellId) {
-        SOAPElement selectorSet = header.addChildElement("SelectorSet", "w");
-        SOAPElement selector = selectorSet.addChildElement("Selector", "w");
-        selector.addAttribute("Name", "ShellId");
-        selector.addTextNode(shellId);
+    private SOAPMessage _exchange(Operation operation, EnvelopeBuffer message, long started) throws Exception {
+        ProtocolListener listener = this.listener;
+        long sent = System.nanoTime();
+        try (InputStream in = transport.send(message.array(), 0, message.length())) {
+            long received = System.nanoTime();
+            if (listener == ProtocolListener.NONE) {
+                return _read(in);
+            }
+            CountingInputStream counted = new CountingInputStream(in);
+            SOAPMessage response = _read(counted);
+            listener.onExchange(operation, sent - started, received - sent, System.nanoTime() - received, message.length(), counted.getCount());
+            return response;
+        } catch (Exception e) {
+            Exception fault = _classify(e, transport.getUri());
+            listener.onFault(operation, fault);
+            throw fault;
+        }
     }
 
-    public void closeShell(String shellId) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage message = messageFactory.createMessage();
-        SOAPPart soapPart = message.getSOAPPart();
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
-        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
-        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
-        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
-        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
-        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
-        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
-        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
-
-        SOAPHeader header = envelope.getHeader();
-        if (header == null) {
-            header = envelope.addHeader();
+    /**
+     * Runs an exchange through the circuit breaker of the host and retries it as the
+     * resilience allows, waiting a jittered backoff in between.
+     */
+    private <T> T _resilient(Operation operation, Exchange<T> exchange) throws Exception {
+        Resilience resilience = this.resilience;
+        if (resilience == null) {
+            return exchange.run();
         }
-        _buildSoapHeader(header, message.getMessageID());
-        _setResourceUriCmd(header);
-        _setActionDelete(header);
-        _setSelectorShellId(header, shellId);
-
-        SOAPBody body = envelope.getBody();
-        if (body == null) {
-            body = envelope.addBody();
+        CircuitBreaker breaker = resilience.breaker(transport.getUri());
+        for (int attempt = 0; ; attempt++) {
+            breaker.acquire();
+            // reported whatever escapes, a half open circuit waits for its probe otherwise
+            Throwable outcome = null;
+            try {
+                return exchange.run();
+            } catch (Exception e) {
+                outcome = e;
+                if (!resilience.isRetryable(operation, e, attempt)) {
+                    throw e;
+                }
+            } catch (Throwable e) {
+                outcome = e;
+                throw e;
+            } finally {
+                breaker.onResult(outcome);
+            }
+            listener.onRetry(operation);
+            TimeUnit.NANOSECONDS.sleep(resilience.backoffNanos(attempt));
         }
-
-        SOAPConnectionFactory connectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection connection = connectionFactory.createConnection();
-        String url = String.format("http://%s", endpoint);
-        SOAPMessage response = connection.call(message, new URI(url));
-        NodeList nodes = response.getSOAPHeader().getElementsByTagNameNS("*", "RelatesTo");
-        String relatesTo = nodes.item(0).getTextContent();
-        // TODO: change assert into user-friendly exception
-        assert relatesTo.startsWith("uuid:");
-        UUID messageId = UUID.fromString(relatesTo.substring("uuid:".length()));
-        assert messageId.equals(message.getMessageID());
     }
 
-    public String runCommand(String shellId, String command, String[] arguments, boolean consoleModeStdin, boolean skipCmdShell) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage message = messageFactory.createMessage();
-        SOAPPart soapPart = message.getSOAPPart();
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
-        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
-        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
-        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
-        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
-        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
-        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
-        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
-
-        SOAPHeader header = envelope.getHeader();
-        if (header == null) {
-            header = envelope.addHeader();
+    /**
+     * Maps what went wrong in an exchange to the library's exceptions: failures reading
+     * the response are transport errors, responses that cannot be made sense of are web
+     * service errors. The library's own exceptions, and those a ReceiveSink threw, are
+     * returned as they are.
+     */
+    static Exception _classify(Exception e, URI uri) {
+        if (e instanceof ReceiveSinkException) {
+            // the caller's own sink failed, not the exchange
+            return (Exception) e.getCause();
         }
-        _buildSoapHeader(header, message.getMessageID());
-        _setResourceUriCmd(header);
-        _setActionCommand(header);
-        _setSelectorShellId(header, shellId);
-        _setOption(header, "WINRS_CONSOLEMODE_STDIN", consoleModeStdin);
-        _setOption(header, "WINRS_SKIP_CMD_SHELL", skipCmdShell);
-
-        SOAPBody body = envelope.getBody();
-        if (body == null) {
-            body = envelope.addBody();
+        if (e instanceof WinRMTransportError || e instanceof WinRMWSManFault || e instanceof WinRMWebServiceError
+                || e instanceof WinRMAuthorizationError || e instanceof WinRMInterruptedError || e instanceof InterruptedException) {
+            return e;
         }
-        SOAPElement commandLine = body.addChildElement("CommandLine", "rsp");
-        SOAPElement command = commandLine.addChildElement("Command", "rsp");
-        command.addTextNode(command);
-        if (arguments != null && arguments.length > 0) {
-            SOAPElement argumentsElement = commandLine.addChildElement("Arguments", "rsp");
-            argumentsElement.addTextNode(String.join(" ", arguments));
+        if (e instanceof IOException) {
+            return new WinRMTransportError(String.format("Failed to read response from %s", uri), e);
         }
+        return new WinRMWebServiceError(String.format("Invalid response from %s", uri), e);
+    }
 
-        SOAPConnectionFactory connectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection connection = connectionFactory.createConnection();
-        String url = String.format("http://%s", endpoint);
-        SOAPMessage response = connection.call(message, new URI(url));
-        NodeList nodes = response.getSOAPBody().getElementsByTagNameNS("*", "CommandId");
+    /**
+     * @return the text of the first element of that name
+     * @throws WinRMWebServiceError if there is none
+     */
+    static String _text(Element parent, String localName) throws WinRMWebServiceError {
+        NodeList nodes = parent.getElementsByTagNameNS("*", localName);
+        if (nodes.getLength() == 0) {
+            throw new WinRMWebServiceError(String.format("No %s in the response", localName));
+        }
         return nodes.item(0).getTextContent();
     }
 
-    public void cleanupCommand(String shellId, String commandId) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage message = messageFactory.createMessage();
-        SOAPPart soapPart = message.getSOAPPart();
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
-        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
-        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
-        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
-        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
-        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
-        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
-        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
-
-        SOAPHeader header = envelope.getHeader();
+    /**
+     * @throws WinRMWebServiceError if the response has no RelatesTo, or it names another
+     *                              request than the one of that MessageID
+     */
+    static void _checkRelatesTo(SOAPMessage response, UUID messageId) throws SOAPException, WinRMWebServiceError {
+        SOAPHeader header = response.getSOAPHeader();
         if (header == null) {
-            header = envelope.addHeader();
+            throw new WinRMWebServiceError("No RelatesTo in the response");
+        }
+        String relatesTo = _text(header, "RelatesTo").trim();
+        UUID related = null;
+        if (relatesTo.startsWith("uuid:")) {
+            try {
+                related = UUID.fromString(relatesTo.substring("uuid:".length()));
+            } catch (IllegalArgumentException e) {
+                // reported as a mismatch below
+            }
         }
-        _buildSoapHeader(header, message.getMessageID());
-        _setResourceUriCmd(header);
-        _setActionSignal(header);
-        _setSelectorShellId(header, shellId);
-
-        SOAPBody body = envelope.getBody();
-        if (body == null) {
-            body = envelope.addBody();
+        if (!messageId.equals(related)) {
+            throw new WinRMWebServiceError(String.format("Response relates to %s instead of uuid:%s", relatesTo, messageId));
         }
-        SOAPElement signal = body.addChildElement("Signal", "rsp");
-        signal.addAttribute("CommandId", commandId);
-        SOAPElement code = signal.addChildElement("Code", "rsp");
-        code.addTextNode("http://schemas.microsoft.com/wbem/wsman/1/windows/shell/signal/terminate");
-
-        SOAPConnectionFactory connectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection connection = connectionFactory.createConnection();
-        String url = String.format("http://%s", endpoint);
-        SOAPMessage response = connection.call(message, new URI(url));
-        NodeList nodes = response.getSOAPHeader().getElementsByTagNameNS("*", "RelatesTo");
-        String relatesTo = nodes.item(0).getTextContent();
-        // TODO: change assert into user-friendly exception
-        assert relatesTo.startsWith("uuid:");
-        UUID messageId = UUID.fromString(relatesTo.substring("uuid:".length()));
-        assert messageId.equals(message.getMessageID());
     }
 
-    public String[] getCommandOutput(String shellId, String commandId) throws Exception {
-        String stdout = "";
-        String stderr = "";
-        int returnCode = -1;
+    /**
+     * Adds the shells listed in an Enumerate or Pull response.
+     *
+     * @return whether the enumeration goes on, with a Pull
+     */
+    static boolean _collectShells(SOAPBody body, List<ShellInfo> shells) {
+        NodeList nodes = body.getElementsByTagNameNS("*", "Shell");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            shells.add(ShellInfo.from((Element) nodes.item(i)));
+        }
+        return body.getElementsByTagNameNS("*", "EndOfSequence").getLength() == 0;
+    }
 
+    /**
+     * Double-buffered Send loop: two envelopes take turns, one on the wire while the
+     * next chunk is rendered into the other.
+     *
+     * @param progress told the bytes of each chunk once its Send went through
+     */
+    private long _sendChunks(String shellId, String commandId, ChunkSource source, LongConsumer progress) throws Exception {
+        int chunkSize = getMaxSendChunk(shellId, commandId);
+        EnvelopeBuffer current = new EnvelopeBuffer(maxEnvSize);
+        EnvelopeBuffer next = new EnvelopeBuffer(maxEnvSize);
+        ByteBuffer chunk = source.next(chunkSize);
+        ByteBuffer ahead = chunk.remaining() < chunkSize ? EMPTY : source.next(chunkSize);
+        long started = System.nanoTime();
+        templates.send(current, shellId, commandId, "stdin", chunk, !ahead.hasRemaining());
+        long sent = 0;
         while (true) {
-            stdout = stdout + _rawGetCommandOutput(shellId, commandId, "stdout")[0];
-            stderr = stderr + _rawGetCommandOutput(shellId, commandId, "stderr")[0];
-            if (_rawGetCommandOutput(shellId, commandId, "exitcode")[1] != -1) {
-                returnCode = _rawGetCommandOutput(shellId, commandId, "exitcode")[1];
-                break;
+            CompletableFuture<Void> send = async.post(Operation.SEND, current, started);
+            int length = chunk.remaining();
+            if (!ahead.hasRemaining()) {
+                _await(send);
+                progress.accept(length);
+                return sent + length;
             }
+            chunk = ahead;
+            ahead = chunk.remaining() < chunkSize ? EMPTY : source.next(chunkSize);
+            started = System.nanoTime();
+            templates.send(next, shellId, commandId, "stdin", chunk, !ahead.hasRemaining());
+            _await(send);
+            progress.accept(length);
+            sent += length;
+            EnvelopeBuffer swap = current;
+            current = next;
+            next = swap;
         }
+    }
 
-        return new String[] { stdout, stderr, String.valueOf(returnCode) };
-    }
-
-    private String[] _rawGetCommandOutput(String shellId, String commandId, String streamName) throws Exception {
-        MessageFactory messageFactory = MessageFactory.newInstance();
-        SOAPMessage message = messageFactory.createMessage();
-        SOAPPart soapPart = message.getSOAPPart();
-        SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
-        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
-        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
-        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
-        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
-        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
-        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
-        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
-        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
-        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
-
-        SOAPHeader header = envelope.getHeader();
-        if (header == null) {
-            header = envelope.addHeader();
-        }
-        _buildSoapHeader(header, message.getMessageID());
-        _setResourceUriCmd(header);
-        _setActionReceive(header);
-        _setSelectorShellId(header, shellId);
-
-        SOAPBody body = envelope.getBody();
-        if (body == null) {
-            body = envelope.addBody();
-        }
-        SOAPElement receive = body.addChildElement("Receive", "rsp");
-        SOAPElement desiredStream = receive.addChildElement("DesiredStream", "rsp");
-        desiredStream.addTextNode(streamName);
-        desiredStream.addAttribute("CommandId", commandId);
-
-        SOAPConnectionFactory connectionFactory = SOAPConnectionFactory.newInstance();
-        SOAPConnection connection = connectionFactory.createConnection();
-        String url = String.format("http://%s", endpoint);
-        SOAPMessage response = connection.call(message, new URI(url));
-
-        NodeList nodes = response.getSOAPBody().getElementsByTagNameNS("*", streamName);
-        String stream = "";
-        if (nodes.getLength() > 0) {
-            stream = new String(Base64.getDecoder().decode(nodes.item(0).getTextContent().getBytes("UTF-8")));
+    /**
+     * @see TlsContexts#forTrust
+     * @throws IllegalArgumentException if the trust cannot be loaded, the constructor
+     *                                  cannot throw anything else
+     */
+    private static SSLContext _sslContext(String caTrustPath, String thumbprint) {
+        try {
+            return TlsContexts.forTrust(caTrustPath, thumbprint);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalArgumentException("Cannot load CA trust from " + caTrustPath, e);
         }
+    }
 
-        int returnCode = -1;
-        nodes = response.getSOAPBody().getElementsByTagNameNS("*", "ExitCode");
-        if (nodes.getLength() > 0) {
-            returnCode = Integer.parseInt(nodes.item(0).getTextContent());
+    /**
+     * Reads until the buffer is full or the input ends.
+     *
+     * @return bytes read, less than the buffer size only at the end of the input
+     */
+    private static int _readChunk(InputStream in, byte[] buffer) throws Exception {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
         }
-
-        return new String[] { stream, String.valueOf(returnCode) };
+        return length;
     }
 
-    private void _setOption(SOAPHeader header, String name, boolean value) {
-        SOAPElement optionSet = header.addChildElement("OptionSet", "w");
-        SOAPElement option = optionSet.addChildElement("Option", "w");
-        option.addAttribute("Name", name);
-        option.addTextNode(Boolean.toString(value).toUpperCase());
+    private interface Exchange<T> {
+        T run() throws Exception;
     }
 
-    private void _setOption(SOAPHeader header, String name, int value) {
-        SOAPElement optionSet = header.addChildElement("OptionSet", "w");
-        SOAPElement option = optionSet.addChildElement("Option", "w");
-        option.addAttribute("Name", name);
-        option.addTextNode(Integer.toString(value));
+    private interface ChunkSource {
+        /**
+         * @return up to chunkSize bytes of input, fewer only at the end of it
+         */
+        ByteBuffer next(int chunkSize) throws Exception;
     }
-}
 
+    static <T> T _await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
 
+    /**
+     * Parses a response read by either transport path.
+     *
+     * @throws WinRMWSManFault if the response is a SOAP Fault
+     */
+    SOAPMessage _read(InputStream in) throws Exception {
+        // SAAJ sets up its parser pool with interruptible puts and fails with an Error if the
+        // thread is interrupted at that point; the interrupt is kept for the caller instead
+        boolean interrupted = Thread.interrupted();
+        try {
+            MimeHeaders headers = new MimeHeaders();
+            headers.addHeader("Content-Type", HttpTransport.CONTENT_TYPE);
+            SOAPMessage response = messageFactory.createMessage(headers, in);
+            // parse the whole body before the connection goes back to the pool
+            SOAPBody body = response.getSOAPBody();
+            if (body.hasFault()) {
+                SOAPFault fault = body.getFault();
+                NodeList details = fault.getElementsByTagNameNS("*", "WSManFault");
+                String code = details.getLength() > 0 ? ((Element) details.item(0)).getAttribute("Code") : null;
+                throw new WinRMWSManFault(fault.getFaultString(), code);
+            }
+            return response;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
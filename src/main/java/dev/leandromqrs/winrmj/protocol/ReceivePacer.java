@@ -0,0 +1,33 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.io.IOException;
+
+/**
+ * Receive state of one command for the ReceiveScheduler: passes output on to the sink and
+ * remembers when there last was some.
+ */
+class ReceivePacer implements ReceiveSink {
+    private final ReceiveSink sink;
+    private volatile long lastOutput = System.nanoTime();
+
+    ReceivePacer(ReceiveSink sink) {
+        this.sink = sink;
+    }
+
+    long quietNanos() {
+        return System.nanoTime() - lastOutput;
+    }
+
+    @Override
+    public void write(String commandId, String stream, byte[] buffer, int offset, int length) throws IOException {
+        if (length > 0) {
+            lastOutput = System.nanoTime();
+        }
+        sink.write(commandId, stream, buffer, offset, length);
+    }
+
+    @Override
+    public void end(String commandId, String stream) throws IOException {
+        sink.end(commandId, stream);
+    }
+}
@@ -0,0 +1,141 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser for Receive responses.
+ * <p>
+ * Walks the response once, hands the Base64 content of every rsp:Stream element to the
+ * sink as it is decoded and picks up rsp:CommandState and rsp:ExitCode on the way. Text
+ * is consumed in whatever chunks the StAX reader delivers and decoded through a fixed
+ * buffer, so memory does not grow with the size of the envelope. What the sink throws
+ * comes out wrapped in a ReceiveSinkException.
+ */
+public final class ReceiveResponseParser {
+    static final String SHELL_NS = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell";
+
+    private static final int DECODE_BUFFER_SIZE = 3072;
+    private static final XMLInputFactory FACTORY = newFactory();
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private ReceiveResponseParser() {
+    }
+
+    /**
+     * @throws WinRMWSManFault if the response is a SOAP Fault
+     */
+    public static ReceiveState parse(InputStream in, ReceiveSink sink) throws IOException, XMLStreamException, WinRMWSManFault {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            String commandId = null;
+            String state = null;
+            int exitCode = -1;
+            byte[] decoded = new byte[DECODE_BUFFER_SIZE];
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String namespace = reader.getNamespaceURI();
+                String local = reader.getLocalName();
+                if (SHELL_NS.equals(namespace)) {
+                    if (local.equals("Stream")) {
+                        readStream(reader, decoded, sink);
+                    } else if (local.equals("CommandState")) {
+                        commandId = reader.getAttributeValue(null, "CommandId");
+                        state = reader.getAttributeValue(null, "State");
+                    } else if (local.equals("ExitCode")) {
+                        exitCode = Integer.parseInt(reader.getElementText().trim());
+                    }
+                } else if (SoapFaults.SOAP_NS.equals(namespace) && local.equals("Fault")) {
+                    throw SoapFaults.read(reader);
+                }
+            }
+            return new ReceiveState(commandId, state, exitCode);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readStream(XMLStreamReader reader, byte[] decoded, ReceiveSink sink) throws IOException, XMLStreamException {
+        String name = reader.getAttributeValue(null, "Name");
+        String commandId = reader.getAttributeValue(null, "CommandId");
+        boolean end = "true".equalsIgnoreCase(reader.getAttributeValue(null, "End"));
+
+        int bits = 0;
+        int bitCount = 0;
+        int length = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event != XMLStreamConstants.CHARACTERS && event != XMLStreamConstants.CDATA && event != XMLStreamConstants.SPACE) {
+                continue;
+            }
+            char[] text = reader.getTextCharacters();
+            int limit = reader.getTextStart() + reader.getTextLength();
+            for (int i = reader.getTextStart(); i < limit; i++) {
+                char c = text[i];
+                if (c == '=' || Character.isWhitespace(c)) {
+                    continue;
+                }
+                int value = c < 128 ? BASE64[c] : -1;
+                if (value < 0) {
+                    throw new IOException(String.format("Invalid Base64 character 0x%x in %s stream", (int) c, name));
+                }
+                bits = (bits << 6) | value;
+                bitCount += 6;
+                if (bitCount >= 8) {
+                    bitCount -= 8;
+                    decoded[length++] = (byte) (bits >> bitCount);
+                    if (length == decoded.length) {
+                        write(sink, commandId, name, decoded, length);
+                        length = 0;
+                    }
+                }
+            }
+        }
+        if (length > 0) {
+            write(sink, commandId, name, decoded, length);
+        }
+        if (end) {
+            try {
+                sink.end(commandId, name);
+            } catch (IOException | RuntimeException e) {
+                throw new ReceiveSinkException(e);
+            }
+        }
+    }
+
+    private static void write(ReceiveSink sink, String commandId, String name, byte[] decoded, int length) throws ReceiveSinkException {
+        try {
+            sink.write(commandId, name, decoded, 0, length);
+        } catch (IOException | RuntimeException e) {
+            throw new ReceiveSinkException(e);
+        }
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
@@ -0,0 +1,150 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Decides when and how long Receives wait, for one endpoint.
+ * <p>
+ * No more than maxInFlight Receives are out at once, the others queue up in order. Left
+ * as is, long-polls would take every connection and keep Commands and Signals waiting
+ * for up to OperationTimeout; by default the budget leaves one connection free for them.
+ * A Protocol has a scheduler of its own, Protocols talking to the same endpoint can
+ * share one to share the budget.
+ * <p>
+ * A Receive returns as soon as there is output, so its OperationTimeout only says how
+ * long it may sit on a slot of the budget when there is none. It is picked per request
+ * from how long the command has been quiet: twice that long, between minTimeout and the
+ * protocol's OperationTimeout. A command that is writing gets short polls and one that
+ * has been quiet for long gets long-polls, costing few round trips. While Receives are
+ * queued, and until a slot goes unused again, no poll is longer than contendedTimeout, so
+ * quiet commands hand their slots on to ones that may have output waiting.
+ */
+public class ReceiveScheduler {
+    public static final int DEFAULT_MIN_TIMEOUT = 1;
+    public static final int DEFAULT_CONTENDED_TIMEOUT = 5;
+
+    private final int maxInFlight;
+    private final int minTimeout;
+    private final int contendedTimeout;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int inFlight;
+    // from the first Receive that had to queue until a slot goes unused again
+    private boolean contended;
+
+    public ReceiveScheduler(int maxInFlight) {
+        this(maxInFlight, DEFAULT_MIN_TIMEOUT, DEFAULT_CONTENDED_TIMEOUT);
+    }
+
+    /**
+     * @param minTimeout       seconds, the shortest OperationTimeout sent
+     * @param contendedTimeout seconds, the longest OperationTimeout sent while other
+     *                         Receives wait for the budget
+     */
+    public ReceiveScheduler(int maxInFlight, int minTimeout, int contendedTimeout) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        if (minTimeout < 1 || contendedTimeout < minTimeout) {
+            throw new IllegalArgumentException(String.format("Timeouts must be positive and minTimeout at most contendedTimeout: %d, %d",
+                    minTimeout, contendedTimeout));
+        }
+        this.maxInFlight = maxInFlight;
+        this.minTimeout = minTimeout;
+        this.contendedTimeout = contendedTimeout;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+
+    public int getContendedTimeout() {
+        return contendedTimeout;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<ReceiveScheduler in flight %d/%d, waiting %d>", inFlight, maxInFlight, waiters.size());
+    }
+
+    /**
+     * @param quietNanos  time since the command last had output, or since it started
+     * @param maxTimeout  seconds, the protocol's OperationTimeout
+     * @return the OperationTimeout for the next Receive, in seconds
+     */
+    int timeoutFor(long quietNanos, int maxTimeout) {
+        long seconds = Math.max(minTimeout, quietNanos * 2 / 1_000_000_000L);
+        synchronized (this) {
+            if (contended) {
+                seconds = Math.min(seconds, contendedTimeout);
+            }
+        }
+        return (int) Math.min(seconds, maxTimeout);
+    }
+
+    void acquire() throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (!permit.cancel(false)) {
+                // granted in the meantime
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Receive permits never fail", e);
+        }
+    }
+
+    /**
+     * Completes once the Receive may go out. Cancelling the future before then gives up
+     * its place in the queue.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> waiter;
+        synchronized (this) {
+            if (inFlight < maxInFlight) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            contended = true;
+        }
+        return waiter;
+    }
+
+    /**
+     * Hands the slot to the next waiter, completed outside the lock.
+     */
+    void release() {
+        while (true) {
+            CompletableFuture<Void> waiter;
+            synchronized (this) {
+                waiter = waiters.poll();
+                if (waiter == null) {
+                    inFlight--;
+                    contended = false;
+                    return;
+                }
+            }
+            if (waiter.complete(null)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.io.IOException;
+
+/**
+ * Receives decoded output of rsp:Stream elements as they are parsed. The buffer is
+ * reused by the parser and only valid for the duration of the call.
+ */
+public interface ReceiveSink {
+    void write(String commandId, String stream, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Called for a Stream element flagged End="true", after its data if it had any.
+     */
+    default void end(String commandId, String stream) throws IOException {
+    }
+}
@@ -0,0 +1,14 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.io.IOException;
+
+/**
+ * Carries what a {@link ReceiveSink} threw out of the parser, so that it is not taken
+ * for a failure to read the response: Protocol._classify hands the original exception
+ * back, which is then neither retried nor counted against the host.
+ */
+final class ReceiveSinkException extends IOException {
+    ReceiveSinkException(Exception cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,47 @@
+package dev.leandromqrs.winrmj.protocol;
+
+/**
+ * The rsp:CommandState carried by a Receive response.
+ */
+public class ReceiveState {
+    public static final String STATE_DONE = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Done";
+    public static final String STATE_RUNNING = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Running";
+    public static final String STATE_PENDING = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell/CommandState/Pending";
+
+    private final String commandId;
+    private final String state;
+    private final int exitCode;
+
+    public ReceiveState(String commandId, String state, int exitCode) {
+        this.commandId = commandId;
+        this.state = state;
+        this.exitCode = exitCode;
+    }
+
+    public String getCommandId() {
+        return commandId;
+    }
+
+    /**
+     * @return the State URI, null if the response carried no CommandState
+     */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return STATE_DONE.equals(state);
+    }
+
+    /**
+     * @return the exit code, -1 until the command is done
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<ReceiveState %s, state %s, exit code %d>", commandId, state, exitCode);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * A shell open on the server, as listed by {@link Protocol#enumerateShells}. Fields the
+ * server left out are null.
+ */
+public class ShellInfo {
+    private final String shellId;
+    private final String resourceUri;
+    private final String owner;
+    private final String clientIp;
+    private final String state;
+    private final Duration idleTimeout;
+    private final Duration inactivity;
+
+    ShellInfo(String shellId, String resourceUri, String owner, String clientIp, String state, Duration idleTimeout, Duration inactivity) {
+        this.shellId = shellId;
+        this.resourceUri = resourceUri;
+        this.owner = owner;
+        this.clientIp = clientIp;
+        this.state = state;
+        this.idleTimeout = idleTimeout;
+        this.inactivity = inactivity;
+    }
+
+    /**
+     * @param shell an rsp:Shell element of an Enumerate or Pull response
+     */
+    static ShellInfo from(Element shell) {
+        return new ShellInfo(text(shell, "ShellId"), text(shell, "ResourceUri"), text(shell, "Owner"), text(shell, "ClientIP"),
+                text(shell, "State"), duration(text(shell, "IdleTimeOut")), duration(text(shell, "ShellInactivity")));
+    }
+
+    public String getShellId() {
+        return shellId;
+    }
+
+    /**
+     * @return what kind of shell it is, {@link EnvelopeTemplates#RESOURCE_URI_CMD} for the
+     *         ones this library opens
+     */
+    public String getResourceUri() {
+        return resourceUri;
+    }
+
+    /**
+     * @return the account that opened it, domain included
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return how long the shell has gone without a request
+     */
+    public Duration getInactivity() {
+        return inactivity;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<ShellInfo %s owner %s, client %s, state %s, inactive %s>", shellId, owner, clientIp, state, inactivity);
+    }
+
+    private static String text(Element parent, String localName) {
+        NodeList nodes = parent.getElementsByTagNameNS("*", localName);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+    }
+
+    private static Duration duration(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            // xs:duration, P0DT0H5M3S or PT303.000S for instance
+            return Duration.parse(value);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a SOAP 1.2 Fault into a WinRMWSManFault without building a DOM.
+ */
+final class SoapFaults {
+    static final String SOAP_NS = "http://www.w3.org/2003/05/soap-envelope";
+
+    private SoapFaults() {
+    }
+
+    /**
+     * @param reader positioned on the start of env:Fault, left on its end
+     */
+    static WinRMWSManFault read(XMLStreamReader reader) throws XMLStreamException {
+        String code = null;
+        String subcode = null;
+        String reason = null;
+        String wsmanCode = null;
+        StringBuilder wsmanMessage = null;
+        boolean inSubcode = false;
+        int messageDepth = -1;
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String local = reader.getLocalName();
+                if (local.equals("Subcode")) {
+                    inSubcode = true;
+                } else if (local.equals("Value") && SOAP_NS.equals(reader.getNamespaceURI())) {
+                    String value = reader.getElementText().trim();
+                    depth--;
+                    if (inSubcode) {
+                        subcode = subcode == null ? value : subcode;
+                    } else {
+                        code = value;
+                    }
+                } else if (local.equals("Text") && reason == null && SOAP_NS.equals(reader.getNamespaceURI())) {
+                    reason = reader.getElementText().trim();
+                    depth--;
+                } else if (local.equals("WSManFault")) {
+                    wsmanCode = reader.getAttributeValue(null, "Code");
+                } else if (local.equals("Message") && wsmanMessage == null) {
+                    // only the first one, a Message nested in it or after it is left out
+                    messageDepth = depth;
+                    wsmanMessage = new StringBuilder();
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (messageDepth >= 0) {
+                    wsmanMessage.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 0) {
+                    break;
+                }
+                if (depth == messageDepth) {
+                    messageDepth = -1;
+                }
+                if (reader.getLocalName().equals("Subcode")) {
+                    inSubcode = false;
+                }
+                depth--;
+            }
+        }
+
+        String message = wsmanMessage != null ? wsmanMessage.toString().trim() : reason;
+        if (message == null || message.isEmpty()) {
+            message = subcode != null ? subcode : code;
+        }
+        return new WinRMWSManFault(message, wsmanCode);
+    }
+}
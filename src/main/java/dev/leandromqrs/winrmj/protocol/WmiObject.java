@@ -0,0 +1,136 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One row of a WMI query, see {@link Protocol#queryWmi}.
+ * <p>
+ * Values are kept as the text the server sent and converted by the typed getters. A
+ * property the server sent as nil, or did not send, reads as null; array properties come
+ * as repeated elements and are read with {@link #getStrings}.
+ */
+public class WmiObject {
+    private final String className;
+    // String, List<String> for arrays, null for nil
+    private final Map<String, Object> properties;
+
+    WmiObject(String className, Map<String, Object> properties) {
+        this.className = className;
+        this.properties = properties;
+    }
+
+    /**
+     * @return the WMI class, e.g. Win32_Service, or XmlFragment for queries that select
+     *         some properties only
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    public Set<String> getPropertyNames() {
+        return Collections.unmodifiableSet(properties.keySet());
+    }
+
+    public boolean isNull(String name) {
+        return properties.get(name) == null;
+    }
+
+    /**
+     * @return the value, the first one of an array
+     */
+    public String getString(String name) {
+        Object value = properties.get(name);
+        if (value instanceof List) {
+            return ((List<?>) value).isEmpty() ? null : (String) ((List<?>) value).get(0);
+        }
+        return (String) value;
+    }
+
+    /**
+     * @return every value of an array property, empty if it is null
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getStrings(String name) {
+        Object value = properties.get(name);
+        if (value == null) {
+            return List.of();
+        }
+        return value instanceof List ? Collections.unmodifiableList((List<String>) value) : List.of((String) value);
+    }
+
+    /**
+     * For the integer types, uint64 included as long as it fits.
+     *
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public Long getLong(String name) {
+        String value = getString(name);
+        return value == null ? null : Long.valueOf(value.trim());
+    }
+
+    public Double getDouble(String name) {
+        String value = getString(name);
+        return value == null ? null : Double.valueOf(value.trim());
+    }
+
+    public Boolean getBoolean(String name) {
+        String value = getString(name);
+        return value == null ? null : Boolean.valueOf(value.trim());
+    }
+
+    /**
+     * For datetime properties, which the server sends as xs:dateTime. Values without an
+     * offset are taken as UTC.
+     *
+     * @throws DateTimeParseException if the value is not a date and time
+     */
+    public OffsetDateTime getDateTime(String name) {
+        String value = getString(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(value.trim());
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(value.trim()).atOffset(ZoneOffset.UTC);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<WmiObject %s %s>", className, properties);
+    }
+
+    /**
+     * Adds a value read from the response; a property seen twice becomes an array.
+     */
+    @SuppressWarnings("unchecked")
+    static void put(Map<String, Object> properties, String name, String value) {
+        if (!properties.containsKey(name)) {
+            properties.put(name, value);
+            return;
+        }
+        Object previous = properties.get(name);
+        List<String> values;
+        if (previous instanceof List) {
+            values = (List<String>) previous;
+        } else {
+            values = new ArrayList<>(4);
+            if (previous != null) {
+                values.add((String) previous);
+            }
+            properties.put(name, values);
+        }
+        if (value != null) {
+            values.add(value);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMEnumerationError;
+import dev.leandromqrs.winrmj.metrics.Operation;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The rows of a WMI query, pulled page by page as they are iterated over. Obtained from
+ * {@link Protocol#queryWmi}.
+ * <p>
+ * Only the page being iterated over is held, plus the next one when prefetching, so a
+ * query of any size runs in bounded memory as long as the caller does not collect the
+ * rows. A page that cannot be pulled fails the iteration with a WinRMEnumerationError.
+ * Closing the query before the last row releases the enumeration on the server rather
+ * than leaving it there until it expires.
+ * <p>
+ * Not thread safe, like most iterators.
+ */
+public class WmiQuery implements Iterator<WmiObject>, AutoCloseable {
+    private final Protocol protocol;
+    private final String resourceUri;
+    private final WmiQueryOptions options;
+    private Iterator<WmiObject> rows = Collections.emptyIterator();
+    // the Pull on the wire, if any
+    private CompletableFuture<WmiResponseParser.Page> next;
+    private String context;
+    private boolean end;
+    private boolean closed;
+    private int pages;
+
+    private WmiQuery(Protocol protocol, String resourceUri, WmiQueryOptions options) {
+        this.protocol = protocol;
+        this.resourceUri = resourceUri;
+        this.options = options;
+    }
+
+    /**
+     * Sends the Enumerate and waits for the first page.
+     */
+    static WmiQuery open(Protocol protocol, String namespace, String wql, WmiQueryOptions options) throws Exception {
+        // root\cimv2 and root/cimv2 alike
+        String resourceUri = String.format(EnvelopeTemplates.RESOURCE_URI_WMI, namespace.replace('\\', '/')) + "/*";
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().enumerate(message, resourceUri, options.getMaxElements(), EnvelopeTemplates.DIALECT_WQL, wql);
+
+        WmiQuery query = new WmiQuery(protocol, resourceUri, options);
+        query.take(Protocol._await(protocol.async().enumerateWmi(Operation.ENUMERATE, message, started)));
+        return query;
+    }
+
+    /**
+     * @return pages received so far, the first one included
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * @throws WinRMEnumerationError if the next page was needed and could not be pulled
+     */
+    @Override
+    public boolean hasNext() {
+        while (!rows.hasNext()) {
+            if (end || closed) {
+                return false;
+            }
+            if (next == null) {
+                pull();
+            }
+            CompletableFuture<WmiResponseParser.Page> page = next;
+            next = null;
+            try {
+                take(Protocol._await(page));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                end = true;
+                throw new WinRMEnumerationError(String.format("Interrupted while pulling page %d of %s", pages + 1, resourceUri), e);
+            } catch (Exception e) {
+                end = true;
+                throw new WinRMEnumerationError(String.format("Failed to pull page %d of %s", pages + 1, resourceUri), e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public WmiObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return rows.next();
+    }
+
+    /**
+     * @return the rows as a sequential stream, closing it closes the query
+     */
+    public Stream<WmiObject> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    /**
+     * Stops the query. The enumeration is released in the background if it has pages
+     * left; a failed release is left to the server to expire.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        rows = Collections.emptyIterator();
+        if (end) {
+            return;
+        }
+        // one request at a time per enumeration, a prefetched Pull goes first and may have ended it
+        CompletableFuture<String> last = next == null ? CompletableFuture.completedFuture(context)
+                : next.handle((page, error) -> error != null || page.end ? null : page.context);
+        next = null;
+        last.thenCompose(current -> {
+            if (current == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            long started = System.nanoTime();
+            EnvelopeBuffer message = new EnvelopeBuffer();
+            protocol.getTemplates().release(message, resourceUri, current);
+            return protocol.async().post(Operation.RELEASE, message, started);
+        }).exceptionally(e -> null);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<WmiQuery %s pages %d%s>", resourceUri, pages, end ? ", done" : closed ? ", closed" : "");
+    }
+
+    private void take(WmiResponseParser.Page page) {
+        pages++;
+        rows = page.items.iterator();
+        context = page.context;
+        end = page.end;
+        if (!end && options.isPrefetch()) {
+            pull();
+        }
+    }
+
+    private void pull() {
+        long started = System.nanoTime();
+        EnvelopeBuffer message = new EnvelopeBuffer();
+        protocol.getTemplates().pull(message, resourceUri, context, options.getMaxElements());
+        next = protocol.async().enumerateWmi(Operation.PULL, message, started);
+    }
+}
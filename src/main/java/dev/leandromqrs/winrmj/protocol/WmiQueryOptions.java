@@ -0,0 +1,41 @@
+package dev.leandromqrs.winrmj.protocol;
+
+/**
+ * Paging of a WMI query, see {@link Protocol#queryWmi}.
+ */
+public class WmiQueryOptions {
+    public static final int DEFAULT_MAX_ELEMENTS = 100;
+    public static final boolean DEFAULT_PREFETCH = true;
+
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+    private boolean prefetch = DEFAULT_PREFETCH;
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Rows asked for per Enumerate and Pull. The server sends fewer when they do not fit
+     * in MaxEnvelopeSize, and at most MaxBatchItems of its configuration.
+     */
+    public WmiQueryOptions setMaxElements(int maxElements) {
+        if (maxElements < 1) {
+            throw new IllegalArgumentException("maxElements must be positive: " + maxElements);
+        }
+        this.maxElements = maxElements;
+        return this;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Pulls the next page as soon as a page arrives, so that it is on the wire while the
+     * caller goes through the rows of this one. At most two pages are held at a time.
+     */
+    public WmiQueryOptions setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+}
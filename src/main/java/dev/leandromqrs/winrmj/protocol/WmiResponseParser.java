@@ -0,0 +1,137 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMWSManFault;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser for the Enumerate and Pull responses of a WMI query.
+ * <p>
+ * Reads the items straight into WmiObjects, without the DOM SAAJ would build for the
+ * page next to them, and picks up the EnumerationContext and EndOfSequence on the way.
+ */
+final class WmiResponseParser {
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private WmiResponseParser() {
+    }
+
+    /**
+     * @throws WinRMWSManFault if the response is a SOAP Fault
+     */
+    static Page parse(InputStream in) throws XMLStreamException, WinRMWSManFault {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            String context = null;
+            boolean end = false;
+            List<WmiObject> items = new ArrayList<>();
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String local = reader.getLocalName();
+                if (local.equals("Items")) {
+                    readItems(reader, items);
+                } else if (local.equals("EnumerationContext")) {
+                    context = reader.getElementText().trim();
+                } else if (local.equals("EndOfSequence")) {
+                    end = true;
+                } else if (local.equals("Fault") && SoapFaults.SOAP_NS.equals(reader.getNamespaceURI())) {
+                    throw SoapFaults.read(reader);
+                }
+            }
+            return new Page(items, context == null || context.isEmpty() ? null : context, end);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param reader positioned on the start of Items, left on its end
+     */
+    private static void readItems(XMLStreamReader reader, List<WmiObject> items) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                items.add(readObject(reader));
+            }
+        }
+    }
+
+    private static WmiObject readObject(XMLStreamReader reader) throws XMLStreamException {
+        String className = reader.getLocalName();
+        Map<String, Object> properties = new LinkedHashMap<>();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                boolean nil = "true".equals(reader.getAttributeValue(XSI_NS, "nil"));
+                String value = readValue(reader);
+                WmiObject.put(properties, name, nil ? null : value);
+            }
+        }
+        return new WmiObject(className, properties);
+    }
+
+    /**
+     * Text of a property, that of its children for structured values such as a
+     * cim:Datetime.
+     *
+     * @param reader positioned on the start of the property, left on its end
+     */
+    private static String readValue(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth-- == 0) {
+                    break;
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return text.toString();
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * One Enumerate or Pull response.
+     */
+    static final class Page {
+        final List<WmiObject> items;
+        // to pull the next page with, null at the end
+        final String context;
+        final boolean end;
+
+        Page(List<WmiObject> items, String context, boolean end) {
+            this.items = items;
+            this.context = context;
+            this.end = end || context == null;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads and writes the CLIXML of PSRP message data, see MS-PSRP 2.2.5.
+ * <p>
+ * Reading is a single StAX pass over the message; objects referenced again later in it
+ * through Ref and TNRef are looked up in tables that live as long as the message. Only
+ * strings are ever written, the rest of what the client sends is fixed text.
+ */
+final class Clixml {
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private final Map<String, Object> objects = new HashMap<>();
+    private final Map<String, List<String>> typeNames = new HashMap<>();
+
+    private Clixml() {
+    }
+
+    /**
+     * @return the value the message data holds, see {@link PsOutputSink#write}
+     */
+    static Object parse(byte[] data, int offset, int length) throws XMLStreamException {
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(data, offset, length));
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return new Clixml().read(reader);
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends an S element, escaping what XML cannot carry the way PowerShell does.
+     */
+    static StringBuilder appendString(StringBuilder out, String name, String value) {
+        out.append("<S");
+        if (name != null) {
+            out.append(" N=\"").append(name).append('"');
+        }
+        out.append('>');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                out.append("&amp;");
+            } else if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c < 0x20 || c == 0xfffe || c == 0xffff || Character.isSurrogate(c) && !pairedAt(value, i)
+                    || c == '_' && i + 1 < value.length() && value.charAt(i + 1) == 'x') {
+                // an underscore only needs it ahead of what could pass for an escape
+                out.append(String.format("_x%04X_", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append("</S>");
+    }
+
+    /**
+     * @param reader positioned on the start of the value, left on its end
+     */
+    private Object read(XMLStreamReader reader) throws XMLStreamException {
+        String local = reader.getLocalName();
+        switch (local) {
+            case "Nil":
+                skip(reader);
+                return null;
+            case "Ref": {
+                String refId = reader.getAttributeValue(null, "RefId");
+                skip(reader);
+                return objects.get(refId);
+            }
+            case "Obj":
+                return readObject(reader);
+            case "S":
+            case "URI":
+            case "Version":
+            case "XD":
+            case "SBK":
+            case "SS":
+                return decode(reader.getElementText());
+            case "C":
+                return (char) Integer.parseInt(reader.getElementText().trim());
+            case "B":
+                return Boolean.valueOf(reader.getElementText().trim());
+            case "SB":
+                return Byte.valueOf(reader.getElementText().trim());
+            case "By":
+            case "I16":
+                return Short.valueOf(reader.getElementText().trim());
+            case "U16":
+            case "I32":
+                return Integer.valueOf(reader.getElementText().trim());
+            case "U32":
+            case "I64":
+                return Long.valueOf(reader.getElementText().trim());
+            case "U64":
+                return new BigInteger(reader.getElementText().trim());
+            case "Sg":
+                return (float) parseDouble(reader.getElementText().trim());
+            case "Db":
+                return parseDouble(reader.getElementText().trim());
+            case "D":
+                return new BigDecimal(reader.getElementText().trim());
+            case "DT":
+                return parseDateTime(reader.getElementText().trim());
+            case "TS":
+                return parseDuration(reader.getElementText().trim());
+            case "G":
+                return UUID.fromString(reader.getElementText().trim());
+            case "BA":
+                return Base64.getMimeDecoder().decode(reader.getElementText().trim());
+            default:
+                // a type this reader does not know, its text is all it can offer
+                return text(reader);
+        }
+    }
+
+    private PsObject readObject(XMLStreamReader reader) throws XMLStreamException {
+        PsObject object = new PsObject();
+        String refId = reader.getAttributeValue(null, "RefId");
+        if (refId != null) {
+            objects.put(refId, object);
+        }
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "TN":
+                    object.setTypeNames(readTypeNames(reader));
+                    break;
+                case "TNRef":
+                    object.setTypeNames(typeNames.getOrDefault(reader.getAttributeValue(null, "RefId"), List.of()));
+                    skip(reader);
+                    break;
+                case "ToString":
+                    object.setString(decode(reader.getElementText()));
+                    break;
+                case "Props":
+                case "MS":
+                    readProperties(reader, object);
+                    break;
+                case "LST":
+                case "IE":
+                case "STK":
+                case "QUE":
+                    object.setValue(readList(reader));
+                    break;
+                case "DCT":
+                    object.setValue(readDictionary(reader));
+                    break;
+                default:
+                    object.setValue(read(reader));
+                    break;
+            }
+        }
+        return object;
+    }
+
+    private List<String> readTypeNames(XMLStreamReader reader) throws XMLStreamException {
+        String refId = reader.getAttributeValue(null, "RefId");
+        List<String> names = new ArrayList<>(4);
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                names.add(decode(reader.getElementText()));
+            }
+        }
+        if (refId != null) {
+            typeNames.put(refId, names);
+        }
+        return names;
+    }
+
+    private void readProperties(XMLStreamReader reader, PsObject object) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getAttributeValue(null, "N");
+                Object value = read(reader);
+                if (name != null) {
+                    object.putProperty(decode(name), value);
+                }
+            }
+        }
+    }
+
+    private List<Object> readList(XMLStreamReader reader) throws XMLStreamException {
+        List<Object> items = new ArrayList<>();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                items.add(read(reader));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @param reader positioned on the start of DCT, whose En elements hold a Key and a Value
+     */
+    private Map<Object, Object> readDictionary(XMLStreamReader reader) throws XMLStreamException {
+        Map<Object, Object> entries = new LinkedHashMap<>();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            Object key = null;
+            Object value = null;
+            while (reader.hasNext()) {
+                event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    break;
+                }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if ("Key".equals(reader.getAttributeValue(null, "N"))) {
+                        key = read(reader);
+                    } else {
+                        value = read(reader);
+                    }
+                }
+            }
+            entries.put(key, value);
+        }
+        return entries;
+    }
+
+    /**
+     * Undoes the _xHHHH_ escapes of characters XML cannot carry.
+     */
+    static String decode(String text) {
+        int escape = text.indexOf("_x");
+        if (escape < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        int from = 0;
+        while (escape >= 0) {
+            if (escape + 7 <= text.length() && text.charAt(escape + 6) == '_' && isHex(text, escape + 2, escape + 6)) {
+                out.append(text, from, escape).append((char) Integer.parseInt(text.substring(escape + 2, escape + 6), 16));
+                from = escape + 7;
+                escape = text.indexOf("_x", from);
+            } else {
+                escape = text.indexOf("_x", escape + 1);
+            }
+        }
+        return out.append(text, from, text.length()).toString();
+    }
+
+    private static boolean isHex(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean pairedAt(String value, int i) {
+        char c = value.charAt(i);
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1));
+        }
+        return i > 0 && Character.isHighSurrogate(value.charAt(i - 1));
+    }
+
+    private static double parseDouble(String value) {
+        // .NET writes the infinities the XML Schema way
+        if (value.equals("INF")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (value.equals("-INF")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * Values without an offset, a DateTimeKind of Unspecified, are taken as UTC.
+     */
+    private static OffsetDateTime parseDateTime(String value) {
+        try {
+            return OffsetDateTime.parse(value);
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(value).atOffset(ZoneOffset.UTC);
+        }
+    }
+
+    /**
+     * @return the TimeSpan, or its text if it uses years or months, which no Duration has
+     */
+    private static Object parseDuration(String value) {
+        try {
+            return Duration.parse(value);
+        } catch (DateTimeParseException e) {
+            return value;
+        }
+    }
+
+    private static String text(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth-- == 0) {
+                    break;
+                }
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+        return decode(text.toString());
+    }
+
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT && depth-- == 0) {
+                return;
+            }
+        }
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
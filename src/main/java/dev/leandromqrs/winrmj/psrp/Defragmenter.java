@@ -0,0 +1,157 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMPowerShellError;
+import dev.leandromqrs.winrmj.protocol.ReceiveSink;
+
+import java.util.Arrays;
+
+/**
+ * Puts PSRP messages back together from the fragments in the stdout of a runspace pool
+ * or pipeline, and hands each one on as soon as its last fragment is in.
+ * <p>
+ * Output is consumed in whatever slices the Receive parser decodes it into, headers split
+ * across them included. A message that fits in one slice is handed on from the parser's
+ * buffer as is; the others are copied into a buffer reused from one message to the next
+ * and capped at maxMessageSize, so memory does not grow with the output of the pipeline.
+ * <p>
+ * A failure, whether a malformed fragment, an oversized message or one the handler
+ * rejected, is kept rather than thrown: thrown from the sink it would pass for a broken
+ * response and the Receive would be retried. The rest of the output is ignored once one
+ * was kept.
+ */
+class Defragmenter implements ReceiveSink {
+    interface Handler {
+        /**
+         * @param message the whole message, header included, only valid during the call
+         */
+        void onMessage(byte[] message, int offset, int length) throws Exception;
+
+        /**
+         * Called once, when the failure that stops the output being read is kept.
+         */
+        default void onError(Exception error) {
+        }
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final Handler handler;
+    private final int maxMessageSize;
+    private final byte[] header = new byte[PsrpMessages.FRAGMENT_HEADER_SIZE];
+    private int headerLength;
+    // blob bytes of the current fragment still to come
+    private int remaining;
+    private boolean end;
+    private byte[] message = new byte[0];
+    private int messageLength;
+    private boolean inMessage;
+    private long objectId;
+    private long fragmentId;
+    private volatile Exception error;
+
+    Defragmenter(Handler handler, int maxMessageSize) {
+        this.handler = handler;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @return why the output stopped being read, null if nothing went wrong
+     */
+    Exception getError() {
+        return error;
+    }
+
+    @Override
+    public void write(String commandId, String stream, byte[] buffer, int offset, int length) {
+        if (error != null) {
+            return;
+        }
+        try {
+            int limit = offset + length;
+            while (offset < limit) {
+                if (headerLength < header.length) {
+                    int count = Math.min(header.length - headerLength, limit - offset);
+                    System.arraycopy(buffer, offset, header, headerLength, count);
+                    headerLength += count;
+                    offset += count;
+                    if (headerLength == header.length) {
+                        startFragment();
+                        if (remaining == 0) {
+                            endFragment();
+                        } else if (end && messageLength == 0 && limit - offset >= remaining) {
+                            // a whole message in one fragment, all of it at hand
+                            int blob = offset;
+                            offset += remaining;
+                            remaining = 0;
+                            headerLength = 0;
+                            inMessage = false;
+                            handler.onMessage(buffer, blob, offset - blob);
+                        }
+                    }
+                    continue;
+                }
+                int count = Math.min(remaining, limit - offset);
+                append(buffer, offset, count);
+                offset += count;
+                remaining -= count;
+                if (remaining == 0) {
+                    endFragment();
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+            handler.onError(e);
+        }
+    }
+
+    private void startFragment() throws WinRMPowerShellError {
+        long id = readLong(0);
+        long fragment = readLong(8);
+        int flags = header[16];
+        remaining = ((header[17] & 0xff) << 24) | ((header[18] & 0xff) << 16) | ((header[19] & 0xff) << 8) | (header[20] & 0xff);
+        end = (flags & PsrpMessages.FLAG_END) != 0;
+        if ((flags & PsrpMessages.FLAG_START) != 0) {
+            if (inMessage) {
+                throw new WinRMPowerShellError(String.format("Fragment of object %d started before object %d ended", id, objectId));
+            }
+            inMessage = true;
+            objectId = id;
+            messageLength = 0;
+        } else if (!inMessage || id != objectId || fragment != fragmentId + 1) {
+            throw new WinRMPowerShellError(String.format("Fragment %d of object %d out of order", fragment, id));
+        }
+        fragmentId = fragment;
+        if (remaining < 0 || (long) messageLength + remaining > maxMessageSize) {
+            throw new WinRMPowerShellError(String.format("Message of object %d exceeds %d bytes", id, maxMessageSize));
+        }
+    }
+
+    private void endFragment() throws Exception {
+        headerLength = 0;
+        if (!end) {
+            return;
+        }
+        inMessage = false;
+        int length = messageLength;
+        messageLength = 0;
+        handler.onMessage(message, 0, length);
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        int needed = messageLength + length;
+        if (needed > message.length) {
+            // remaining was checked against maxMessageSize, so this stays within it
+            message = Arrays.copyOf(message, Math.min(maxMessageSize, Math.max(needed, Math.max(INITIAL_BUFFER_SIZE, message.length * 2))));
+        }
+        System.arraycopy(buffer, offset, message, messageLength, length);
+        messageLength = needed;
+    }
+
+    private long readLong(int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (header[i] & 0xff);
+        }
+        return value;
+    }
+}
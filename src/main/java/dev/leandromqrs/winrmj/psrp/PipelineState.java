@@ -0,0 +1,24 @@
+package dev.leandromqrs.winrmj.psrp;
+
+/**
+ * State of a pipeline, the PSInvocationState the server reports in PIPELINE_STATE
+ * messages. Values are in the order of their wire numbers.
+ */
+public enum PipelineState {
+    NOT_STARTED, RUNNING, STOPPING, STOPPED, COMPLETED, FAILED, DISCONNECTED;
+
+    /**
+     * @return whether the pipeline ended, one way or another
+     */
+    public boolean isTerminal() {
+        return this == STOPPED || this == COMPLETED || this == FAILED;
+    }
+
+    static PipelineState of(int value) {
+        PipelineState[] values = values();
+        if (value < 0 || value >= values.length) {
+            throw new IllegalArgumentException("Unknown pipeline state: " + value);
+        }
+        return values[value];
+    }
+}
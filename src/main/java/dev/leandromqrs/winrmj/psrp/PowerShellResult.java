@@ -0,0 +1,63 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything a pipeline wrote, stream by stream, and how it ended; see
+ * {@link RunspacePool#invoke(String)}.
+ */
+public class PowerShellResult {
+    private final Map<PsStream, List<Object>> streams = new EnumMap<>(PsStream.class);
+    private PipelineState state;
+
+    PowerShellResult() {
+    }
+
+    /**
+     * @return the objects written to the output stream, see {@link PsOutputSink#write}
+     */
+    public List<Object> getOutput() {
+        return getStream(PsStream.OUTPUT);
+    }
+
+    /**
+     * @return the ErrorRecords, that of the exception which failed the pipeline included
+     */
+    public List<Object> getErrors() {
+        return getStream(PsStream.ERROR);
+    }
+
+    public List<Object> getStream(PsStream stream) {
+        List<Object> values = streams.get(stream);
+        return values == null ? List.of() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @return whether the pipeline wrote errors, which does not fail it unless they were
+     *         terminating ones
+     */
+    public boolean hadErrors() {
+        return streams.containsKey(PsStream.ERROR) || state == PipelineState.FAILED;
+    }
+
+    public PipelineState getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<PowerShellResult %s, output %d, errors %d>", state, getOutput().size(), getErrors().size());
+    }
+
+    void add(PsStream stream, Object value) {
+        streams.computeIfAbsent(stream, key -> new ArrayList<>()).add(value);
+    }
+
+    void setState(PipelineState state) {
+        this.state = state;
+    }
+}
@@ -0,0 +1,104 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A deserialized PowerShell object, as the server sent it in CLIXML: its type names,
+ * its string form and its properties, adapted and extended ones alike.
+ * <p>
+ * Collections and dictionaries come as a PsObject whose value is a List or a Map, enums
+ * as one whose value is their number and whose string form is their name. Property
+ * values are Java values or PsObjects, like those handed to a {@link PsOutputSink}.
+ */
+public class PsObject {
+    private List<String> typeNames = List.of();
+    private String string;
+    private Object value;
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+
+    PsObject() {
+    }
+
+    /**
+     * @return the .NET type names, most derived first, e.g. System.Diagnostics.Process
+     *         then System.ComponentModel.Component; "Deserialized." prefixes included
+     */
+    public List<String> getTypeNames() {
+        return typeNames;
+    }
+
+    /**
+     * @return whether one of the type names is the given one, with or without its
+     *         "Deserialized." prefix
+     */
+    public boolean isInstanceOf(String typeName) {
+        return typeNames.contains(typeName) || typeNames.contains("Deserialized." + typeName);
+    }
+
+    /**
+     * @return what ToString() returned for the object on the server, null if it was not
+     *         sent; for an ErrorRecord that is the error message
+     */
+    public String asString() {
+        return string;
+    }
+
+    /**
+     * @return the List, Map or primitive the object wraps, null if it is a plain object
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    public Set<String> getPropertyNames() {
+        return Collections.unmodifiableSet(properties.keySet());
+    }
+
+    /**
+     * @return the value of the property, null if it is $null or the object has no such
+     *         property
+     */
+    public Object getProperty(String name) {
+        return properties.get(name);
+    }
+
+    /**
+     * @return the property as a string, that of a PsObject being its string form
+     */
+    public String getString(String name) {
+        Object property = properties.get(name);
+        if (property instanceof PsObject) {
+            return ((PsObject) property).asString();
+        }
+        return property == null ? null : property.toString();
+    }
+
+    @Override
+    public String toString() {
+        String type = typeNames.isEmpty() ? "" : " " + typeNames.get(0);
+        if (string != null) {
+            return String.format("<PsObject%s %s>", type, string);
+        }
+        return String.format("<PsObject%s %s>", type, value != null ? value : properties);
+    }
+
+    void setTypeNames(List<String> typeNames) {
+        this.typeNames = typeNames;
+    }
+
+    void setString(String string) {
+        this.string = string;
+    }
+
+    void setValue(Object value) {
+        this.value = value;
+    }
+
+    void putProperty(String name, Object property) {
+        properties.put(name, property);
+    }
+}
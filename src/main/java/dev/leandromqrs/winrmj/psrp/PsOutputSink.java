@@ -0,0 +1,14 @@
+package dev.leandromqrs.winrmj.psrp;
+
+/**
+ * Receives the objects of a pipeline as they are deserialized, in the order the server
+ * sent them. Calls for one pipeline never overlap.
+ */
+public interface PsOutputSink {
+    /**
+     * @param value a String, Integer, Boolean or other Java value for primitives, a
+     *              {@link PsObject} for everything else, null for $null
+     * @throws Exception to stop the pipeline, which then fails with it as the cause
+     */
+    void write(PsStream stream, Object value) throws Exception;
+}
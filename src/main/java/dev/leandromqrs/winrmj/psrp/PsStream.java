@@ -0,0 +1,8 @@
+package dev.leandromqrs.winrmj.psrp;
+
+/**
+ * The PowerShell stream an object of a pipeline was written to.
+ */
+public enum PsStream {
+    OUTPUT, ERROR, WARNING, VERBOSE, DEBUG, INFORMATION, PROGRESS
+}
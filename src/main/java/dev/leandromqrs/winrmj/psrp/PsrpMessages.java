@@ -0,0 +1,212 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * PSRP messages and the fragments they travel in, see MS-PSRP 2.2.1 and 2.2.4.
+ * <p>
+ * A message is a 40 byte header, destination and type as little-endian ints and the
+ * runspace pool and pipeline ids as .NET GUIDs, followed by its CLIXML. A fragment is a
+ * 21 byte header, big-endian object id, fragment id, start/end flags and blob length,
+ * followed by a slice of the message.
+ */
+final class PsrpMessages {
+    static final int SESSION_CAPABILITY = 0x00010002;
+    static final int INIT_RUNSPACEPOOL = 0x00010004;
+    static final int RUNSPACEPOOL_STATE = 0x00021005;
+    static final int CREATE_PIPELINE = 0x00021006;
+    static final int APPLICATION_PRIVATE_DATA = 0x00021009;
+    static final int RUNSPACEPOOL_HOST_CALL = 0x00021100;
+    static final int PIPELINE_OUTPUT = 0x00041004;
+    static final int ERROR_RECORD = 0x00041005;
+    static final int PIPELINE_STATE = 0x00041006;
+    static final int DEBUG_RECORD = 0x00041007;
+    static final int VERBOSE_RECORD = 0x00041008;
+    static final int WARNING_RECORD = 0x00041009;
+    static final int PROGRESS_RECORD = 0x00041010;
+    static final int INFORMATION_RECORD = 0x00041011;
+    static final int PIPELINE_HOST_CALL = 0x00041100;
+
+    static final int DESTINATION_SERVER = 2;
+    static final int MESSAGE_HEADER_SIZE = 40;
+    static final int FRAGMENT_HEADER_SIZE = 21;
+    static final int FLAG_START = 1;
+    static final int FLAG_END = 2;
+
+    // RunspacePoolState
+    static final int POOL_OPENED = 2;
+    static final int POOL_CLOSED = 3;
+    static final int POOL_BROKEN = 5;
+
+    private static final byte[] BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+    private static final UUID EMPTY_ID = new UUID(0, 0);
+
+    // protocol 2.2 is what the shell is created with; with it the server expects no
+    // MergeInformation in commands, which only came with 2.3
+    private static final String SESSION_CAPABILITY_DATA = "<Obj RefId=\"0\"><MS>"
+            + "<Version N=\"protocolversion\">2.2</Version>"
+            + "<Version N=\"PSVersion\">2.0</Version>"
+            + "<Version N=\"SerializationVersion\">1.1.0.1</Version>"
+            + "</MS></Obj>";
+    private static final String NO_HOST = "<Obj N=\"HostInfo\" RefId=\"%d\"><MS>"
+            + "<B N=\"_isHostNull\">true</B><B N=\"_isHostUINull\">true</B>"
+            + "<B N=\"_isHostRawUINull\">true</B><B N=\"_useRunspaceHost\">true</B>"
+            + "</MS></Obj>";
+    private static final String APARTMENT_STATE_UNKNOWN = "<Obj N=\"ApartmentState\" RefId=\"%d\"><TN RefId=\"%d\">"
+            + "<T>System.Threading.ApartmentState</T><T>System.Enum</T><T>System.ValueType</T><T>System.Object</T>"
+            + "</TN><ToString>Unknown</ToString><I32>2</I32></Obj>";
+    private static final String MERGE_NONE = "<Obj N=\"%s\" RefId=\"%d\"><TNRef RefId=\"3\"/><ToString>None</ToString><I32>0</I32></Obj>";
+
+    private PsrpMessages() {
+    }
+
+    static String sessionCapability() {
+        return SESSION_CAPABILITY_DATA;
+    }
+
+    static String initRunspacePool(int minRunspaces, int maxRunspaces) {
+        return "<Obj RefId=\"0\"><MS>"
+                + "<I32 N=\"MinRunspaces\">" + minRunspaces + "</I32>"
+                + "<I32 N=\"MaxRunspaces\">" + maxRunspaces + "</I32>"
+                + "<Obj N=\"PSThreadOptions\" RefId=\"1\"><TN RefId=\"0\">"
+                + "<T>System.Management.Automation.Runspaces.PSThreadOptions</T><T>System.Enum</T><T>System.ValueType</T><T>System.Object</T>"
+                + "</TN><ToString>Default</ToString><I32>0</I32></Obj>"
+                + String.format(APARTMENT_STATE_UNKNOWN, 2, 1)
+                + String.format(NO_HOST, 3)
+                + "<Nil N=\"ApplicationArguments\"/>"
+                + "</MS></Obj>";
+    }
+
+    /**
+     * A pipeline of one script, with no input and no host.
+     */
+    static String createPipeline(String script) {
+        StringBuilder data = new StringBuilder(script.length() + 2048);
+        data.append("<Obj RefId=\"0\"><MS>")
+                .append("<B N=\"NoInput\">true</B>")
+                .append(String.format(APARTMENT_STATE_UNKNOWN, 1, 0))
+                .append("<Obj N=\"RemoteStreamOptions\" RefId=\"2\"><TN RefId=\"1\">")
+                .append("<T>System.Management.Automation.RemoteStreamOptions</T><T>System.Enum</T><T>System.ValueType</T><T>System.Object</T>")
+                .append("</TN><ToString>0</ToString><I32>0</I32></Obj>")
+                .append("<B N=\"AddToHistory\">false</B>")
+                .append(String.format(NO_HOST, 3))
+                .append("<Obj N=\"PowerShell\" RefId=\"4\"><MS>")
+                .append("<Obj N=\"Cmds\" RefId=\"5\"><TN RefId=\"2\">")
+                .append("<T>System.Collections.Generic.List`1[[System.Management.Automation.PSObject, System.Management.Automation, ")
+                .append("Version=1.0.0.0, Culture=neutral, PublicKeyToken=31bf3856ad364e35]]</T><T>System.Object</T></TN><LST>")
+                .append("<Obj RefId=\"6\"><MS>");
+        Clixml.appendString(data, "Cmd", script);
+        data.append("<B N=\"IsScript\">true</B>")
+                .append("<Nil N=\"UseLocalScope\"/>")
+                .append("<Obj N=\"MergeMyResult\" RefId=\"7\"><TN RefId=\"3\">")
+                .append("<T>System.Management.Automation.Runspaces.PipelineResultTypes</T><T>System.Enum</T><T>System.ValueType</T><T>System.Object</T>")
+                .append("</TN><ToString>None</ToString><I32>0</I32></Obj>")
+                .append(String.format(MERGE_NONE, "MergeToResult", 8))
+                .append(String.format(MERGE_NONE, "MergePreviousResults", 9))
+                .append(String.format(MERGE_NONE, "MergeError", 10))
+                .append(String.format(MERGE_NONE, "MergeWarning", 11))
+                .append(String.format(MERGE_NONE, "MergeVerbose", 12))
+                .append(String.format(MERGE_NONE, "MergeDebug", 13))
+                .append("<Obj N=\"Args\" RefId=\"14\"><TNRef RefId=\"2\"/><LST/></Obj>")
+                .append("</MS></Obj>")
+                .append("</LST></Obj>")
+                .append("<B N=\"IsNested\">false</B>")
+                .append("<Nil N=\"History\"/>")
+                .append("<B N=\"RedirectShellErrorOutputPipe\">true</B>")
+                .append("</MS></Obj>")
+                .append("<B N=\"IsNested\">false</B>")
+                .append("</MS></Obj>");
+        return data.toString();
+    }
+
+    /**
+     * @param pipelineId null for messages to the runspace pool itself
+     */
+    static byte[] message(int type, UUID poolId, UUID pipelineId, String data) {
+        byte[] xml = data.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + BOM.length + xml.length).order(ByteOrder.LITTLE_ENDIAN);
+        message.putInt(DESTINATION_SERVER).putInt(type);
+        putGuid(message, poolId);
+        putGuid(message, pipelineId != null ? pipelineId : EMPTY_ID);
+        message.put(BOM).put(xml);
+        return message.array();
+    }
+
+    /**
+     * Cuts messages into fragments of at most fragmentSize bytes, headers included, one
+     * object id per message.
+     *
+     * @param objectId id of the first message, the next ones take the following ids
+     */
+    static List<byte[]> fragment(long objectId, int fragmentSize, byte[]... messages) {
+        int blobSize = fragmentSize - FRAGMENT_HEADER_SIZE;
+        if (blobSize < 1) {
+            throw new IllegalArgumentException("Fragment size leaves no room for data: " + fragmentSize);
+        }
+        List<byte[]> fragments = new ArrayList<>();
+        for (byte[] message : messages) {
+            long fragmentId = 0;
+            for (int offset = 0; offset < message.length; offset += blobSize, fragmentId++) {
+                int length = Math.min(blobSize, message.length - offset);
+                int flags = (offset == 0 ? FLAG_START : 0) | (offset + length == message.length ? FLAG_END : 0);
+                ByteBuffer fragment = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length);
+                fragment.putLong(objectId).putLong(fragmentId).put((byte) flags).putInt(length).put(message, offset, length);
+                fragments.add(fragment.array());
+            }
+            objectId++;
+        }
+        return fragments;
+    }
+
+    /**
+     * Packs whole fragments together, as many as fit in maxSize bytes each time.
+     */
+    static List<byte[]> pack(List<byte[]> fragments, int maxSize) {
+        List<byte[]> packs = new ArrayList<>();
+        ByteArrayOutputStream pack = new ByteArrayOutputStream(Math.min(maxSize, 65536));
+        for (byte[] fragment : fragments) {
+            if (pack.size() > 0 && pack.size() + fragment.length > maxSize) {
+                packs.add(pack.toByteArray());
+                pack.reset();
+            }
+            pack.writeBytes(fragment);
+        }
+        if (pack.size() > 0) {
+            packs.add(pack.toByteArray());
+        }
+        return packs;
+    }
+
+    static int messageType(byte[] message, int offset) {
+        return ByteBuffer.wrap(message, offset, MESSAGE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).getInt(offset + 4);
+    }
+
+    /**
+     * @return where the CLIXML of the message starts, past its byte order mark if any
+     */
+    static int dataOffset(byte[] message, int offset, int length) {
+        int data = offset + MESSAGE_HEADER_SIZE;
+        if (length >= MESSAGE_HEADER_SIZE + BOM.length && message[data] == BOM[0] && message[data + 1] == BOM[1] && message[data + 2] == BOM[2]) {
+            return data + BOM.length;
+        }
+        return data;
+    }
+
+    /**
+     * Writes the id in the byte order of System.Guid.ToByteArray, whose first three
+     * fields are little-endian.
+     */
+    private static void putGuid(ByteBuffer out, UUID id) {
+        long msb = id.getMostSignificantBits();
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt((int) (msb >>> 32)).putShort((short) (msb >>> 16)).putShort((short) msb);
+        out.order(ByteOrder.BIG_ENDIAN).putLong(id.getLeastSignificantBits());
+        out.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
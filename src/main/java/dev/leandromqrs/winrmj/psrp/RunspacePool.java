@@ -0,0 +1,425 @@
+package dev.leandromqrs.winrmj.psrp;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMInterruptedError;
+import dev.leandromqrs.winrmj.exceptions.WinRMPowerShellError;
+import dev.leandromqrs.winrmj.protocol.AsyncProtocol;
+import dev.leandromqrs.winrmj.protocol.EnvelopeTemplates;
+import dev.leandromqrs.winrmj.protocol.Protocol;
+import dev.leandromqrs.winrmj.transport.TransportOptions;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A PowerShell runspace pool on one host, over PowerShell Remoting (PSRP) instead of
+ * cmd.
+ * <p>
+ * The pool is one shell of the Microsoft.PowerShell plugin, opened once, with
+ * powershell.exe started on the server then and only then. Every script runs as a
+ * pipeline in one of its runspaces, so after the first one a script costs a Command and
+ * a Receive or two rather than the seconds powershell.exe takes to start. Up to
+ * maxRunspaces pipelines run at once, each with a Receive loop of its own like commands
+ * in a shell.
+ * <p>
+ * Output is reassembled from its fragments as it arrives and every object is handed to
+ * the caller as soon as it is deserialized, so a pipeline's memory is bounded by its
+ * largest object rather than its output. Pipelines run with no host: a script that
+ * prompts fails instead of waiting for an answer that never comes.
+ * <p>
+ * Thread safe. The pool opens with its first pipeline unless {@link #open} is called
+ * first; one that failed to open stays failed.
+ */
+public class RunspacePool implements AutoCloseable {
+    // the Create and Command envelopes run a little longer than the Send one the chunk is measured on
+    private static final int ENVELOPE_MARGIN = 1024;
+
+    private final Protocol protocol;
+    private final RunspacePoolOptions options;
+    private final UUID id = UUID.randomUUID();
+    private final String shellId = id.toString().toUpperCase();
+    // fragment object ids, unique within the pool
+    private final AtomicLong objectIds = new AtomicLong(1);
+    private CompletableFuture<Void> opened;
+    private boolean closed;
+
+    public RunspacePool(String url, String username, String password) {
+        this(url, username, password, new RunspacePoolOptions());
+    }
+
+    public RunspacePool(String url, String username, String password, RunspacePoolOptions options) {
+        this(url, username, password, options, new TransportOptions());
+    }
+
+    public RunspacePool(String url, String username, String password, RunspacePoolOptions options, TransportOptions transportOptions) {
+        this(powerShellProtocol(new Protocol(url, "plaintext", username, password, null, null, null, transportOptions)), options);
+    }
+
+    /**
+     * Runs pipelines over a Protocol built by the caller, a Kerberos one for instance. It
+     * must be set to {@link EnvelopeTemplates#RESOURCE_URI_POWERSHELL} and cannot be
+     * shared with a Session, whose shells are cmd ones.
+     */
+    public RunspacePool(Protocol protocol, RunspacePoolOptions options) {
+        if (!EnvelopeTemplates.RESOURCE_URI_POWERSHELL.equals(protocol.getResourceUri())) {
+            throw new IllegalArgumentException("Protocol is not set to the PowerShell resource URI: " + protocol.getResourceUri());
+        }
+        this.protocol = protocol;
+        this.options = options;
+    }
+
+    private static Protocol powerShellProtocol(Protocol protocol) {
+        protocol.setResourceUri(EnvelopeTemplates.RESOURCE_URI_POWERSHELL);
+        return protocol;
+    }
+
+    /**
+     * @return the id of the pool, which is also its ShellId
+     */
+    public UUID getId() {
+        return id;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public void open() throws Exception {
+        await(openAsync());
+    }
+
+    /**
+     * Creates the pool's shell and waits until the server reports the pool opened. Calls
+     * after the first one return the same future.
+     *
+     * @return a future failing with a WinRMPowerShellError if the pool broke while opening
+     */
+    public synchronized CompletableFuture<Void> openAsync() {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Runspace pool is closed"));
+        }
+        if (opened == null) {
+            opened = _open();
+        }
+        return opened;
+    }
+
+    /**
+     * Runs the script and collects everything it writes.
+     *
+     * @return the result, FAILED if a terminating error stopped the script
+     */
+    public PowerShellResult invoke(String script) throws Exception {
+        PowerShellResult result = new PowerShellResult();
+        result.setState(invoke(script, result::add));
+        return result;
+    }
+
+    /**
+     * Runs the script with its objects handed to the sink as they arrive.
+     */
+    public PipelineState invoke(String script, PsOutputSink sink) throws Exception {
+        return await(invokeAsync(script, sink));
+    }
+
+    /**
+     * Same as {@link #invoke(String, PsOutputSink)} without blocking. The sink is called
+     * from the threads that complete the Receives, one call at a time. Cancelling the
+     * future stops polling and the pipeline.
+     *
+     * @return the state the pipeline ended in, STOPPED, COMPLETED or FAILED
+     */
+    public CompletableFuture<PipelineState> invokeAsync(String script, PsOutputSink sink) {
+        CompletableFuture<PipelineState> result = new CompletableFuture<>();
+        openAsync().whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            } else if (!result.isDone()) {
+                new Pipeline(sink, result).start(script);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Closes the pool on the server. Pipelines still running are stopped with it. If the
+     * calling thread is interrupted the shell is left to its idle timeout on the server and
+     * the thread's interrupt status is kept.
+     *
+     * @throws WinRMPowerShellError if the shell could not be deleted, with the reason as
+     *                              its cause
+     */
+    @Override
+    public void close() throws WinRMPowerShellError {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = opened;
+        }
+        try {
+            // a pool that failed to open deleted its shell already
+            if (pending != null && pending.handle((ignored, error) -> error == null).get()) {
+                protocol.closeShell(shellId);
+            }
+        } catch (InterruptedException | WinRMInterruptedError e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new WinRMPowerShellError(String.format("Failed to close runspace pool %s", shellId), e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        String state = closed ? "closed" : opened == null ? "not opened" : !opened.isDone() ? "opening"
+                : opened.isCompletedExceptionally() ? "broken" : "opened";
+        return String.format("<RunspacePool %s %s, runspaces %d-%d>", shellId, state, options.getMinRunspaces(), options.getMaxRunspaces());
+    }
+
+    private CompletableFuture<Void> _open() {
+        int fragmentSize = fragmentSize(shellId);
+        List<byte[]> fragments = PsrpMessages.fragment(objectIds.getAndAdd(2), fragmentSize,
+                PsrpMessages.message(PsrpMessages.SESSION_CAPABILITY, id, null, PsrpMessages.sessionCapability()),
+                PsrpMessages.message(PsrpMessages.INIT_RUNSPACEPOOL, id, null,
+                        PsrpMessages.initRunspacePool(options.getMinRunspaces(), options.getMaxRunspaces())));
+        // all of them in the one Create, there is nowhere else to send them
+        byte[] creationXml = PsrpMessages.pack(fragments, Integer.MAX_VALUE).get(0);
+
+        AsyncProtocol async = protocol.async();
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        Opening opening = new Opening();
+        Defragmenter output = new Defragmenter(opening, options.getMaxMessageSize());
+        async.openShell(shellId, creationXml, options.getIdleTimeout()).whenComplete((confirmed, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            _awaitOpened(output, opening, result);
+        });
+        return result;
+    }
+
+    /**
+     * Receives the pool's own output until it reports its state.
+     */
+    private void _awaitOpened(Defragmenter output, Opening opening, CompletableFuture<Void> result) {
+        protocol.async().receive(shellId, null, output).whenComplete((ignored, error) -> {
+            Exception failure = null;
+            if (error != null) {
+                failure = (Exception) (error instanceof CompletionException ? error.getCause() : error);
+            } else if (output.getError() != null) {
+                failure = new WinRMPowerShellError("Unreadable output while opening runspace pool " + shellId, output.getError());
+            } else if (opening.state == PsrpMessages.POOL_BROKEN || opening.state == PsrpMessages.POOL_CLOSED) {
+                failure = new WinRMPowerShellError(String.format("Runspace pool %s %s while opening%s", shellId,
+                        opening.state == PsrpMessages.POOL_BROKEN ? "broke" : "closed", opening.reason != null ? ": " + opening.reason : ""));
+            } else if (opening.state == PsrpMessages.POOL_OPENED) {
+                result.complete(null);
+                return;
+            } else {
+                _awaitOpened(output, opening, result);
+                return;
+            }
+            result.completeExceptionally(failure);
+            // the shell exists even if the pool never opened in it
+            protocol.async().closeShell(shellId);
+        });
+    }
+
+    private int fragmentSize(String commandId) {
+        return protocol.getMaxSendChunk(shellId, commandId) - ENVELOPE_MARGIN;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Watches the pool's output for its state while it opens.
+     */
+    private static class Opening implements Defragmenter.Handler {
+        volatile int state = -1;
+        volatile String reason;
+
+        @Override
+        public void onMessage(byte[] message, int offset, int length) throws Exception {
+            if (PsrpMessages.messageType(message, offset) != PsrpMessages.RUNSPACEPOOL_STATE) {
+                // SESSION_CAPABILITY and APPLICATION_PRIVATE_DATA come first, nothing to do with them
+                return;
+            }
+            int data = PsrpMessages.dataOffset(message, offset, length);
+            PsObject pool = (PsObject) Clixml.parse(message, data, offset + length - data);
+            Object error = pool.getProperty("ExceptionAsErrorRecord");
+            reason = error instanceof PsObject ? ((PsObject) error).asString() : null;
+            state = (Integer) pool.getProperty("RunspaceState");
+        }
+    }
+
+    /**
+     * One script from its Command to its final state.
+     */
+    private class Pipeline implements Defragmenter.Handler {
+        final UUID pipelineId = UUID.randomUUID();
+        final String commandId = pipelineId.toString().toUpperCase();
+        final PsOutputSink sink;
+        final CompletableFuture<PipelineState> result;
+        final Defragmenter output;
+        volatile PipelineState state;
+        volatile CompletableFuture<Integer> polling;
+
+        Pipeline(PsOutputSink sink, CompletableFuture<PipelineState> result) {
+            this.sink = sink;
+            this.result = result;
+            this.output = new Defragmenter(this, options.getMaxMessageSize());
+        }
+
+        void start(String script) {
+            AsyncProtocol async = protocol.async();
+            int fragmentSize = fragmentSize(commandId);
+            byte[] message = PsrpMessages.message(PsrpMessages.CREATE_PIPELINE, id, pipelineId, PsrpMessages.createPipeline(script));
+            // the first fragments go with the Command, those of a long script follow on stdin
+            List<byte[]> packs = PsrpMessages.pack(PsrpMessages.fragment(objectIds.getAndIncrement(), fragmentSize, message), fragmentSize);
+            CompletableFuture<Void> sent = async.runCommand(shellId, commandId, packs.get(0)).thenApply(confirmed -> null);
+            for (byte[] pack : packs.subList(1, packs.size())) {
+                sent = sent.thenCompose(ignored -> async.sendInput(shellId, commandId, pack, 0, pack.length, false));
+            }
+            sent.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                    return;
+                }
+                poll();
+            });
+        }
+
+        void poll() {
+            CompletableFuture<Integer> receiving = protocol.async().getCommandOutput(shellId, commandId, output);
+            polling = receiving;
+            if (finished()) {
+                // ended before there was a loop to stop
+                receiving.complete(-1);
+            }
+            result.whenComplete((state, error) -> {
+                if (result.isCancelled()) {
+                    receiving.cancel(false);
+                    stop();
+                }
+            });
+            receiving.whenComplete((exitCode, error) -> finish(error));
+        }
+
+        @Override
+        public void onMessage(byte[] message, int offset, int length) throws Exception {
+            int type = PsrpMessages.messageType(message, offset);
+            PsStream stream;
+            switch (type) {
+                case PsrpMessages.PIPELINE_OUTPUT:
+                    stream = PsStream.OUTPUT;
+                    break;
+                case PsrpMessages.ERROR_RECORD:
+                    stream = PsStream.ERROR;
+                    break;
+                case PsrpMessages.WARNING_RECORD:
+                    stream = PsStream.WARNING;
+                    break;
+                case PsrpMessages.VERBOSE_RECORD:
+                    stream = PsStream.VERBOSE;
+                    break;
+                case PsrpMessages.DEBUG_RECORD:
+                    stream = PsStream.DEBUG;
+                    break;
+                case PsrpMessages.INFORMATION_RECORD:
+                    stream = PsStream.INFORMATION;
+                    break;
+                case PsrpMessages.PROGRESS_RECORD:
+                    stream = PsStream.PROGRESS;
+                    break;
+                case PsrpMessages.PIPELINE_STATE:
+                    onState((PsObject) parse(message, offset, length));
+                    return;
+                case PsrpMessages.PIPELINE_HOST_CALL:
+                    PsObject call = (PsObject) parse(message, offset, length);
+                    throw new WinRMPowerShellError(String.format("Pipeline %s called host method %s, there is no host", commandId, call.getString("mi")));
+                default:
+                    return;
+            }
+            sink.write(stream, parse(message, offset, length));
+        }
+
+        @Override
+        public void onError(Exception error) {
+            stopPolling();
+        }
+
+        private void onState(PsObject pipeline) throws Exception {
+            Object error = pipeline.getProperty("ExceptionAsErrorRecord");
+            if (error != null) {
+                sink.write(PsStream.ERROR, error);
+            }
+            state = PipelineState.of((Integer) pipeline.getProperty("PipelineState"));
+            if (state.isTerminal()) {
+                // the server may not mark the command done until the next Receive
+                stopPolling();
+            }
+        }
+
+        private boolean finished() {
+            return output.getError() != null || state != null && state.isTerminal();
+        }
+
+        private void stopPolling() {
+            CompletableFuture<Integer> receiving = polling;
+            if (receiving != null) {
+                receiving.complete(-1);
+            }
+        }
+
+        private void finish(Throwable error) {
+            if (result.isDone()) {
+                return;
+            }
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                return;
+            }
+            Exception broken = output.getError();
+            if (broken != null) {
+                stop();
+                result.completeExceptionally(broken instanceof WinRMPowerShellError ? broken
+                        : new WinRMPowerShellError("Pipeline " + commandId + " stopped", broken));
+            } else if (state == null || !state.isTerminal()) {
+                result.completeExceptionally(new WinRMPowerShellError(String.format("Pipeline %s ended in state %s", commandId, state)));
+            } else {
+                // as Protocol.cleanupCommand does, the server keeps the command until then;
+                // the pipeline ended all the same if the Signal fails
+                protocol.async().signal(shellId, commandId, EnvelopeTemplates.SIGNAL_TERMINATE)
+                        .whenComplete((ignored, signalError) -> result.complete(state));
+            }
+        }
+
+        /**
+         * Stops the pipeline on the server, unless it already ended.
+         */
+        private void stop() {
+            if (state == null || !state.isTerminal()) {
+                protocol.async().signal(shellId, commandId, EnvelopeTemplates.SIGNAL_PS_CTRL_C);
+            }
+        }
+
+        private Object parse(byte[] message, int offset, int length) throws Exception {
+            int data = PsrpMessages.dataOffset(message, offset, length);
+            return Clixml.parse(message, data, offset + length - data);
+        }
+    }
+}
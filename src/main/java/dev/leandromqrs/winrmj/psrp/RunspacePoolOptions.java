@@ -0,0 +1,79 @@
+package dev.leandromqrs.winrmj.psrp;
+
+/**
+ * Sizing and limits of a RunspacePool.
+ */
+public class RunspacePoolOptions {
+    public static final int DEFAULT_MIN_RUNSPACES = 1;
+    // pipelines beyond that many wait on the server for a runspace
+    public static final int DEFAULT_MAX_RUNSPACES = 4;
+    // seconds, sent as the shell IdleTimeOut
+    public static final int DEFAULT_IDLE_TIMEOUT = 180;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private int minRunspaces = DEFAULT_MIN_RUNSPACES;
+    private int maxRunspaces = DEFAULT_MAX_RUNSPACES;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    public int getMinRunspaces() {
+        return minRunspaces;
+    }
+
+    /**
+     * Runspaces the server opens up front, each one costing about as much as starting
+     * powershell.exe.
+     */
+    public RunspacePoolOptions setMinRunspaces(int minRunspaces) {
+        if (minRunspaces < 1) {
+            throw new IllegalArgumentException("minRunspaces must be positive: " + minRunspaces);
+        }
+        this.minRunspaces = minRunspaces;
+        return this;
+    }
+
+    public int getMaxRunspaces() {
+        return maxRunspaces;
+    }
+
+    /**
+     * Pipelines that run at once; MaxShellsPerUser does not count them, they all run in
+     * the pool's one shell.
+     */
+    public RunspacePoolOptions setMaxRunspaces(int maxRunspaces) {
+        if (maxRunspaces < 1) {
+            throw new IllegalArgumentException("maxRunspaces must be positive: " + maxRunspaces);
+        }
+        this.maxRunspaces = maxRunspaces;
+        return this;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Seconds the pool may sit unused before the server closes it.
+     */
+    public RunspacePoolOptions setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Largest PSRP message a pipeline may receive, once its fragments are put together.
+     * Messages are one output object each, so this bounds the memory a pipeline holds
+     * however much it outputs; a larger one fails the pipeline.
+     */
+    public RunspacePoolOptions setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize < 1024) {
+            throw new IllegalArgumentException("maxMessageSize must be at least 1024: " + maxMessageSize);
+        }
+        this.maxMessageSize = maxMessageSize;
+        return this;
+    }
+}
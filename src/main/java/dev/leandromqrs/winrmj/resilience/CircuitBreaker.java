@@ -0,0 +1,109 @@
+package dev.leandromqrs.winrmj.resilience;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMCircuitOpenError;
+import dev.leandromqrs.winrmj.exceptions.WinRMInterruptedError;
+import dev.leandromqrs.winrmj.exceptions.WinRMTransportError;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of one host, obtained from {@link Resilience#breaker}.
+ * <p>
+ * Only transport failures count against the host: a SOAP Fault, even an authorization
+ * failure, proves it is up and answering. After failureThreshold transport failures in a
+ * row the circuit opens and requests fail right away with a WinRMCircuitOpenError. Once
+ * openDuration has passed a single request goes through as a probe: it closes the
+ * circuit if it succeeds and opens it for another openDuration if it fails. A request
+ * the caller interrupted or cancelled, or one that ended in an Error, says nothing about
+ * the host either way and leaves the count alone; if it was the probe, the circuit goes
+ * back to open so that the next request probes again.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker(String host, int failureThreshold, Duration openDuration) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return transport failures in a row so far
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Lets a request through or refuses it.
+     *
+     * @throws WinRMCircuitOpenError if the circuit is open, or half open with its probe
+     *                               still on the wire
+     */
+    public synchronized void acquire() throws WinRMCircuitOpenError {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long waited = System.nanoTime() - openedAt;
+        if (state == State.OPEN && waited >= openNanos) {
+            state = State.HALF_OPEN;
+            return;
+        }
+        throw new WinRMCircuitOpenError(String.format("Circuit open for %s after %d failures, next attempt in %s",
+                host, failures, Duration.ofMillis(TimeUnit.NANOSECONDS.toMillis(Math.max(0, openNanos - waited)))));
+    }
+
+    /**
+     * Records how a request let through by {@link #acquire} ended.
+     *
+     * @param error null if it succeeded
+     */
+    public synchronized void onResult(Throwable error) {
+        if (error instanceof WinRMCircuitOpenError) {
+            // refused, it never reached the host
+            return;
+        }
+        if (error instanceof WinRMInterruptedError || error instanceof InterruptedException
+                || error instanceof CancellationException || (error != null && !(error instanceof Exception))) {
+            if (state == State.HALF_OPEN) {
+                // openedAt is left as it was, the next acquire lets a probe through
+                state = State.OPEN;
+            }
+            return;
+        }
+        if (!(error instanceof WinRMTransportError)) {
+            failures = 0;
+            state = State.CLOSED;
+            return;
+        }
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("<CircuitBreaker %s %s, failures %d>", host, state, failures);
+    }
+}
@@ -0,0 +1,93 @@
+package dev.leandromqrs.winrmj.resilience;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMCircuitOpenError;
+import dev.leandromqrs.winrmj.exceptions.WinRMTransportError;
+import dev.leandromqrs.winrmj.metrics.Operation;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retry policy and per-host circuit breakers, set on a Protocol with
+ * {@code Protocol.setResilience}. One instance is meant to be shared by every Protocol of
+ * an application, so that a host's breaker outlives the Sessions talking to it.
+ * <p>
+ * Retries are idempotency-aware. Signal, Delete and Enumerate can be sent again after any
+ * transport failure. Create, Command, Send, Receive and Pull are only sent again when the
+ * failure proves the server never saw them: no connection could be made, or none was free
+ * in the pool.
+ * A second Command could otherwise run the command twice, and WinRM hands each piece of
+ * output to one Receive only, so a Receive sent again after its response was lost would
+ * get the output that follows and the lost piece would be gone. SOAP Faults are answers, not
+ * failures, and are never retried here.
+ */
+public class Resilience {
+    private final ResilienceOptions options;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public Resilience() {
+        this(new ResilienceOptions());
+    }
+
+    public Resilience(ResilienceOptions options) {
+        this.options = options;
+    }
+
+    public ResilienceOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the breaker of the host and port the URI points to
+     */
+    public CircuitBreaker breaker(URI uri) {
+        return breakers.computeIfAbsent(uri.getHost() + ":" + uri.getPort(),
+                host -> new CircuitBreaker(host, options.getFailureThreshold(), options.getOpenDuration()));
+    }
+
+    /**
+     * @return the breakers of every host seen so far
+     */
+    public Map<String, CircuitBreaker> getBreakers() {
+        return Map.copyOf(breakers);
+    }
+
+    /**
+     * @param attempt retries made so far, 0 before the first one
+     */
+    public boolean isRetryable(Operation operation, Exception error, int attempt) {
+        if (attempt >= options.getMaxRetries() || !(error instanceof WinRMTransportError) || error instanceof WinRMCircuitOpenError) {
+            return false;
+        }
+        return isIdempotent(operation) || isNotSent(error);
+    }
+
+    /**
+     * Picks the wait before a retry, at random up to a bound that doubles with every
+     * attempt ("full jitter").
+     *
+     * @param attempt retries made so far, 0 before the first one
+     */
+    public long backoffNanos(int attempt) {
+        long bound = Math.min(options.getMaxBackoff().toNanos(), options.getInitialBackoff().toNanos() << Math.min(attempt, 30));
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    public static boolean isIdempotent(Operation operation) {
+        return operation == Operation.SIGNAL || operation == Operation.DELETE || operation == Operation.ENUMERATE;
+    }
+
+    private static boolean isNotSent(Throwable error) {
+        for (Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
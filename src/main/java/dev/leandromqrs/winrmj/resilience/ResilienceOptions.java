@@ -0,0 +1,106 @@
+package dev.leandromqrs.winrmj.resilience;
+
+import java.time.Duration;
+
+/**
+ * Retry, circuit breaker and hedging settings of a {@link Resilience}.
+ */
+public class ResilienceOptions {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(200);
+    public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(10);
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private Duration initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private Duration maxBackoff = DEFAULT_MAX_BACKOFF;
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private Duration openDuration = DEFAULT_OPEN_DURATION;
+    private Duration hedgeDelay;
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Times a failed request is sent again, on top of the first attempt. 0 disables retries.
+     */
+    public ResilienceOptions setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Upper bound of the wait before the first retry. It doubles with every further
+     * retry up to maxBackoff, and the actual wait is picked at random below the bound so
+     * that clients failing together do not retry together.
+     */
+    public ResilienceOptions setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+        return this;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public ResilienceOptions setMaxBackoff(Duration maxBackoff) {
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Transport failures in a row after which a host's circuit opens.
+     */
+    public ResilienceOptions setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * How long an open circuit refuses requests before it lets one through to probe the
+     * host again.
+     */
+    public ResilienceOptions setOpenDuration(Duration openDuration) {
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    public Duration getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Hedges Receives made through AsyncProtocol: a Receive with no response this long
+     * past its OperationTimeout, by when the server should have answered even without
+     * output, is sent a second time on another connection and the first response wins.
+     * Null, the default, disables hedging.
+     * <p>
+     * WinRM hands each piece of output to one Receive only, so output carried by the
+     * losing response is dropped. A primary that late has almost always been abandoned
+     * by the server, but hedging trades that for tail latency and is left to the caller.
+     */
+    public ResilienceOptions setHedgeDelay(Duration hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+        return this;
+    }
+}
@@ -0,0 +1,413 @@
+package dev.leandromqrs.winrmj.transfer;
+
+import dev.leandromqrs.winrmj.Response;
+import dev.leandromqrs.winrmj.Session;
+import dev.leandromqrs.winrmj.exceptions.WinRMTransferError;
+import dev.leandromqrs.winrmj.protocol.ReceiveSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads and downloads files through the shells of a Session.
+ * <p>
+ * A file is cut into chunks of chunkSize bytes, and the chunks to transfer into up to
+ * parallelism streams of consecutive chunks. Each stream is a PowerShell command in a
+ * pooled shell of its own that reads or writes its range of the remote file. Uploads are
+ * Base64-encoded into the Send envelopes straight from the memory-mapped file, and
+ * downloads are written into the file straight from the Receive decoder.
+ * <p>
+ * Both ends take a SHA-256 checksum of every chunk. A stream that breaks off, when the
+ * connection drops for instance, or that delivers a chunk with the wrong checksum is
+ * restarted from its first unconfirmed chunk. Transferring a file again after a failed
+ * attempt resumes it the same way: chunks the target already holds are skipped.
+ */
+public class FileTransfer {
+    // largest range one stream covers, one mapping of the file
+    static final int MAX_STREAM_SIZE = 1 << 30;
+
+    private static final Pattern LENGTH = Pattern.compile("^length (\\d+)\\r?$", Pattern.MULTILINE);
+    private static final Pattern CHECKSUM = Pattern.compile("^(\\d+) ([0-9A-F]{64})\\r?$", Pattern.MULTILINE);
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final Session session;
+    private final TransferOptions options;
+
+    public FileTransfer(Session session) {
+        this(session, new TransferOptions());
+    }
+
+    public FileTransfer(Session session, TransferOptions options) {
+        this.session = session;
+        this.options = options;
+    }
+
+    public TransferOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * Copies a local file to the remote path, creating or overwriting it.
+     */
+    public TransferResult upload(Path source, String target) throws Exception {
+        long started = System.nanoTime();
+        int chunkSize = options.getChunkSize();
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = file.size();
+            Response prepared = _script(RemoteScripts.prepareUpload(target, size, chunkSize, options.isResume()), target);
+            Map<Integer, String> existing = _checksums(prepared.getStdOut());
+            Progress progress = new Progress(size, chunkSize);
+            BitSet pending = _pending(progress.chunks, existing, chunk -> _checksum(file, chunk, chunkSize, size));
+            progress.skipped = progress.chunks - pending.cardinality();
+            _transfer(pending, stream -> _upload(file, target, size, stream, progress));
+            return progress.result(started);
+        }
+    }
+
+    /**
+     * Copies the remote file to a local path, creating or overwriting it.
+     */
+    public TransferResult download(String source, Path target) throws Exception {
+        long started = System.nanoTime();
+        int chunkSize = options.getChunkSize();
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (!options.isResume()) {
+                file.truncate(0);
+            }
+            long have = file.size();
+            Response prepared = _script(RemoteScripts.prepareDownload(source, have, chunkSize), source);
+            Matcher length = LENGTH.matcher(prepared.getStdOut());
+            if (!length.find()) {
+                throw new WinRMTransferError(String.format("No length of %s in %s", source, prepared));
+            }
+            long size = Long.parseLong(length.group(1));
+            Map<Integer, String> existing = _checksums(prepared.getStdOut());
+            Progress progress = new Progress(size, chunkSize);
+            BitSet pending = _pending(progress.chunks, existing, chunk -> _checksum(file, chunk, chunkSize, size));
+            progress.skipped = progress.chunks - pending.cardinality();
+            if (have > size) {
+                file.truncate(size);
+            }
+            _transfer(pending, stream -> _download(source, file, size, stream, progress));
+            return progress.result(started);
+        }
+    }
+
+    private void _upload(FileChannel file, String target, long size, Stream stream, Progress progress) throws Exception {
+        int chunkSize = options.getChunkSize();
+        int first = stream.first;
+        for (int attempt = 0; ; attempt++) {
+            long offset = (long) first * chunkSize;
+            long length = Math.min((long) stream.end * chunkSize, size) - offset;
+            ByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            // counted Send by Send, what went over the wire whether it arrived intact or not
+            Exception failure = _run(RemoteScripts.upload(target, offset, length, first, chunkSize), data, progress.transferred::addAndGet,
+                    (id, name, buffer, off, len) -> {
+                        (name.equals("stdout") ? stdout : stderr).write(buffer, off, len);
+                    }, stderr, target);
+
+            // the remote end reports the chunks it wrote in order
+            Map<Integer, String> written = _checksums(stdout.toString());
+            int from = first;
+            while (first < stream.end && written.containsKey(first)) {
+                int position = (first - from) * chunkSize;
+                int chunkLength = (int) Math.min(chunkSize, length - position);
+                if (!written.get(first).equals(_checksum(data.duplicate().position(position).limit(position + chunkLength)))) {
+                    failure = new WinRMTransferError(String.format("Chunk %d of %s did not arrive intact", first, target));
+                    break;
+                }
+                first++;
+            }
+            if (first == stream.end) {
+                return;
+            }
+            if (attempt == options.getMaxRetries()) {
+                throw failure != null ? failure : new WinRMTransferError(String.format("Upload of %s stopped at chunk %d", target, first));
+            }
+            progress.retries.incrementAndGet();
+        }
+    }
+
+    private void _download(String source, FileChannel file, long size, Stream stream, Progress progress) throws Exception {
+        int chunkSize = options.getChunkSize();
+        int first = stream.first;
+        for (int attempt = 0; ; attempt++) {
+            long offset = (long) first * chunkSize;
+            long length = Math.min((long) stream.end * chunkSize, size) - offset;
+            ChunkWriter writer = new ChunkWriter(file, offset, length, chunkSize, progress.transferred);
+            Exception failure = _run(RemoteScripts.download(source, offset, length, first, chunkSize), null, null, writer, writer.stderr, source);
+
+            Map<Integer, String> read = _checksums(writer.stderr.toString());
+            int from = first;
+            while (first < stream.end && read.containsKey(first) && first - from < writer.checksums.size()) {
+                if (!read.get(first).equals(writer.checksums.get(first - from))) {
+                    failure = new WinRMTransferError(String.format("Chunk %d of %s did not arrive intact", first, source));
+                    break;
+                }
+                first++;
+            }
+            if (first == stream.end) {
+                return;
+            }
+            if (attempt == options.getMaxRetries()) {
+                throw failure != null ? failure : new WinRMTransferError(String.format("Download of %s stopped at chunk %d", source, first));
+            }
+            progress.retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs a stream's command.
+     *
+     * @return why it failed, null if it exited cleanly
+     */
+    private Exception _run(String script, ByteBuffer stdin, LongConsumer sent, ReceiveSink sink, ByteArrayOutputStream stderr, String path)
+            throws InterruptedException {
+        try {
+            int exitCode = session.runCmd("powershell", RemoteScripts.arguments(script), stdin, sent, sink);
+            if (exitCode != 0) {
+                return new WinRMTransferError(String.format("Transfer of %s failed with exit code %d: %s", path, exitCode, stderr));
+            }
+            return null;
+        } catch (InterruptedException e) {
+            // another stream failed, the transfer is over
+            throw e;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    private Response _script(String script, String path) throws Exception {
+        Response response = session.runCmd("powershell", RemoteScripts.arguments(script));
+        if (response.getStatusCode() != 0) {
+            throw new WinRMTransferError(String.format("Failed to open %s: %s", path, response.getStdErr()));
+        }
+        return response;
+    }
+
+    /**
+     * Runs the streams covering the pending chunks, parallelism at a time. The first one
+     * to fail for good fails the transfer and stops the others.
+     */
+    private void _transfer(BitSet pending, StreamTask task) throws Exception {
+        List<Stream> streams = _streams(pending, options.getChunkSize(), options.getParallelism());
+        if (streams.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(options.getParallelism(), streams.size()), daemonThreads());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Stream stream : streams) {
+                futures.add(executor.submit(() -> {
+                    task.run(stream);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the pending chunks into runs of consecutive ones, and those into streams of
+     * about the same size so the parallel ones finish together.
+     */
+    static List<Stream> _streams(BitSet pending, int chunkSize, int parallelism) {
+        int perStream = Math.max(1, Math.min(MAX_STREAM_SIZE / chunkSize, (pending.cardinality() + parallelism - 1) / parallelism));
+        List<Stream> streams = new ArrayList<>();
+        for (int first = pending.nextSetBit(0); first >= 0; first = pending.nextSetBit(first)) {
+            int end = Math.min(pending.nextClearBit(first), first + perStream);
+            streams.add(new Stream(first, end));
+            first = end;
+        }
+        return streams;
+    }
+
+    static BitSet _pending(int chunks, Map<Integer, String> existing, ChecksumSource local) throws IOException {
+        BitSet pending = new BitSet(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            String checksum = existing.get(chunk);
+            if (checksum == null || !checksum.equals(local.checksum(chunk))) {
+                pending.set(chunk);
+            }
+        }
+        return pending;
+    }
+
+    private static Map<Integer, String> _checksums(String output) {
+        Map<Integer, String> checksums = new HashMap<>();
+        Matcher matcher = CHECKSUM.matcher(output);
+        while (matcher.find()) {
+            checksums.put(Integer.valueOf(matcher.group(1)), matcher.group(2));
+        }
+        return checksums;
+    }
+
+    /**
+     * @return the checksum of the chunk of a local file, null if the file is too short
+     */
+    private static String _checksum(FileChannel file, int chunk, int chunkSize, long size) throws IOException {
+        long offset = (long) chunk * chunkSize;
+        long length = Math.min(chunkSize, size - offset);
+        if (offset + length > file.size()) {
+            return null;
+        }
+        return _checksum(file.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    private static String _checksum(ByteBuffer data) {
+        MessageDigest digest = _sha256();
+        digest.update(data);
+        return _hex(digest.digest());
+    }
+
+    private static MessageDigest _sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String _hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "winrmj-transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private interface StreamTask {
+        void run(Stream stream) throws Exception;
+    }
+
+    interface ChecksumSource {
+        String checksum(int chunk) throws IOException;
+    }
+
+    /**
+     * Chunks first up to end, exclusive.
+     */
+    static class Stream {
+        final int first;
+        final int end;
+
+        Stream(int first, int end) {
+            this.first = first;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Writes stdout of a download stream into the file where it belongs and checksums it
+     * chunk by chunk on the way, counting the bytes as they are received.
+     */
+    static class ChunkWriter implements ReceiveSink {
+        final List<String> checksums = new ArrayList<>();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        private final FileChannel file;
+        private final long end;
+        private final int chunkSize;
+        private final AtomicLong received;
+        private final MessageDigest digest = _sha256();
+        private long position;
+        private int inChunk;
+
+        ChunkWriter(FileChannel file, long offset, long length, int chunkSize, AtomicLong received) {
+            this.file = file;
+            this.position = offset;
+            this.end = offset + length;
+            this.chunkSize = chunkSize;
+            this.received = received;
+        }
+
+        @Override
+        public void write(String commandId, String stream, byte[] buffer, int offset, int length) throws IOException {
+            if (!stream.equals("stdout")) {
+                stderr.write(buffer, offset, length);
+                return;
+            }
+            if (length > end - position) {
+                throw new IOException(String.format("Received more than the %d bytes asked for", end - position + length));
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+            for (long at = position; data.hasRemaining(); ) {
+                at += file.write(data, at);
+            }
+            received.addAndGet(length);
+            while (length > 0) {
+                int n = Math.min(length, chunkSize - inChunk);
+                digest.update(buffer, offset, n);
+                offset += n;
+                length -= n;
+                inChunk += n;
+                position += n;
+                if (inChunk == chunkSize || position == end) {
+                    checksums.add(_hex(digest.digest()));
+                    inChunk = 0;
+                }
+            }
+        }
+    }
+
+    private static class Progress {
+        final long size;
+        final int chunks;
+        final AtomicLong transferred = new AtomicLong();
+        final AtomicInteger retries = new AtomicInteger();
+        int skipped;
+
+        Progress(long size, int chunkSize) {
+            this.size = size;
+            this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        TransferResult result(long started) {
+            return new TransferResult(size, transferred.get(), chunks, skipped, retries.get(), Duration.ofNanos(System.nanoTime() - started));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package dev.leandromqrs.winrmj.transfer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * PowerShell run on the remote end of a FileTransfer.
+ * <p>
+ * File data goes through the raw stdin and stdout streams of the process, not through
+ * PowerShell's text pipeline. Every chunk is followed by a "index SHA256" line, on
+ * stdout for an upload and on stderr for a download, where stdout is the data itself.
+ * Scripts are passed Base64-encoded on the command line, which spares all quoting but
+ * the file name's.
+ */
+final class RemoteScripts {
+    // SHA-256 of the chunks of $f the other end already has, "have" bytes of a "total" byte file
+    private static final String HASHES = ""
+            + "$b=New-Object byte[] 65536\n"
+            + "for($c=0;$c*${chunk} -lt ${total};$c++){\n"
+            + "$e=[Math]::Min(($c+1)*${chunk},${total});if($e -gt ${have}){break}\n"
+            + "$f.Position=$c*${chunk};$r=$e-$f.Position;$h=[Security.Cryptography.SHA256]::Create()\n"
+            + "while($r -gt 0){$k=$f.Read($b,0,[Math]::Min($b.Length,$r));if($k -le 0){break};[void]$h.TransformBlock($b,0,$k,$null,0);$r-=$k}\n"
+            + "[void]$h.TransformFinalBlock($b,0,0);[Console]::Out.WriteLine(\"$c \"+[BitConverter]::ToString($h.Hash).Replace('-',''))}\n";
+
+    // copies "length" bytes from $i to $o starting at chunk "first", a checksum line per chunk to $l
+    private static final String COPY = ""
+            + "$b=New-Object byte[] 65536;$c=${first};$r=${length};$n=[Math]::Min($r,${chunk});$h=[Security.Cryptography.SHA256]::Create()\n"
+            + "while($r -gt 0){$k=$i.Read($b,0,[Math]::Min($b.Length,$n));if($k -le 0){throw 'Input ended early'}\n"
+            + "$o.Write($b,0,$k);[void]$h.TransformBlock($b,0,$k,$null,0);$r-=$k;$n-=$k\n"
+            + "if($n -eq 0){$o.Flush();[void]$h.TransformFinalBlock($b,0,0);$l.WriteLine(\"$c \"+[BitConverter]::ToString($h.Hash).Replace('-',''))\n"
+            + "$h=[Security.Cryptography.SHA256]::Create();$c++;$n=[Math]::Min($r,${chunk})}}\n";
+
+    private static final String PREPARE_UPLOAD = ""
+            + "$ErrorActionPreference='Stop'\n"
+            + "$f=[IO.File]::Open('${path}','OpenOrCreate','ReadWrite','ReadWrite')\n"
+            + "try{\n"
+            + "[Console]::Out.WriteLine('length '+$f.Length)\n"
+            + "${hashes}"
+            + "$f.SetLength(${size})\n"
+            + "}finally{$f.Close()}\n";
+
+    private static final String PREPARE_DOWNLOAD = ""
+            + "$ErrorActionPreference='Stop'\n"
+            + "$f=[IO.File]::Open('${path}','Open','Read','ReadWrite')\n"
+            + "try{\n"
+            + "[Console]::Out.WriteLine('length '+$f.Length)\n"
+            + "${hashes}"
+            + "}finally{$f.Close()}\n";
+
+    private static final String UPLOAD = ""
+            + "$ErrorActionPreference='Stop'\n"
+            + "$i=[Console]::OpenStandardInput();$l=[Console]::Out\n"
+            + "$o=[IO.File]::Open('${path}','Open','Write','ReadWrite')\n"
+            + "try{$o.Position=${offset}\n"
+            + COPY
+            + "}finally{$o.Close()}\n";
+
+    private static final String DOWNLOAD = ""
+            + "$ErrorActionPreference='Stop'\n"
+            + "$o=[Console]::OpenStandardOutput();$l=[Console]::Error\n"
+            + "$i=[IO.File]::Open('${path}','Open','Read','ReadWrite')\n"
+            + "try{$i.Position=${offset}\n"
+            + COPY
+            + "$o.Flush()}finally{$i.Close()}\n";
+
+    private RemoteScripts() {
+    }
+
+    /**
+     * Creates or opens the target, lists the checksums of the chunks it already holds
+     * when resuming, and sizes it to the file.
+     */
+    static String prepareUpload(String path, long size, int chunkSize, boolean resume) {
+        String hashes = !resume ? "" : HASHES
+                .replace("${total}", String.valueOf(size))
+                .replace("${have}", "$f.Length");
+        return PREPARE_UPLOAD
+                .replace("${hashes}", hashes)
+                .replace("${size}", String.valueOf(size))
+                .replace("${chunk}", String.valueOf(chunkSize))
+                .replace("${path}", quote(path));
+    }
+
+    /**
+     * Tells the length of the source and the checksums of its chunks that lie within the
+     * first have bytes.
+     */
+    static String prepareDownload(String path, long have, int chunkSize) {
+        String hashes = have == 0 ? "" : HASHES
+                .replace("${total}", "$f.Length")
+                .replace("${have}", String.valueOf(have));
+        return PREPARE_DOWNLOAD
+                .replace("${hashes}", hashes)
+                .replace("${chunk}", String.valueOf(chunkSize))
+                .replace("${path}", quote(path));
+    }
+
+    static String upload(String path, long offset, long length, int firstChunk, int chunkSize) {
+        return copy(UPLOAD, path, offset, length, firstChunk, chunkSize);
+    }
+
+    static String download(String path, long offset, long length, int firstChunk, int chunkSize) {
+        return copy(DOWNLOAD, path, offset, length, firstChunk, chunkSize);
+    }
+
+    static List<String> arguments(String script) {
+        String encoded = Base64.getEncoder().encodeToString(script.getBytes(StandardCharsets.UTF_16LE));
+        return List.of("-NoProfile", "-NonInteractive", "-EncodedCommand", encoded);
+    }
+
+    private static String copy(String template, String path, long offset, long length, int firstChunk, int chunkSize) {
+        // the path goes in last, placeholders in a file name stay as they are
+        return template
+                .replace("${offset}", String.valueOf(offset))
+                .replace("${length}", String.valueOf(length))
+                .replace("${first}", String.valueOf(firstChunk))
+                .replace("${chunk}", String.valueOf(chunkSize))
+                .replace("${path}", quote(path));
+    }
+
+    /**
+     * Escapes the path for a single-quoted PowerShell string, which only knows doubled
+     * quotes. The typographic ones count as quotes too.
+     */
+    private static String quote(String path) {
+        return path.replaceAll("(['\u2018\u2019\u201a\u201b])", "$1$1");
+    }
+}
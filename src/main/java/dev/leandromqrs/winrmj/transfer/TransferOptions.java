@@ -0,0 +1,73 @@
+package dev.leandromqrs.winrmj.transfer;
+
+/**
+ * Chunking, parallelism and retries of a FileTransfer.
+ */
+public class TransferOptions {
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private boolean resume = true;
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Streams running at once, each a command in a shell of its own. More than the
+     * session's maxShells only makes the extra streams wait for a shell.
+     */
+    public TransferOptions setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Bytes covered by one checksum, the unit that is skipped on resume and sent again
+     * after a failure.
+     */
+    public TransferOptions setChunkSize(int chunkSize) {
+        if (chunkSize < 1 || chunkSize > FileTransfer.MAX_STREAM_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + FileTransfer.MAX_STREAM_SIZE + ": " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Times a stream is restarted, from its first unconfirmed chunk, after it failed or a
+     * checksum did not match.
+     */
+    public TransferOptions setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Whether chunks the target already holds, as told by their checksums, are skipped.
+     * Off, the target is overwritten from scratch.
+     */
+    public TransferOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+}
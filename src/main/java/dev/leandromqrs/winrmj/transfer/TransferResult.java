@@ -0,0 +1,72 @@
+package dev.leandromqrs.winrmj.transfer;
+
+import java.time.Duration;
+
+/**
+ * Outcome of a FileTransfer.
+ */
+public class TransferResult {
+    private final long size;
+    private final long bytesTransferred;
+    private final int chunks;
+    private final int chunksSkipped;
+    private final int retries;
+    private final Duration elapsed;
+
+    TransferResult(long size, long bytesTransferred, int chunks, int chunksSkipped, int retries, Duration elapsed) {
+        this.size = size;
+        this.bytesTransferred = bytesTransferred;
+        this.chunks = chunks;
+        this.chunksSkipped = chunksSkipped;
+        this.retries = retries;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return size of the file
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return bytes that went over the wire, resent ones included and skipped ones not
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return chunks the target already held
+     */
+    public int getChunksSkipped() {
+        return chunksSkipped;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return bytes transferred per second over the whole transfer, checksums and setup
+     *         included, in millions
+     */
+    public double getMegabytesPerSecond() {
+        long nanos = elapsed.toNanos();
+        return nanos == 0 ? 0 : bytesTransferred * 1000.0 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<TransferResult size %d, transferred %d, chunks %d, skipped %d, retries %d, elapsed %s, %.1f MB/s>",
+                size, bytesTransferred, chunks, chunksSkipped, retries, elapsed, getMegabytesPerSecond());
+    }
+}
@@ -0,0 +1,81 @@
+package dev.leandromqrs.winrmj.transport;
+
+import java.util.ArrayDeque;
+
+/**
+ * Estimates the keep-alive pool of the underlying HttpClient, which the JDK does not
+ * expose.
+ * <p>
+ * With HTTP/1.1 and the number of concurrent exchanges capped by HttpTransport the
+ * client hands out connections in a way that can be followed from the outside: an idle
+ * one if there is any, a new one otherwise. Every lease here stands for one exchange on
+ * the wire, and connections idle past the idle timeout are counted as evicted, which
+ * HttpTransport makes true by dropping the client once all of them are. Connections the server
+ * or the network closes are not seen until an exchange fails on them, so the counts are
+ * an estimate, not an observation.
+ */
+class ConnectionTracker {
+    private final long idleTimeoutNanos;
+    // last-used timestamps of idle connections, oldest first
+    private final ArrayDeque<Long> idle = new ArrayDeque<>();
+    private int open;
+    private long opened;
+    private long reused;
+    private long evicted;
+    private boolean drained;
+
+    ConnectionTracker(long idleTimeoutNanos) {
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+
+    /**
+     * @return true if an idle connection is likely reused, false if a new one is opened
+     */
+    synchronized boolean lease(long now) {
+        evictExpired(now);
+        if (!idle.isEmpty()) {
+            idle.pollLast();
+            reused++;
+            return true;
+        }
+        open++;
+        opened++;
+        return false;
+    }
+
+    synchronized void release(long now, boolean keepAlive) {
+        if (keepAlive) {
+            idle.addLast(now);
+        } else {
+            open--;
+        }
+    }
+
+    private void evictExpired(long now) {
+        boolean evictedAny = false;
+        while (!idle.isEmpty() && now - idle.peekFirst() >= idleTimeoutNanos) {
+            idle.pollFirst();
+            open--;
+            evicted++;
+            evictedAny = true;
+        }
+        if (evictedAny && open == 0) {
+            drained = true;
+        }
+    }
+
+    /**
+     * @return true, once, after eviction has emptied the pool
+     */
+    synchronized boolean takeDrained(long now) {
+        evictExpired(now);
+        boolean result = drained;
+        drained = false;
+        return result;
+    }
+
+    synchronized TransportStats snapshot(long now) {
+        evictExpired(now);
+        return new TransportStats(open, idle.size(), open - idle.size(), opened, reused, evicted);
+    }
+}
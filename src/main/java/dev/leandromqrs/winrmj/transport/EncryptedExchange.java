@@ -0,0 +1,168 @@
+package dev.leandromqrs.winrmj.transport;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMTransportError;
+
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.MessageProp;
+
+/**
+ * One Kerberos-authenticated exchange: the Authorization header carrying the AP-REQ and
+ * the WinRM message encryption done with the context it established.
+ * <p>
+ * Envelopes travel as multipart/encrypted bodies in the HTTP-SPNEGO-session-encrypted
+ * format of MS-WSMV. Each body part holds a little-endian signature length, the
+ * signature, and the encrypted envelope. The signature is the RFC 4121 Wrap token minus
+ * the encrypted envelope, with the token rotated the way Windows expects it (RRC).
+ * Only the AES encryption types, the Windows default since 2008, are supported.
+ */
+class EncryptedExchange {
+    static final String CONTENT_TYPE = "multipart/encrypted;protocol=\"application/HTTP-SPNEGO-session-encrypted\";boundary=\"Encrypted Boundary\"";
+
+    private static final byte[] PREAMBLE = ("--Encrypted Boundary\r\n"
+            + "\tContent-Type: application/HTTP-SPNEGO-session-encrypted\r\n"
+            + "\tOriginalContent: type=" + HttpTransport.CONTENT_TYPE + ";Length=").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA_PART = ("\r\n--Encrypted Boundary\r\n"
+            + "\tContent-Type: application/octet-stream\r\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "--Encrypted Boundary--\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LENGTH = "Length=".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int TOKEN_HEADER = 16;
+    private static final int CONFOUNDER = 16;
+
+    private final GSSContext context;
+    private final String authorization;
+
+    EncryptedExchange(GSSContext context, String authorization) {
+        this.context = context;
+        this.authorization = authorization;
+    }
+
+    String getAuthorization() {
+        return authorization;
+    }
+
+    /**
+     * Encrypts an envelope into a multipart/encrypted request body.
+     */
+    byte[] seal(byte[] envelope, int offset, int length) throws WinRMTransportError {
+        byte[] token;
+        try {
+            token = context.wrap(envelope, offset, length, new MessageProp(0, true));
+        } catch (GSSException e) {
+            throw new WinRMTransportError("Failed to encrypt the request", e);
+        }
+        // header | E(confounder | envelope | filler | header) | checksum
+        int ec = (token[4] & 0xff) << 8 | token[5] & 0xff;
+        int checksum = token.length - TOKEN_HEADER - CONFOUNDER - length - ec - TOKEN_HEADER;
+        if (token[0] != 0x05 || token[1] != 0x04 || checksum < 0) {
+            throw new WinRMTransportError("Only AES Kerberos keys are supported for message encryption");
+        }
+        // rotated right so that filler, encrypted header and checksum come before the
+        // confounder, leaving the encrypted envelope alone at the end
+        int rrc = ec + TOKEN_HEADER + checksum;
+        token[6] = (byte) (rrc >>> 8);
+        token[7] = (byte) rrc;
+        int signature = TOKEN_HEADER + rrc + CONFOUNDER;
+
+        byte[] originalLength = Integer.toString(length).getBytes(StandardCharsets.US_ASCII);
+        byte[] body = new byte[PREAMBLE.length + originalLength.length + DATA_PART.length + 4 + token.length + END.length];
+        int at = put(body, 0, PREAMBLE, 0, PREAMBLE.length);
+        at = put(body, at, originalLength, 0, originalLength.length);
+        at = put(body, at, DATA_PART, 0, DATA_PART.length);
+        body[at++] = (byte) signature;
+        body[at++] = (byte) (signature >>> 8);
+        body[at++] = (byte) (signature >>> 16);
+        body[at++] = (byte) (signature >>> 24);
+        at = put(body, at, token, 0, TOKEN_HEADER);
+        at = put(body, at, token, token.length - rrc, rrc);
+        at = put(body, at, token, TOKEN_HEADER, token.length - TOKEN_HEADER - rrc);
+        put(body, at, END, 0, END.length);
+        return body;
+    }
+
+    /**
+     * Decrypts a response body. Responses that are not encrypted, errors HTTP.sys answers
+     * on its own for instance, are returned as they are.
+     */
+    byte[] unseal(HttpResponse<byte[]> response) throws WinRMTransportError {
+        byte[] body = response.body();
+        if (!response.headers().firstValue("Content-Type").orElse("").toLowerCase().startsWith("multipart/encrypted")) {
+            return body;
+        }
+        int lengthAt = indexOf(body, LENGTH, 0);
+        int partAt = indexOf(body, DATA_PART, 0);
+        int endAt = lastIndexOf(body, END);
+        if (lengthAt < 0 || partAt < lengthAt || endAt < partAt + DATA_PART.length + 4) {
+            throw new WinRMTransportError("Malformed encrypted response");
+        }
+        int length = Integer.parseInt(new String(body, lengthAt + LENGTH.length, partAt - lengthAt - LENGTH.length, StandardCharsets.US_ASCII).trim());
+        int at = partAt + DATA_PART.length;
+        int signature = (body[at] & 0xff) | (body[at + 1] & 0xff) << 8 | (body[at + 2] & 0xff) << 16 | (body[at + 3] & 0xff) << 24;
+        at += 4;
+        int tokenLength = endAt - at;
+        if (signature < TOKEN_HEADER || signature + length != tokenLength) {
+            throw new WinRMTransportError("Malformed encrypted response");
+        }
+
+        // undo the rotation, the header copy inside the ciphertext was made with RRC 0
+        byte[] token = new byte[tokenLength];
+        put(token, 0, body, at, TOKEN_HEADER);
+        int rrc = (token[6] & 0xff) << 8 | token[7] & 0xff;
+        int rest = tokenLength - TOKEN_HEADER;
+        if (rrc > rest) {
+            throw new WinRMTransportError("Malformed encrypted response");
+        }
+        token[6] = 0;
+        token[7] = 0;
+        int restAt = put(token, TOKEN_HEADER, body, at + TOKEN_HEADER + rrc, rest - rrc);
+        put(token, restAt, body, at + TOKEN_HEADER, rrc);
+        try {
+            return context.unwrap(token, 0, tokenLength, new MessageProp(0, true));
+        } catch (GSSException e) {
+            throw new WinRMTransportError("Failed to decrypt the response", e);
+        }
+    }
+
+    void dispose() {
+        try {
+            context.dispose();
+        } catch (GSSException ignored) {
+            // nothing held but keys, which go with the context anyway
+        }
+    }
+
+    private static int put(byte[] to, int at, byte[] from, int offset, int length) {
+        System.arraycopy(from, offset, to, at, length);
+        return at + length;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = data.length - pattern.length; i >= 0; i--) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,478 @@
+package dev.leandromqrs.winrmj.transport;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMAuthorizationError;
+import dev.leandromqrs.winrmj.exceptions.WinRMInterruptedError;
+import dev.leandromqrs.winrmj.exceptions.WinRMTransportError;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Keep-alive HTTP transport for a single WinRM endpoint.
+ * <p>
+ * One HttpClient is shared by every WS-Man call made through the owning Protocol. The
+ * number of concurrent exchanges is capped at maxConnectionsPerHost so the client never
+ * opens more sockets than that. The JDK keeps idle connections for as long as the
+ * JVM-wide jdk.httpclient.keepalive.timeout says, which the transport leaves alone;
+ * instead, once every connection it has was idle longer than idleTimeout, the next
+ * exchange goes out on a new client and the old one is let go with its sockets. On Java
+ * 21+ it is closed right away, before that they are closed when it is garbage collected.
+ * <p>
+ * {@link #sendAsync} shares the same pool. Callers waiting for a connection there are
+ * queued rather than parked, and are handed a permit by whichever exchange ends first.
+ * <p>
+ * With a {@link KerberosAuthenticator} every request carries an AP-REQ of its own, made
+ * from the cached service ticket, and its envelope encrypted with the context that AP-REQ
+ * establishes. The client does not say which pooled connection a request goes out on, so
+ * the context cannot be kept per connection as browsers do. Authenticating each request
+ * costs no extra round trip and no KDC traffic, and any connection in the pool can carry
+ * any request. A 401 drops the cached tickets and the request is retried once. Over
+ * HTTPS the envelopes are left to TLS and not encrypted a second time.
+ * <p>
+ * HTTPS connections are set up with the given SSLContext, which keeps the TLS sessions:
+ * connections opened later, once earlier ones were closed as idle, resume them with an
+ * abbreviated handshake.
+ */
+public class HttpTransport {
+    public static final String CONTENT_TYPE = "application/soap+xml;charset=UTF-8";
+
+    private final URI uri;
+    private final TransportOptions options;
+    private final String authorization;
+    private final KerberosAuthenticator kerberos;
+    private final boolean encrypt;
+    private final SSLContext sslContext;
+    private final Semaphore permits;
+    private final ConnectionTracker tracker;
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private HttpClient client;
+
+    public HttpTransport(URI uri, String username, String password, TransportOptions options) {
+        this(uri, username, password, null, options);
+    }
+
+    /**
+     * @param sslContext for an https URI, the JDK default context when null
+     */
+    public HttpTransport(URI uri, String username, String password, SSLContext sslContext, TransportOptions options) {
+        this(uri, basicAuthorization(username, password), (KerberosAuthenticator) null, sslContext, options);
+    }
+
+    public HttpTransport(URI uri, KerberosAuthenticator kerberos, TransportOptions options) {
+        this(uri, kerberos, null, options);
+    }
+
+    public HttpTransport(URI uri, KerberosAuthenticator kerberos, SSLContext sslContext, TransportOptions options) {
+        this(uri, null, kerberos, sslContext, options);
+    }
+
+    private HttpTransport(URI uri, String authorization, KerberosAuthenticator kerberos, SSLContext sslContext, TransportOptions options) {
+        this.uri = uri;
+        this.options = options;
+        this.authorization = authorization;
+        this.kerberos = kerberos;
+        this.encrypt = !"https".equalsIgnoreCase(uri.getScheme());
+        this.sslContext = sslContext;
+        this.permits = new Semaphore(options.getMaxConnectionsPerHost(), true);
+        this.tracker = new ConnectionTracker(options.getIdleTimeout().toNanos());
+        this.client = options.getHttpClient() != null ? options.getHttpClient() : newClient();
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public TransportOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return the pool as estimated from the exchanges made, see {@link TransportStats}
+     */
+    public TransportStats getStats() {
+        return tracker.snapshot(System.nanoTime());
+    }
+
+    /**
+     * Posts a SOAP envelope and returns the response body. The connection goes back to the
+     * pool when the returned stream is closed, so callers must close it.
+     * <p>
+     * Both 200 and 500 responses are returned as is: WS-Man reports faults as a SOAP Fault
+     * with status 500 and it is up to the caller to parse them.
+     */
+    public InputStream send(byte[] envelope) throws WinRMTransportError, WinRMAuthorizationError, WinRMInterruptedError {
+        return send(envelope, 0, envelope.length);
+    }
+
+    /**
+     * Same as {@link #send(byte[])} for an envelope held in part of a larger buffer. The
+     * buffer is not referenced anymore once this method returns.
+     */
+    public InputStream send(byte[] envelope, int offset, int length) throws WinRMTransportError, WinRMAuthorizationError, WinRMInterruptedError {
+        if (kerberos != null) {
+            return new ByteArrayInputStream(sendKerberos(envelope, offset, length));
+        }
+        acquire();
+        HttpClient client = lease();
+
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request(envelope, offset, length), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            release(false);
+            throw new WinRMTransportError(String.format("Failed to send request to %s", uri), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(false);
+            throw new WinRMInterruptedError(String.format("Interrupted while sending request to %s", uri), e);
+        }
+
+        boolean keepAlive = keepAlive(response);
+        int status = response.statusCode();
+        if (status == 200 || status == 500) {
+            return new LeasedInputStream(response.body(), keepAlive);
+        }
+        discard(response.body());
+        release(keepAlive);
+        if (status == 401) {
+            throw new WinRMAuthorizationError(String.format("Unauthorized by %s", uri));
+        }
+        throw new WinRMTransportError(String.format("Bad HTTP response returned from server. Code %d", status));
+    }
+
+    /**
+     * Posts a SOAP envelope without blocking the calling thread. The response body is read
+     * in full before the future completes, by then its connection is back in the pool.
+     * <p>
+     * The envelope buffer is read while the request is being written, it must not be
+     * modified until the returned future completes.
+     */
+    public CompletableFuture<byte[]> sendAsync(byte[] envelope, int offset, int length) {
+        if (kerberos != null) {
+            return sendKerberosAsync(envelope, offset, length, true);
+        }
+        return exchangeAsync(request(envelope, offset, length)).thenApply(response -> {
+            int status = response.statusCode();
+            if (status == 200 || status == 500) {
+                return response.body();
+            }
+            throw new CompletionException(statusError(status));
+        });
+    }
+
+    /**
+     * Exchange of a Kerberos transport. The whole response is read before it is
+     * decrypted, the Wrap token it holds cannot be taken apart as it streams in.
+     */
+    private byte[] sendKerberos(byte[] envelope, int offset, int length) throws WinRMTransportError, WinRMAuthorizationError, WinRMInterruptedError {
+        for (boolean retried = false; ; retried = true) {
+            EncryptedExchange exchange = kerberos.initiate(uri.getHost());
+            try {
+                HttpRequest request = kerberosRequest(exchange, envelope, offset, length);
+                acquire();
+                HttpClient client = lease();
+                HttpResponse<byte[]> response;
+                try {
+                    response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                } catch (IOException e) {
+                    release(false);
+                    throw new WinRMTransportError(String.format("Failed to send request to %s", uri), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    release(false);
+                    throw new WinRMInterruptedError(String.format("Interrupted while sending request to %s", uri), e);
+                }
+                release(keepAlive(response));
+
+                int status = response.statusCode();
+                if (status == 200 || status == 500) {
+                    return exchange.unseal(response);
+                }
+                if (status == 401) {
+                    kerberos.refresh();
+                    if (retried) {
+                        throw new WinRMAuthorizationError(String.format("Unauthorized by %s", uri));
+                    }
+                    continue;
+                }
+                throw new WinRMTransportError(String.format("Bad HTTP response returned from server. Code %d", status));
+            } finally {
+                exchange.dispose();
+            }
+        }
+    }
+
+    /**
+     * Non-blocking {@link #sendKerberos}. A first login or service ticket request still
+     * happens on the calling thread, every later exchange finds its tickets cached.
+     */
+    private CompletableFuture<byte[]> sendKerberosAsync(byte[] envelope, int offset, int length, boolean retry) {
+        EncryptedExchange exchange;
+        HttpRequest request;
+        try {
+            exchange = kerberos.initiate(uri.getHost());
+        } catch (WinRMAuthorizationError e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            request = kerberosRequest(exchange, envelope, offset, length);
+        } catch (WinRMTransportError e) {
+            exchange.dispose();
+            return CompletableFuture.failedFuture(e);
+        }
+        return exchangeAsync(request).handle((response, error) -> {
+            try {
+                if (error != null) {
+                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                }
+                int status = response.statusCode();
+                if (status == 200 || status == 500) {
+                    return CompletableFuture.completedFuture(exchange.unseal(response));
+                }
+                if (status == 401) {
+                    kerberos.refresh();
+                    if (retry) {
+                        return sendKerberosAsync(envelope, offset, length, false);
+                    }
+                }
+                throw new CompletionException(statusError(status));
+            } catch (WinRMTransportError e) {
+                throw new CompletionException(e);
+            } finally {
+                exchange.dispose();
+            }
+        }).thenCompose(body -> body);
+    }
+
+    /**
+     * Sends a request once a connection is free. The future fails with a
+     * WinRMTransportError if the request could not be sent, whatever the status.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> exchangeAsync(HttpRequest request) {
+        return acquireAsync().thenCompose(ignored -> {
+            HttpClient client = lease();
+            CompletableFuture<HttpResponse<byte[]>> exchange;
+            try {
+                exchange = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+            } catch (RuntimeException e) {
+                release(false);
+                throw e;
+            }
+            return exchange.handle((response, error) -> {
+                if (error != null) {
+                    release(false);
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    throw new CompletionException(new WinRMTransportError(String.format("Failed to send request to %s", uri), cause));
+                }
+                release(keepAlive(response));
+                return response;
+            });
+        });
+    }
+
+    private Exception statusError(int status) {
+        if (status == 401) {
+            return new WinRMAuthorizationError(String.format("Unauthorized by %s", uri));
+        }
+        return new WinRMTransportError(String.format("Bad HTTP response returned from server. Code %d", status));
+    }
+
+    /**
+     * @return the client to send the exchange with
+     */
+    private HttpClient lease() {
+        HttpClient retired = null;
+        HttpClient current;
+        // swapped and handed out under one lock, no exchange is left holding the old one
+        synchronized (tracker) {
+            long now = System.nanoTime();
+            if (tracker.takeDrained(now) && options.getHttpClient() == null) {
+                retired = client;
+                client = newClient();
+            }
+            tracker.lease(now);
+            current = client;
+        }
+        if (retired instanceof AutoCloseable) {
+            // Java 21+, nothing is in flight on it so this does not wait
+            try {
+                ((AutoCloseable) retired).close();
+            } catch (Exception e) {
+                // its sockets go when it is garbage collected then
+            }
+        }
+        return current;
+    }
+
+    private void acquire() throws WinRMTransportError, WinRMInterruptedError {
+        try {
+            if (!permits.tryAcquire(options.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                // the TimeoutException tells retry policies the request was never sent
+                throw new WinRMTransportError(String.format("Timed out waiting for a connection to %s", uri),
+                        new TimeoutException("No connection free within " + options.getConnectTimeout()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WinRMInterruptedError(String.format("Interrupted waiting for a connection to %s", uri), e);
+        }
+    }
+
+    private CompletableFuture<Void> acquireAsync() {
+        if (permits.tryAcquire()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        // a permit may have come back between the tryAcquire and the add
+        handOff();
+        return waiter.orTimeout(options.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS).exceptionally(e -> {
+            if (e instanceof TimeoutException) {
+                throw new CompletionException(new WinRMTransportError(String.format("Timed out waiting for a connection to %s", uri), e));
+            }
+            throw new CompletionException(e);
+        });
+    }
+
+    private void release(boolean keepAlive) {
+        tracker.release(System.nanoTime(), keepAlive);
+        permits.release();
+        handOff();
+    }
+
+    private void handOff() {
+        while (!waiters.isEmpty() && permits.tryAcquire()) {
+            CompletableFuture<Void> waiter = waiters.poll();
+            // timed out waiters stay queued until they are polled here
+            if (waiter == null || !waiter.complete(null)) {
+                permits.release();
+            }
+        }
+    }
+
+    private HttpRequest request(byte[] envelope, int offset, int length) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(options.getReadTimeout())
+                .header("Content-Type", CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(envelope, offset, length));
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder.build();
+    }
+
+    private HttpRequest kerberosRequest(EncryptedExchange exchange, byte[] envelope, int offset, int length) throws WinRMTransportError {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(options.getReadTimeout())
+                .header("Authorization", exchange.getAuthorization());
+        if (encrypt) {
+            builder.header("Content-Type", EncryptedExchange.CONTENT_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(exchange.seal(envelope, offset, length)));
+        } else {
+            builder.header("Content-Type", CONTENT_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(envelope, offset, length));
+        }
+        return builder.build();
+    }
+
+    private HttpClient newClient() {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(options.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (sslContext != null) {
+            // its session cache outlives the connections
+            builder.sslContext(sslContext);
+        }
+        return builder.build();
+    }
+
+    private static String basicAuthorization(String username, String password) {
+        if (username == null) {
+            return null;
+        }
+        String credentials = username + ":" + (password == null ? "" : password);
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean keepAlive(HttpResponse<?> response) {
+        return !response.headers().firstValue("Connection").orElse("").equalsIgnoreCase("close");
+    }
+
+    private static void discard(InputStream body) {
+        try (InputStream in = body) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException ignored) {
+            // the connection is not reused in that case, nothing else to do
+        }
+    }
+
+    /**
+     * Response body that returns its connection to the pool once closed. Whatever the
+     * caller did not read is drained first, otherwise the client would drop the socket.
+     */
+    private class LeasedInputStream extends FilterInputStream {
+        private boolean keepAlive;
+        private boolean closed;
+
+        LeasedInputStream(InputStream in, boolean keepAlive) {
+            super(in);
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (keepAlive) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                in.close();
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            } finally {
+                release(keepAlive);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package dev.leandromqrs.winrmj.transport;
+
+import dev.leandromqrs.winrmj.exceptions.WinRMAuthorizationError;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.GSSName;
+import org.ietf.jgss.Oid;
+
+/**
+ * Kerberos credentials an {@link HttpTransport} authenticates and encrypts its exchanges
+ * with.
+ * <p>
+ * The principal logs in once through the JDK's Krb5LoginModule, from a keytab when one is
+ * given, else from the password, else from the default ticket cache, and the TGT is kept
+ * in a Subject until shortly before it expires. Service tickets obtained with it are
+ * cached in that same Subject by the JDK, so after the first exchange with a host no
+ * request goes to the KDC until the TGT is renewed.
+ * <p>
+ * No jaas.conf is needed. The realm and KDC come from krb5.conf, or from the
+ * java.security.krb5.conf, java.security.krb5.realm and java.security.krb5.kdc system
+ * properties, which is how a test points the transport at a local KDC.
+ */
+public class KerberosAuthenticator {
+    public static final String DEFAULT_SERVICE = "HTTP";
+
+    private static final String LOGIN_MODULE = "com.sun.security.auth.module.Krb5LoginModule";
+    private static final Oid KRB5_MECHANISM = oid("1.2.840.113554.1.2.2");
+    // renewed ahead of expiry so a ticket never runs out in the middle of an exchange
+    private static final long RENEW_MARGIN = TimeUnit.MINUTES.toMillis(5);
+
+    private final String principal;
+    private final String password;
+    private final String keytab;
+    private final String service;
+    private volatile Subject subject;
+    private volatile long renewAt;
+
+    public KerberosAuthenticator(String principal, String password, String keytab) {
+        this(principal, password, keytab, DEFAULT_SERVICE);
+    }
+
+    /**
+     * @param principal user principal, may be null when logging in from the ticket cache
+     * @param password used when no keytab is given, may be null
+     * @param keytab path to a keytab holding the principal's keys, may be null
+     * @param service service class of the WinRM SPN, HTTP unless registered otherwise
+     */
+    public KerberosAuthenticator(String principal, String password, String keytab, String service) {
+        this.principal = principal;
+        this.password = password;
+        this.keytab = keytab;
+        this.service = service != null ? service : DEFAULT_SERVICE;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * Starts a security context with the given host. Logs in first if there is no TGT yet
+     * or the current one is about to expire.
+     */
+    EncryptedExchange initiate(String host) throws WinRMAuthorizationError {
+        Subject current = currentSubject();
+        try {
+            return Subject.doAs(current, (PrivilegedExceptionAction<EncryptedExchange>) () -> {
+                GSSManager manager = GSSManager.getInstance();
+                GSSName server = manager.createName(service + "@" + host, GSSName.NT_HOSTBASED_SERVICE);
+                GSSContext context = manager.createContext(server, KRB5_MECHANISM, null, GSSContext.DEFAULT_LIFETIME);
+                // without mutual authentication the context is ready after the first token,
+                // so the request can carry both the AP-REQ and the envelope it encrypts
+                context.requestMutualAuth(false);
+                context.requestConf(true);
+                context.requestInteg(true);
+                byte[] token = context.initSecContext(new byte[0], 0, 0);
+                if (!context.isEstablished()) {
+                    context.dispose();
+                    throw new GSSException(GSSException.FAILURE, 0, "Kerberos context needs more than one leg");
+                }
+                return new EncryptedExchange(context, "Negotiate " + Base64.getEncoder().encodeToString(token));
+            });
+        } catch (PrivilegedActionException e) {
+            throw new WinRMAuthorizationError(String.format("Failed to obtain a service ticket for %s@%s", service, host), e.getException());
+        }
+    }
+
+    /**
+     * Drops the TGT and the service tickets cached with it, the next exchange logs in again.
+     */
+    synchronized void refresh() {
+        subject = null;
+    }
+
+    private Subject currentSubject() throws WinRMAuthorizationError {
+        Subject current = subject;
+        if (current != null && System.currentTimeMillis() < renewAt) {
+            return current;
+        }
+        synchronized (this) {
+            if (subject == null || System.currentTimeMillis() >= renewAt) {
+                Subject fresh = login();
+                renewAt = expiry(fresh) - RENEW_MARGIN;
+                subject = fresh;
+            }
+            return subject;
+        }
+    }
+
+    private Subject login() throws WinRMAuthorizationError {
+        Map<String, String> options = new HashMap<>();
+        options.put("refreshKrb5Config", "true");
+        options.put("isInitiator", "true");
+        if (principal != null) {
+            options.put("principal", principal);
+        }
+        if (keytab != null) {
+            options.put("useKeyTab", "true");
+            options.put("keyTab", keytab);
+            options.put("storeKey", "true");
+            options.put("doNotPrompt", "true");
+        } else if (password == null) {
+            options.put("useTicketCache", "true");
+            options.put("doNotPrompt", "true");
+        }
+        AppConfigurationEntry entry = new AppConfigurationEntry(LOGIN_MODULE, AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+        Configuration configuration = new Configuration() {
+            @Override
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return new AppConfigurationEntry[] { entry };
+            }
+        };
+        try {
+            LoginContext login = new LoginContext("winrmj", new Subject(), this::handle, configuration);
+            login.login();
+            return login.getSubject();
+        } catch (LoginException e) {
+            throw new WinRMAuthorizationError(String.format("Kerberos login failed for %s", principal), e);
+        }
+    }
+
+    private void handle(Callback[] callbacks) throws UnsupportedCallbackException {
+        for (Callback callback : callbacks) {
+            if (callback instanceof NameCallback) {
+                ((NameCallback) callback).setName(principal);
+            } else if (callback instanceof PasswordCallback) {
+                if (password == null) {
+                    throw new UnsupportedCallbackException(callback, "No password given");
+                }
+                ((PasswordCallback) callback).setPassword(password.toCharArray());
+            } else {
+                throw new UnsupportedCallbackException(callback);
+            }
+        }
+    }
+
+    /**
+     * @return when the TGT held by the subject expires, in epoch milliseconds
+     */
+    private static long expiry(Subject subject) {
+        long expiry = Long.MAX_VALUE;
+        for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+            if (ticket.getServer().getName().startsWith("krbtgt/")) {
+                expiry = Math.min(expiry, ticket.getEndTime().getTime());
+            }
+        }
+        // a keytab login without a TGT in the subject still gets one on first use
+        return expiry == Long.MAX_VALUE ? System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1) : expiry;
+    }
+
+    private static Oid oid(String value) {
+        try {
+            return new Oid(value);
+        } catch (GSSException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package dev.leandromqrs.winrmj.transport;
+
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * Checks the server chain against the configured CAs, host name included, and then the
+ * server certificate against the pinned thumbprint.
+ * <p>
+ * With a thumbprint and no CAs the pin alone decides: the self-signed certificates WinRM
+ * listeners are often set up with are accepted, whatever name or address they were
+ * issued for, as long as they are the pinned one.
+ */
+class PinningTrustManager extends X509ExtendedTrustManager {
+    private static final X509Certificate[] NO_ISSUERS = new X509Certificate[0];
+
+    private final X509ExtendedTrustManager trust;
+    private final byte[] pin;
+    private final String algorithm;
+
+    /**
+     * @param trust      CA check, null to rely on the pin only
+     * @param thumbprint normalized hex SHA-1 or SHA-256, null for no pinning
+     */
+    PinningTrustManager(X509ExtendedTrustManager trust, String thumbprint) {
+        this.trust = trust;
+        this.pin = thumbprint != null ? hex(thumbprint) : null;
+        this.algorithm = pin != null && pin.length == 20 ? "SHA-1" : "SHA-256";
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        if (trust != null) {
+            trust.checkServerTrusted(chain, authType, engine);
+        }
+        checkPin(chain);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        if (trust != null) {
+            trust.checkServerTrusted(chain, authType, socket);
+        }
+        checkPin(chain);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        if (trust != null) {
+            trust.checkServerTrusted(chain, authType);
+        }
+        checkPin(chain);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        throw new CertificateException("Client certificates are not accepted");
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        throw new CertificateException("Client certificates are not accepted");
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        throw new CertificateException("Client certificates are not accepted");
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return trust != null ? trust.getAcceptedIssuers() : NO_ISSUERS;
+    }
+
+    private void checkPin(X509Certificate[] chain) throws CertificateException {
+        if (pin == null) {
+            return;
+        }
+        if (chain == null || chain.length == 0) {
+            throw new CertificateException("No server certificate to check the thumbprint of");
+        }
+        byte[] thumbprint;
+        try {
+            thumbprint = MessageDigest.getInstance(algorithm).digest(chain[0].getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+        if (!MessageDigest.isEqual(pin, thumbprint)) {
+            throw new CertificateException("Server certificate does not match the pinned thumbprint: " + chain[0].getSubjectX500Principal());
+        }
+    }
+
+    private static byte[] hex(String value) {
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,121 @@
+package dev.leandromqrs.winrmj.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * SSLContexts for HTTPS endpoints, built once per trust configuration and shared.
+ * <p>
+ * TLS sessions are cached by the SSLContext that negotiated them, so a context shared by
+ * every transport trusting the same CAs lets a new connection, to any of those hosts,
+ * resume a session an earlier one negotiated instead of doing a full handshake. That
+ * includes the connections of a client HttpTransport recreates after going idle.
+ */
+public final class TlsContexts {
+    // by path and thumbprint, one entry each however often the file changes
+    private static final Map<String, Trust> CONTEXTS = new ConcurrentHashMap<>();
+
+    private TlsContexts() {
+    }
+
+    /**
+     * Returns the context trusting the given CAs, loading them on first use or when the
+     * file changed since.
+     *
+     * @param caTrustPath PEM or DER certificates, a directory of them, or a JKS or PKCS12
+     *                    trust store without password. The JDK's CAs when null.
+     * @param thumbprint  hex SHA-1 or SHA-256 fingerprint the server certificate must
+     *                    have, see {@link TransportOptions#setCertificateThumbprint}. May
+     *                    be null.
+     */
+    public static SSLContext forTrust(String caTrustPath, String thumbprint) throws GeneralSecurityException, IOException {
+        if (caTrustPath == null && thumbprint == null) {
+            return SSLContext.getDefault();
+        }
+        long modified = caTrustPath != null ? Files.getLastModifiedTime(Paths.get(caTrustPath)).toMillis() : 0;
+        String key = caTrustPath + "|" + thumbprint;
+        Trust cached = CONTEXTS.get(key);
+        if (cached == null || cached.modified != modified) {
+            X509ExtendedTrustManager trust = caTrustPath != null ? trustManager(load(Paths.get(caTrustPath))) : null;
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[] { new PinningTrustManager(trust, thumbprint) }, null);
+            // replaces the context of an older version of the file, unless a racing caller
+            // loaded this version first
+            cached = CONTEXTS.merge(key, new Trust(modified, context), (old, loaded) -> old.modified == loaded.modified ? old : loaded);
+        }
+        return cached.context;
+    }
+
+    private static KeyStore load(Path path) throws GeneralSecurityException, IOException {
+        List<Certificate> certificates = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*.{pem,crt,cer}")) {
+                for (Path file : files) {
+                    certificates.addAll(certificates(file));
+                }
+            }
+        } else {
+            try {
+                certificates.addAll(certificates(path));
+            } catch (CertificateException e) {
+                // not certificates, then a trust store
+                return KeyStore.getInstance(path.toFile(), (char[]) null);
+            }
+        }
+        if (certificates.isEmpty()) {
+            throw new CertificateException("No certificates found in " + path);
+        }
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        store.load(null, null);
+        for (int i = 0; i < certificates.size(); i++) {
+            store.setCertificateEntry("ca-" + i, certificates.get(i));
+        }
+        return store;
+    }
+
+    private static List<Certificate> certificates(Path file) throws CertificateException, IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return new ArrayList<>(CertificateFactory.getInstance("X.509").generateCertificates(in));
+        }
+    }
+
+    private static X509ExtendedTrustManager trustManager(KeyStore store) throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(store);
+        for (TrustManager manager : factory.getTrustManagers()) {
+            if (manager instanceof X509ExtendedTrustManager) {
+                return (X509ExtendedTrustManager) manager;
+            }
+        }
+        throw new GeneralSecurityException("No X509 trust manager available");
+    }
+
+    private static final class Trust {
+        // of the trust file when the context was built
+        final long modified;
+        final SSLContext context;
+
+        Trust(long modified, SSLContext context) {
+            this.modified = modified;
+            this.context = context;
+        }
+    }
+}
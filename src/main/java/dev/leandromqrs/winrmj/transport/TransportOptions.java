@@ -0,0 +1,104 @@
+package dev.leandromqrs.winrmj.transport;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * Tuning knobs for the pooled HTTP transport behind a Protocol.
+ */
+public class TransportOptions {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    // must stay above the WS-Man OperationTimeout (PT60S by default) or long-polls get cut off
+    public static final Duration DEFAULT_READ_TIMEOUT = Duration.ofSeconds(90);
+
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private Duration readTimeout = DEFAULT_READ_TIMEOUT;
+    private HttpClient httpClient;
+    private String certificateThumbprint;
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public TransportOptions setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive: " + maxConnectionsPerHost);
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        return this;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long the transport's connections may all sit idle before its client is
+     * replaced by a new one, which lets the old one go with its sockets. The JVM-wide
+     * jdk.httpclient.keepalive.timeout is an application setting and left alone. Does
+     * not apply to a client set with {@link #setHttpClient}.
+     */
+    public TransportOptions setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public TransportOptions setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public TransportOptions setReadTimeout(Duration readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Uses a client shared with other transports instead of one per transport, which saves
+     * a selector thread per endpoint when talking to many hosts. The connect timeout is then
+     * the client's own, and its pool is left alone when this transport goes idle. So is
+     * its SSLContext: caTrustPath and the certificate thumbprint do not apply to it.
+     */
+    public TransportOptions setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+        return this;
+    }
+
+    public String getCertificateThumbprint() {
+        return certificateThumbprint;
+    }
+
+    /**
+     * Pins the server certificate of an HTTPS endpoint to its SHA-1 thumbprint, as Windows
+     * shows it, or its SHA-256 one. Colons and spaces are ignored. Setting one switches the
+     * endpoint to HTTPS.
+     */
+    public TransportOptions setCertificateThumbprint(String certificateThumbprint) {
+        if (certificateThumbprint == null) {
+            this.certificateThumbprint = null;
+            return this;
+        }
+        String hex = certificateThumbprint.replaceAll("[:\\s]", "").toLowerCase();
+        if (!hex.matches("[0-9a-f]{40}|[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("certificateThumbprint must be a hex SHA-1 or SHA-256: " + certificateThumbprint);
+        }
+        this.certificateThumbprint = hex;
+        return this;
+    }
+}
@@ -0,0 +1,61 @@
+package dev.leandromqrs.winrmj.transport;
+
+/**
+ * Point-in-time view of the connection pool of an HttpTransport.
+ * <p>
+ * Only the leased count is observed: it is the number of exchanges on the wire. The JDK
+ * HttpClient does not expose its pool, so the others are estimated from the exchanges
+ * made and the idle timeout, and do not see connections the server or the network closed
+ * behind the client's back.
+ */
+public class TransportStats {
+    private final int estimatedOpen;
+    private final int estimatedIdle;
+    private final int leased;
+    private final long estimatedOpened;
+    private final long estimatedReused;
+    private final long estimatedEvicted;
+
+    TransportStats(int estimatedOpen, int estimatedIdle, int leased, long estimatedOpened, long estimatedReused, long estimatedEvicted) {
+        this.estimatedOpen = estimatedOpen;
+        this.estimatedIdle = estimatedIdle;
+        this.leased = leased;
+        this.estimatedOpened = estimatedOpened;
+        this.estimatedReused = estimatedReused;
+        this.estimatedEvicted = estimatedEvicted;
+    }
+
+    public int getEstimatedOpen() {
+        return estimatedOpen;
+    }
+
+    public int getEstimatedIdle() {
+        return estimatedIdle;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public long getEstimatedOpened() {
+        return estimatedOpened;
+    }
+
+    public long getEstimatedReused() {
+        return estimatedReused;
+    }
+
+    /**
+     * @return connections estimated to have been dropped for staying idle past the idle
+     *         timeout
+     */
+    public long getEstimatedEvicted() {
+        return estimatedEvicted;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<TransportStats leased %d, estimated open %d, idle %d, opened %d, reused %d, evicted %d>",
+                leased, estimatedOpen, estimatedIdle, estimatedOpened, estimatedReused, estimatedEvicted);
+    }
+}
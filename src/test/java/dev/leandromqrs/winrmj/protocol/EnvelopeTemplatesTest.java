@@ -0,0 +1,371 @@
+package dev.leandromqrs.winrmj.protocol;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+
+import jakarta.xml.soap.MessageFactory;
+import jakarta.xml.soap.SOAPConstants;
+import jakarta.xml.soap.SOAPElement;
+import jakarta.xml.soap.SOAPEnvelope;
+import jakarta.xml.soap.SOAPHeader;
+import jakarta.xml.soap.SOAPMessage;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Renders every shell and enumeration action through the templates and through SAAJ, the way Protocol
+ * built messages before the templates, and checks that the bytes are the same.
+ */
+class EnvelopeTemplatesTest {
+    private static final String ENDPOINT = "win-01.example.com:5985/wsman";
+    private static final String LOCALE = "en-US";
+    private static final String TIMEOUT = "PT60S";
+    private static final int MAX_ENV_SIZE = 153600;
+
+    // markup, the three kinds of whitespace, C0 and C1 controls, DEL, two and three byte
+    // UTF-8 and supplementary characters; a lone surrogate is left out, SAAJ refuses it
+    private static final String[] VALUES = {
+            "",
+            "dir",
+            "C:\\Program Files (x86)\\app",
+            "a & b < c > d \"quoted\" 'single' ]]>",
+            "tab\tnewline\ncarriage\rreturn\r\n",
+            "\u0001\u0008\u000b\u000c\u001f",
+            "del\u007f c1\u0080\u0085\u009f nbsp\u00a0",
+            "caf\u00e9 \u00fc\u00df \u0416 \u05d0",
+            "\u20ac \u2028 \u3042 \ufeff \ufffd",
+            "\ud83d\ude00 and \ud834\udd1e",
+            "\ud7ff\ue000 \uffef",
+            "&amp; &#13; %s %n {}",
+    };
+
+    private final EnvelopeTemplates templates = new EnvelopeTemplates(ENDPOINT, MAX_ENV_SIZE, LOCALE, TIMEOUT);
+    private final EnvelopeBuffer out = new EnvelopeBuffer();
+
+    @Test
+    void create() throws Exception {
+        for (String value : VALUES) {
+            Map<String, String> envVars = new LinkedHashMap<>();
+            envVars.put("NAME_" + value, value);
+            envVars.put("EMPTY", "");
+            for (boolean noProfile : new boolean[] { false, true }) {
+                UUID messageId = templates.create(out, "stdin", "stdout stderr", value, envVars, noProfile, 65001, 180);
+                assertSame(saajCreate(messageId, "stdin", "stdout stderr", value, envVars, noProfile, 65001, 180), value);
+            }
+        }
+        UUID messageId = templates.create(out, "stdin", "stdout stderr", null, null, false, 437, null);
+        assertSame(saajCreate(messageId, "stdin", "stdout stderr", null, null, false, 437, null), "defaults");
+        messageId = templates.create(out, "stdin", "stdout stderr", null, Map.of(), false, 437, null);
+        assertSame(saajCreate(messageId, "stdin", "stdout stderr", null, Map.of(), false, 437, null), "no variables");
+    }
+
+    @Test
+    void command() throws Exception {
+        for (String value : VALUES) {
+            String[][] argumentLists = { null, new String[0], { value }, { value, "/c", value } };
+            for (String[] arguments : argumentLists) {
+                for (boolean flag : new boolean[] { false, true }) {
+                    UUID messageId = templates.command(out, shellId(value), value, arguments, flag, !flag);
+                    assertSame(saajCommand(messageId, shellId(value), value, arguments, flag, !flag), value);
+                }
+            }
+        }
+    }
+
+    @Test
+    void receive() throws Exception {
+        for (String value : VALUES) {
+            UUID messageId = templates.receive(out, shellId(value), value, "stdout stderr");
+            assertSame(saajReceive(messageId, shellId(value), value, "stdout stderr"), value);
+            messageId = templates.receive(out, shellId(value), commandId(), value);
+            assertSame(saajReceive(messageId, shellId(value), commandId(), value), value);
+            for (int timeoutSeconds : new int[] { 0, 20, Integer.MAX_VALUE }) {
+                messageId = templates.receive(out, shellId(value), commandId(), value, timeoutSeconds);
+                assertSame(saajReceive(messageId, shellId(value), commandId(), value, "PT" + timeoutSeconds + "S"), value);
+            }
+        }
+    }
+
+    @Test
+    void send() throws Exception {
+        for (String value : VALUES) {
+            byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            for (boolean end : new boolean[] { false, true }) {
+                UUID messageId = templates.send(out, shellId(value), commandId(), value, data, 0, data.length, end);
+                assertSame(saajSend(messageId, shellId(value), commandId(), value, data, end), value);
+                // a slice, through the array and the buffer overloads
+                byte[] padded = new byte[data.length + 5];
+                System.arraycopy(data, 0, padded, 3, data.length);
+                messageId = templates.send(out, shellId(value), value, "stdin", padded, 3, data.length, end);
+                assertSame(saajSend(messageId, shellId(value), value, "stdin", data, end), value);
+                ByteBuffer buffer = ByteBuffer.wrap(padded, 3, data.length);
+                messageId = templates.send(out, shellId(value), value, "stdin", buffer, end);
+                assertSame(saajSend(messageId, shellId(value), value, "stdin", data, end), value);
+                assertTrue(buffer.position() == 3, "the position is left alone");
+            }
+        }
+    }
+
+    @Test
+    void enumerate() throws Exception {
+        for (String value : VALUES) {
+            String resourceUri = String.format(EnvelopeTemplates.RESOURCE_URI_WMI, value);
+            UUID messageId = templates.enumerate(out, resourceUri, 32000);
+            assertSame(saajEnumerate(messageId, resourceUri, 32000, null, null), value);
+            messageId = templates.enumerate(out, resourceUri, 1, EnvelopeTemplates.DIALECT_WQL, value);
+            assertSame(saajEnumerate(messageId, resourceUri, 1, EnvelopeTemplates.DIALECT_WQL, value), value);
+            messageId = templates.enumerate(out, resourceUri, 0, value, "select * from Win32_Service");
+            assertSame(saajEnumerate(messageId, resourceUri, 0, value, "select * from Win32_Service"), value);
+        }
+    }
+
+    @Test
+    void pull() throws Exception {
+        for (String value : VALUES) {
+            String resourceUri = String.format(EnvelopeTemplates.RESOURCE_URI_WMI, "root/cimv2/*");
+            UUID messageId = templates.pull(out, resourceUri, value, 32000);
+            assertSame(saajPull(messageId, resourceUri, value, 32000), value);
+        }
+    }
+
+    @Test
+    void release() throws Exception {
+        for (String value : VALUES) {
+            String resourceUri = String.format(EnvelopeTemplates.RESOURCE_URI_WMI, "root/cimv2/*");
+            UUID messageId = templates.release(out, resourceUri, value);
+            assertSame(saajRelease(messageId, resourceUri, value), value);
+        }
+    }
+
+    @Test
+    void signal() throws Exception {
+        for (String value : VALUES) {
+            UUID messageId = templates.signal(out, shellId(value), value, EnvelopeTemplates.SIGNAL_TERMINATE);
+            assertSame(saajSignal(messageId, shellId(value), value, EnvelopeTemplates.SIGNAL_TERMINATE), value);
+            messageId = templates.signal(out, shellId(value), commandId(), value);
+            assertSame(saajSignal(messageId, shellId(value), commandId(), value), value);
+        }
+    }
+
+    @Test
+    void delete() throws Exception {
+        for (String value : VALUES) {
+            UUID messageId = templates.delete(out, shellId(value));
+            assertSame(saajDelete(messageId, shellId(value)), value);
+        }
+    }
+
+    @Test
+    void settings() throws Exception {
+        EnvelopeTemplates other = new EnvelopeTemplates("h\u00f4te & <co>:5986/wsman", 512000, "de-\"DE\"", "PT20S");
+        UUID messageId = other.delete(out, "8B9C4A1E-2F6D-4B7A-9C3E-5D1F0A2B4C6E");
+        SOAPMessage message = message(messageId, "h\u00f4te & <co>:5986/wsman", 512000, "de-\"DE\"", "PT20S",
+                EnvelopeTemplates.RESOURCE_URI_CMD, EnvelopeTemplates.ACTION_DELETE);
+        selectorShellId(message.getSOAPHeader(), "8B9C4A1E-2F6D-4B7A-9C3E-5D1F0A2B4C6E");
+        assertSame(serialize(message), "settings");
+    }
+
+    private void assertSame(byte[] expected, String value) {
+        byte[] actual = out.toByteArray();
+        assertTrue(Arrays.equals(expected, actual), () -> String.format("Envelopes differ for [%s]%nSAAJ:      %s%ntemplates: %s",
+                value, new String(expected, StandardCharsets.UTF_8), new String(actual, StandardCharsets.UTF_8)));
+    }
+
+    private static String shellId(String value) {
+        // selectors are text too, an empty one included
+        return value.isEmpty() ? "" : "shell " + value;
+    }
+
+    private static String commandId() {
+        return "1C3F5A7B-9D2E-4F6A-8B0C-2E4D6F8A0B1C";
+    }
+
+    private static byte[] saajCreate(UUID messageId, String iStream, String oStream, String workingDirectory, Map<String, String> envVars,
+            boolean noProfile, int codepage, Integer idleTimeout) throws Exception {
+        SOAPMessage message = message(messageId, EnvelopeTemplates.ACTION_CREATE);
+        SOAPHeader header = message.getSOAPHeader();
+        if (noProfile) {
+            option(header, "WINRS_NOPROFILE", "TRUE");
+        }
+        if (codepage != 437) {
+            option(header, "WINRS_CODEPAGE", Integer.toString(codepage));
+        }
+        SOAPElement shell = message.getSOAPBody().addChildElement("Shell", "rsp");
+        shell.addChildElement("InputStreams").addTextNode(iStream);
+        shell.addChildElement("OutputStreams").addTextNode(oStream);
+        if (workingDirectory != null) {
+            shell.addChildElement("WorkingDirectory").addTextNode(workingDirectory);
+        }
+        if (idleTimeout != null) {
+            shell.addChildElement("IdleTimeOut").addTextNode("PT" + idleTimeout + "S");
+        }
+        if (envVars != null) {
+            SOAPElement environment = shell.addChildElement("Environment", "rsp");
+            for (Map.Entry<String, String> entry : envVars.entrySet()) {
+                SOAPElement variable = environment.addChildElement("Variable", "rsp");
+                variable.addAttribute(new QName("Name"), entry.getKey());
+                variable.addTextNode(entry.getValue());
+            }
+        }
+        return serialize(message);
+    }
+
+    private static byte[] saajCommand(UUID messageId, String shellId, String command, String[] arguments, boolean consoleModeStdin,
+            boolean skipCmdShell) throws Exception {
+        SOAPMessage message = message(messageId, EnvelopeTemplates.ACTION_COMMAND);
+        SOAPHeader header = message.getSOAPHeader();
+        selectorShellId(header, shellId);
+        option(header, "WINRS_CONSOLEMODE_STDIN", Boolean.toString(consoleModeStdin).toUpperCase());
+        option(header, "WINRS_SKIP_CMD_SHELL", Boolean.toString(skipCmdShell).toUpperCase());
+        SOAPElement commandLine = message.getSOAPBody().addChildElement("CommandLine", "rsp");
+        commandLine.addChildElement("Command", "rsp").addTextNode(command);
+        if (arguments != null && arguments.length > 0) {
+            commandLine.addChildElement("Arguments", "rsp").addTextNode(String.join(" ", arguments));
+        }
+        return serialize(message);
+    }
+
+    private static byte[] saajReceive(UUID messageId, String shellId, String commandId, String streamName) throws Exception {
+        return saajReceive(messageId, shellId, commandId, streamName, TIMEOUT);
+    }
+
+    private static byte[] saajReceive(UUID messageId, String shellId, String commandId, String streamName, String timeout)
+            throws Exception {
+        SOAPMessage message = message(messageId, ENDPOINT, MAX_ENV_SIZE, LOCALE, timeout, EnvelopeTemplates.RESOURCE_URI_CMD,
+                EnvelopeTemplates.ACTION_RECEIVE);
+        selectorShellId(message.getSOAPHeader(), shellId);
+        SOAPElement receive = message.getSOAPBody().addChildElement("Receive", "rsp");
+        SOAPElement desiredStream = receive.addChildElement("DesiredStream", "rsp");
+        desiredStream.addTextNode(streamName);
+        desiredStream.addAttribute(new QName("CommandId"), commandId);
+        return serialize(message);
+    }
+
+    private static byte[] saajSignal(UUID messageId, String shellId, String commandId, String code) throws Exception {
+        SOAPMessage message = message(messageId, EnvelopeTemplates.ACTION_SIGNAL);
+        selectorShellId(message.getSOAPHeader(), shellId);
+        SOAPElement signal = message.getSOAPBody().addChildElement("Signal", "rsp");
+        signal.addAttribute(new QName("CommandId"), commandId);
+        signal.addChildElement("Code", "rsp").addTextNode(code);
+        return serialize(message);
+    }
+
+    private static byte[] saajSend(UUID messageId, String shellId, String commandId, String streamName, byte[] data, boolean end)
+            throws Exception {
+        SOAPMessage message = message(messageId, EnvelopeTemplates.ACTION_SEND);
+        selectorShellId(message.getSOAPHeader(), shellId);
+        SOAPElement stream = message.getSOAPBody().addChildElement("Send", "rsp").addChildElement("Stream", "rsp");
+        stream.addAttribute(new QName("Name"), streamName);
+        stream.addAttribute(new QName("CommandId"), commandId);
+        if (end) {
+            stream.addAttribute(new QName("End"), "true");
+        }
+        stream.addTextNode(Base64.getEncoder().encodeToString(data));
+        return serialize(message);
+    }
+
+    private static byte[] saajEnumerate(UUID messageId, String resourceUri, int maxElements, String dialect, String filter)
+            throws Exception {
+        SOAPMessage message = message(messageId, resourceUri, EnvelopeTemplates.ACTION_ENUMERATE);
+        SOAPElement enumerate = message.getSOAPBody().addChildElement("Enumerate", "n");
+        enumerate.addChildElement("OptimizeEnumeration", "w");
+        enumerate.addChildElement("MaxElements", "w").addTextNode(String.valueOf(maxElements));
+        if (dialect != null) {
+            SOAPElement filterElement = enumerate.addChildElement("Filter", "w");
+            filterElement.addAttribute(new QName("Dialect"), dialect);
+            filterElement.addTextNode(filter);
+        }
+        return serialize(message);
+    }
+
+    private static byte[] saajPull(UUID messageId, String resourceUri, String context, int maxElements) throws Exception {
+        SOAPMessage message = message(messageId, resourceUri, EnvelopeTemplates.ACTION_PULL);
+        SOAPElement pull = message.getSOAPBody().addChildElement("Pull", "n");
+        pull.addChildElement("EnumerationContext", "n").addTextNode(context);
+        pull.addChildElement("MaxElements", "n").addTextNode(String.valueOf(maxElements));
+        return serialize(message);
+    }
+
+    private static byte[] saajRelease(UUID messageId, String resourceUri, String context) throws Exception {
+        SOAPMessage message = message(messageId, resourceUri, EnvelopeTemplates.ACTION_RELEASE);
+        message.getSOAPBody().addChildElement("Release", "n").addChildElement("EnumerationContext", "n").addTextNode(context);
+        return serialize(message);
+    }
+
+    private static byte[] saajDelete(UUID messageId, String shellId) throws Exception {
+        SOAPMessage message = message(messageId, EnvelopeTemplates.ACTION_DELETE);
+        selectorShellId(message.getSOAPHeader(), shellId);
+        return serialize(message);
+    }
+
+    private static SOAPMessage message(UUID messageId, String action) throws Exception {
+        return message(messageId, EnvelopeTemplates.RESOURCE_URI_CMD, action);
+    }
+
+    private static SOAPMessage message(UUID messageId, String resourceUri, String action) throws Exception {
+        return message(messageId, ENDPOINT, MAX_ENV_SIZE, LOCALE, TIMEOUT, resourceUri, action);
+    }
+
+    private static SOAPMessage message(UUID messageId, String endpoint, int maxEnvSize, String locale, String timeout, String resourceUri,
+            String action) throws Exception {
+        SOAPMessage message = MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL).createMessage();
+        SOAPEnvelope envelope = message.getSOAPPart().getEnvelope();
+        envelope.addNamespaceDeclaration("xsd", "http://www.w3.org/2001/XMLSchema");
+        envelope.addNamespaceDeclaration("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+        envelope.addNamespaceDeclaration("env", "http://www.w3.org/2003/05/soap-envelope");
+        envelope.addNamespaceDeclaration("a", "http://schemas.xmlsoap.org/ws/2004/08/addressing");
+        envelope.addNamespaceDeclaration("b", "http://schemas.dmtf.org/wbem/wsman/1/cimbinding.xsd");
+        envelope.addNamespaceDeclaration("n", "http://schemas.xmlsoap.org/ws/2004/09/enumeration");
+        envelope.addNamespaceDeclaration("x", "http://schemas.xmlsoap.org/ws/2004/09/transfer");
+        envelope.addNamespaceDeclaration("w", "http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd");
+        envelope.addNamespaceDeclaration("p", "http://schemas.microsoft.com/wbem/wsman/1/wsman.xsd");
+        envelope.addNamespaceDeclaration("rsp", "http://schemas.microsoft.com/wbem/wsman/1/windows/shell");
+        envelope.addNamespaceDeclaration("cfg", "http://schemas.microsoft.com/wbem/wsman/1/config");
+
+        QName xmlLang = new QName(XMLConstants.XML_NS_URI, "lang", XMLConstants.XML_NS_PREFIX);
+        SOAPHeader header = envelope.getHeader() != null ? envelope.getHeader() : envelope.addHeader();
+        header.addChildElement("To", "a").addTextNode(endpoint);
+        SOAPElement address = header.addChildElement("ReplyTo", "a").addChildElement("Address", "a");
+        address.addAttribute(xmlLang, "en-US");
+        address.addTextNode("http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous");
+        header.addChildElement("MaxEnvelopeSize", "w").addTextNode(String.valueOf(maxEnvSize));
+        header.addChildElement("MessageID", "a").addTextNode("uuid:" + messageId);
+        header.addChildElement("Locale", "w").addAttribute(xmlLang, locale);
+        header.addChildElement("DataLocale", "p").addAttribute(xmlLang, locale);
+        header.addChildElement("OperationTimeout", "w").addTextNode(timeout);
+        header.addChildElement("ResourceURI", "w").addTextNode(resourceUri);
+        header.addChildElement("Action", "a").addTextNode(action);
+        if (envelope.getBody() == null) {
+            envelope.addBody();
+        }
+        return message;
+    }
+
+    private static void selectorShellId(SOAPHeader header, String shellId) throws Exception {
+        SOAPElement selector = header.addChildElement("SelectorSet", "w").addChildElement("Selector", "w");
+        selector.addAttribute(new QName("Name"), "ShellId");
+        selector.addTextNode(shellId);
+    }
+
+    private static void option(SOAPHeader header, String name, String value) throws Exception {
+        SOAPElement option = header.addChildElement("OptionSet", "w").addChildElement("Option", "w");
+        option.addAttribute(new QName("Name"), name);
+        option.addTextNode(value);
+    }
+
+    private static byte[] serialize(SOAPMessage message) throws Exception {
+        message.saveChanges();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        message.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+}
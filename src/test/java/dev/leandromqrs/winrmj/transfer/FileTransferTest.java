@@ -0,0 +1,124 @@
+package dev.leandromqrs.winrmj.transfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The parts of a transfer that need no remote end: which chunks are pending, how they
+ * are cut into streams, and how a download stream is written and checksummed.
+ */
+class FileTransferTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void pendingSkipsChunksTheTargetHolds() throws Exception {
+        Map<Integer, String> existing = Map.of(0, "A0", 1, "B1", 3, "D3");
+        String[] local = { "A0", "XX", "C2", null };
+        BitSet pending = FileTransfer._pending(4, existing, chunk -> local[chunk]);
+        assertEquals(bits(1, 2, 3), pending);
+        assertEquals(bits(), FileTransfer._pending(0, existing, chunk -> local[chunk]));
+    }
+
+    @Test
+    void streamsShareTheChunksOut() {
+        assertEquals(List.of("0-4", "4-8", "8-10"), ranges(FileTransfer._streams(bits(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), 1024, 3)));
+        // a stream never spans a gap
+        assertEquals(List.of("0-3", "5-7", "9-10"), ranges(FileTransfer._streams(bits(0, 1, 2, 5, 6, 9), 1024, 2)));
+        assertEquals(List.of("2-3", "7-8"), ranges(FileTransfer._streams(bits(2, 7), 1024, 8)));
+        assertEquals(List.of(), ranges(FileTransfer._streams(bits(), 1024, 4)));
+    }
+
+    @Test
+    void streamsStayWithinOneMapping() {
+        int chunkSize = FileTransfer.MAX_STREAM_SIZE / 2;
+        assertEquals(List.of("0-2", "2-4", "4-5"), ranges(FileTransfer._streams(bits(0, 1, 2, 3, 4), chunkSize, 1)));
+    }
+
+    @Test
+    void chunkWriterWritesAndHashesEachChunk() throws Exception {
+        byte[] content = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        AtomicLong received = new AtomicLong();
+        try (FileChannel file = FileChannel.open(dir.resolve("target"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileTransfer.ChunkWriter writer = new FileTransfer.ChunkWriter(file, 3, content.length, 4, received);
+            // Receives cut across chunk boundaries, with stderr in between
+            writer.write("c", "stdout", content, 0, 3);
+            assertEquals(3, received.get());
+            writer.write("c", "stderr", "0 AB\n".getBytes(StandardCharsets.US_ASCII), 0, 5);
+            writer.write("c", "stdout", content, 3, 6);
+            writer.write("c", "stdout", content, 9, 1);
+
+            assertEquals(10, received.get());
+            assertEquals(List.of(sha256(content, 0, 4), sha256(content, 4, 4), sha256(content, 8, 2)), writer.checksums);
+            assertEquals("0 AB\n", writer.stderr.toString());
+            ByteBuffer written = ByteBuffer.allocate(content.length);
+            file.read(written, 3);
+            assertArrayEquals(content, written.array());
+            assertThrows(IOException.class, () -> writer.write("c", "stdout", content, 0, 1));
+        }
+    }
+
+    @Test
+    void chunkWriterHashesAChunkAtATime() throws Exception {
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        try (FileChannel file = FileChannel.open(Files.createFile(dir.resolve("bytes")), StandardOpenOption.WRITE)) {
+            FileTransfer.ChunkWriter writer = new FileTransfer.ChunkWriter(file, 0, content.length, 128, new AtomicLong());
+            // one byte at a time, then all the rest in one go
+            writer.write("c", "stdout", content, 0, 1);
+            writer.write("c", "stdout", content, 1, content.length - 1);
+            List<String> expected = new ArrayList<>();
+            for (int offset = 0; offset < content.length; offset += 128) {
+                expected.add(sha256(content, offset, Math.min(128, content.length - offset)));
+            }
+            assertEquals(expected, writer.checksums);
+        }
+    }
+
+    private static BitSet bits(int... set) {
+        BitSet bits = new BitSet();
+        for (int bit : set) {
+            bits.set(bit);
+        }
+        return bits;
+    }
+
+    private static List<String> ranges(List<FileTransfer.Stream> streams) {
+        List<String> ranges = new ArrayList<>();
+        for (FileTransfer.Stream stream : streams) {
+            ranges.add(stream.first + "-" + stream.end);
+        }
+        return ranges;
+    }
+
+    private static String sha256(byte[] data, int offset, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data, offset, length);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,243 @@
+package dev.leandromqrs.winrmj.transport;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSession;
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+
+import org.apache.kerby.kerberos.kerb.server.SimpleKdcServer;
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.MessageProp;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Logs in against an in-process Kerby KDC, reached through a proxy that counts the
+ * connections made to it, and runs the message encryption of EncryptedExchange both ways
+ * through an acceptor context logged in as the service.
+ */
+class KerberosAuthenticatorTest {
+    private static final String REALM = "EXAMPLE.COM";
+    private static final String HOST = "localhost";
+    private static final byte[] ENVELOPE = "<s:Envelope>café &amp; 中文</s:Envelope>".getBytes(StandardCharsets.UTF_8);
+
+    private static SimpleKdcServer kdc;
+    private static ServerSocket proxy;
+    private static final AtomicInteger KDC_CONNECTIONS = new AtomicInteger();
+    private static File clientKeytab;
+    private static File serviceKeytab;
+
+    @BeforeAll
+    static void startKdc() throws Exception {
+        Path dir = Files.createTempDirectory("winrmj-kdc");
+        kdc = new SimpleKdcServer();
+        kdc.setWorkDir(dir.toFile());
+        kdc.setKdcRealm(REALM);
+        kdc.setKdcHost("127.0.0.1");
+        kdc.setAllowUdp(false);
+        kdc.setKdcTcpPort(freePort());
+        kdc.init();
+        kdc.start();
+        clientKeytab = dir.resolve("client.keytab").toFile();
+        serviceKeytab = dir.resolve("service.keytab").toFile();
+        kdc.createAndExportPrincipals(clientKeytab, "alice");
+        kdc.createAndExportPrincipals(serviceKeytab, "HTTP/" + HOST);
+
+        proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(() -> forward(kdc.getKdcSetting().getKdcTcpPort()), "kdc-proxy");
+        accept.setDaemon(true);
+        accept.start();
+        Path conf = dir.resolve("krb5.conf");
+        Files.writeString(conf, "[libdefaults]\n default_realm = " + REALM + "\n udp_preference_limit = 1\n\n[realms]\n "
+                + REALM + " = {\n  kdc = 127.0.0.1:" + proxy.getLocalPort() + "\n }\n");
+        System.setProperty("java.security.krb5.conf", conf.toString());
+    }
+
+    @AfterAll
+    static void stopKdc() throws Exception {
+        System.clearProperty("java.security.krb5.conf");
+        proxy.close();
+        kdc.stop();
+    }
+
+    @Test
+    void secondInitiateUsesCachedTickets() throws Exception {
+        KerberosAuthenticator authenticator = new KerberosAuthenticator("alice@" + REALM, null, clientKeytab.getPath());
+        int before = KDC_CONNECTIONS.get();
+        authenticator.initiate(HOST).dispose();
+        int afterFirst = KDC_CONNECTIONS.get();
+        authenticator.initiate(HOST).dispose();
+        assertTrue(afterFirst > before, "the first initiate logs in and gets a service ticket");
+        assertEquals(afterFirst, KDC_CONNECTIONS.get(), "the second initiate does not go to the KDC");
+    }
+
+    @Test
+    void sealedRequestUnwrapsAsSentOnTheWire() throws Exception {
+        EncryptedExchange client = new KerberosAuthenticator("alice@" + REALM, null, clientKeytab.getPath()).initiate(HOST);
+        GSSContext acceptor = accept(client);
+        byte[] body = client.seal(ENVELOPE, 0, ENVELOPE.length);
+
+        // the data part as Windows reads it: signature length, then the rotated token
+        String text = new String(body, StandardCharsets.ISO_8859_1);
+        String dataPart = "Content-Type: application/octet-stream\r\n";
+        int at = text.indexOf(dataPart) + dataPart.length();
+        int end = text.lastIndexOf("--Encrypted Boundary--");
+        int signature = (body[at] & 0xff) | (body[at + 1] & 0xff) << 8 | (body[at + 2] & 0xff) << 16 | (body[at + 3] & 0xff) << 24;
+        byte[] token = Arrays.copyOfRange(body, at + 4, end);
+        assertEquals(token.length - ENVELOPE.length, signature, "only the encrypted envelope follows the signature");
+        assertTrue(text.contains("Length=" + ENVELOPE.length + "\r\n"));
+        // the JDK undoes the RRC rotation on its own, independently of unseal
+        assertArrayEquals(ENVELOPE, acceptor.unwrap(token, 0, token.length, new MessageProp(0, true)));
+    }
+
+    @Test
+    void sealUnsealRoundTrip() throws Exception {
+        EncryptedExchange client = new KerberosAuthenticator("alice@" + REALM, null, clientKeytab.getPath()).initiate(HOST);
+        EncryptedExchange server = new EncryptedExchange(accept(client), null);
+
+        assertArrayEquals(ENVELOPE, server.unseal(response(client.seal(ENVELOPE, 0, ENVELOPE.length))));
+        assertArrayEquals(ENVELOPE, client.unseal(response(server.seal(ENVELOPE, 0, ENVELOPE.length))));
+        byte[] empty = new byte[0];
+        assertArrayEquals(empty, client.unseal(response(server.seal(empty, 0, 0))));
+    }
+
+    private static GSSContext accept(EncryptedExchange client) throws Exception {
+        Subject service = login("HTTP/" + HOST + "@" + REALM, serviceKeytab.getPath());
+        byte[] token = Base64.getDecoder().decode(client.getAuthorization().substring("Negotiate ".length()));
+        GSSContext acceptor = Subject.doAs(service, (PrivilegedExceptionAction<GSSContext>) () -> {
+            GSSContext context = GSSManager.getInstance().createContext((GSSCredential) null);
+            context.acceptSecContext(token, 0, token.length);
+            return context;
+        });
+        assertTrue(acceptor.isEstablished());
+        return acceptor;
+    }
+
+    private static Subject login(String principal, String keytab) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("principal", principal);
+        options.put("useKeyTab", "true");
+        options.put("keyTab", keytab);
+        options.put("storeKey", "true");
+        options.put("doNotPrompt", "true");
+        options.put("isInitiator", "false");
+        options.put("refreshKrb5Config", "true");
+        AppConfigurationEntry entry = new AppConfigurationEntry("com.sun.security.auth.module.Krb5LoginModule",
+                AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+        LoginContext login = new LoginContext("service", new Subject(), null, new Configuration() {
+            @Override
+            public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+                return new AppConfigurationEntry[] { entry };
+            }
+        });
+        login.login();
+        return login.getSubject();
+    }
+
+    private static HttpResponse<byte[]> response(byte[] body) {
+        HttpHeaders headers = HttpHeaders.of(Map.of("Content-Type", List.of(EncryptedExchange.CONTENT_TYPE)), (name, value) -> true);
+        return new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return 200;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return null;
+            }
+
+            @Override
+            public Optional<HttpResponse<byte[]>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return headers;
+            }
+
+            @Override
+            public byte[] body() {
+                return body;
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return URI.create("http://" + HOST + ":5985/wsman");
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void forward(int kdcPort) {
+        while (true) {
+            try {
+                Socket in = proxy.accept();
+                KDC_CONNECTIONS.incrementAndGet();
+                Socket out = new Socket(InetAddress.getLoopbackAddress(), kdcPort);
+                pipe(in, out);
+                pipe(out, in);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void pipe(Socket from, Socket to) {
+        Thread thread = new Thread(() -> {
+            try {
+                from.getInputStream().transferTo(to.getOutputStream());
+                to.shutdownOutput();
+            } catch (IOException ignored) {
+                // the other side closed
+            }
+        }, "kdc-proxy-pipe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}